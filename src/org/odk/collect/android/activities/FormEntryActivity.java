@@ -35,6 +35,7 @@ import org.odk.collect.android.listeners.AdvanceToNextListener;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.listeners.FormSavedListener;
 import org.odk.collect.android.listeners.SavePointListener;
+import org.odk.collect.android.logic.AnswerJournal;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.logic.FormController.FailedConstraint;
 import org.odk.collect.android.preferences.AdminPreferencesActivity;
@@ -43,12 +44,13 @@ import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.tasks.FormLoaderTask;
-import org.odk.collect.android.tasks.SavePointTask;
+import org.odk.collect.android.tasks.SavePointScheduler;
 import org.odk.collect.android.tasks.SaveResult;
 import org.odk.collect.android.tasks.SaveToDiskTask;
 import org.odk.collect.android.utilities.CompatibilityUtils;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.MediaUtils;
+import org.odk.collect.android.views.NextViewBuilder;
 import org.odk.collect.android.views.ODKView;
 import org.odk.collect.android.widgets.QuestionWidget;
 
@@ -192,6 +194,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	private LinearLayout mQuestionHolder;
 	private View mCurrentView;
 
+	// builds the view of the next screen ahead of a forward swipe
+	private NextViewBuilder mNextViewBuilder;
+
 	private AlertDialog mAlertDialog;
 	private ProgressDialog mProgressDialog;
 	private String mErrorMessage;
@@ -220,6 +225,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
+		mNextViewBuilder = new NextViewBuilder(this);
 
 		// must be at the beginning of any activity that can be called from an
 		// external intent
@@ -518,11 +524,24 @@ public class FormEntryActivity extends Activity implements AnimationListener,
      * on larger forms.
      */
     private void nonblockingCreateSavePointData() {
-        try {
-            SavePointTask savePointTask = new SavePointTask(this);
-            savePointTask.execute();
-        } catch (Exception e) {
-            Log.e(t, "Could not schedule SavePointTask. Perhaps a lot of swiping is taking place?");
+        nonblockingCreateSavePointData(false);
+    }
+
+    /**
+     * @param immediately write the save-point as soon as possible instead of
+     *            waiting for the swiping to settle down
+     */
+    private void nonblockingCreateSavePointData(boolean immediately) {
+        FormController formController = Collect.getInstance().getFormController();
+        AnswerJournal journal = (formController == null) ? null : formController.getAnswerJournal();
+        if (journal != null && !journal.needsCompaction()) {
+            // the answers since the last savepoint are already in the journal
+            return;
+        }
+        if (immediately) {
+            SavePointScheduler.getInstance().scheduleNow(this);
+        } else {
+            SavePointScheduler.getInstance().schedule(this);
         }
     }
 
@@ -543,7 +562,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 						formController.getXPath(waiting));
 			}
 			// save the instance to a temp path...
-			nonblockingCreateSavePointData();
+			nonblockingCreateSavePointData(true);
 		}
 		outState.putBoolean(NEWFORM, false);
 		outState.putString(KEY_ERROR, mErrorMessage);
@@ -1208,17 +1227,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
                 return createView(event, advancingPage);
             }
 
-			// Makes a "clear answer" menu pop up on long-click
-			for (QuestionWidget qw : odkv.getWidgets()) {
-				if (!qw.getPrompt().isReadOnly()) {
-					registerForContextMenu(qw);
-				}
-			}
-
-			if (mBackButton.isShown() && mNextButton.isShown()) {
-				mBackButton.setEnabled(true);
-				mNextButton.setEnabled(true);
-			}
+			setUpQuestionView(odkv);
 			return odkv;
 		default:
 			Log.e(t, "Attempted to create a view that does not exist.");
@@ -1234,6 +1243,37 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		}
 	}
 
+	/**
+	 * Sets up a newly created view of questions, or of a field-list.
+	 */
+	private void setUpQuestionView(ODKView odkv) {
+		// Makes a "clear answer" menu pop up on long-click
+		for (QuestionWidget qw : odkv.getWidgets()) {
+			if (!qw.getPrompt().isReadOnly()) {
+				registerForContextMenu(qw);
+			}
+		}
+
+		if (mBackButton.isShown() && mNextButton.isShown()) {
+			mBackButton.setEnabled(true);
+			mNextButton.setEnabled(true);
+		}
+	}
+
+	/**
+	 * Creates the view of the screen just stepped to from fromIndex, unless
+	 * it was already built while the user was on fromIndex.
+	 */
+	private View createNextView(int event, FormIndex fromIndex) {
+		ODKView prebuilt = mNextViewBuilder.take(fromIndex);
+		if (prebuilt == null) {
+			return createView(event, true);
+		}
+		setUpQuestionView(prebuilt);
+		prebuilt.autoplay();
+		return prebuilt;
+	}
+
 	@Override
 	public boolean dispatchTouchEvent(MotionEvent mv) {
 		boolean handled = mGestureDetector.onTouchEvent(mv);
@@ -1253,6 +1293,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		try {
             FormController formController = Collect.getInstance()
                     .getFormController();
+            FormIndex fromIndex = formController.getFormIndex();
 
             // get constraint behavior preference value with appropriate default
             String constraint_behavior = PreferenceManager.getDefaultSharedPreferences(this)
@@ -1285,11 +1326,14 @@ public class FormEntryActivity extends Activity implements AnimationListener,
                     if ((++viewCount) % SAVEPOINT_INTERVAL == 0) {
                         nonblockingCreateSavePointData();
                     }
-                    next = createView(event, true);
+                    next = createNextView(event, fromIndex);
                     showView(next, AnimationType.RIGHT);
                     break;
-                case FormEntryController.EVENT_END_OF_FORM:
                 case FormEntryController.EVENT_REPEAT:
+                    next = createNextView(event, fromIndex);
+                    showView(next, AnimationType.RIGHT);
+                    break;
+                case FormEntryController.EVENT_END_OF_FORM:
                     next = createView(event, true);
                     showView(next, AnimationType.RIGHT);
                     break;
@@ -1355,6 +1399,8 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 	 * the progress bar.
 	 */
 	public void showView(View next, AnimationType from) {
+		// built for the screen being left
+		mNextViewBuilder.discard();
 
 		// disable notifications...
 		if (mInAnimation != null) {
@@ -1555,6 +1601,8 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 									"addRepeat");
 					try {
 						formController.newRepeat();
+						// the journal cannot record the new repeat
+						nonblockingCreateSavePointData(true);
 					} catch (Exception e) {
 						FormEntryActivity.this.createErrorDialog(
 								e.getMessage(), DO_NOT_EXIT);
@@ -1705,6 +1753,8 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 							.logInstanceAction(this,
 									"createDeleteRepeatConfirmDialog", "OK");
 					formController.deleteRepeat();
+					// the journal cannot record the deleted repeat
+					nonblockingCreateSavePointData(true);
 					showPreviousView();
 					break;
 				case DialogInterface. BUTTON_NEGATIVE: // no
@@ -1876,6 +1926,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 		if (temp.exists()) {
 			temp.delete();
 		}
+		if (formController.getAnswerJournal() != null) {
+			formController.getAnswerJournal().reset();
+		}
 
 		String selection = InstanceColumns.INSTANCE_FILE_PATH + "=?";
 		String[] selectionArgs = { formController.getInstancePath()
@@ -2160,6 +2213,8 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				saveAnswersForCurrentScreen(DO_NOT_EVALUATE_CONSTRAINTS);
 			}
 		}
+		// the settings (e.g., the font size) may change before we resume
+		mNextViewBuilder.discard();
 
 		super.onPause();
 	}
@@ -2287,6 +2342,7 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 				mSaveToDiskTask = null;
 			}
 		}
+		mNextViewBuilder.discard();
 
 		super.onDestroy();
 
@@ -2308,6 +2364,9 @@ public class FormEntryActivity extends Activity implements AnimationListener,
 			((ODKView) mCurrentView).setFocus(this);
 		}
 		mBeenSwiped = false;
+
+		// get the next screen ready while the user is on this one
+		mNextViewBuilder.schedule();
 	}
 
 	@Override
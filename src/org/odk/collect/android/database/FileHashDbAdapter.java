@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.FileUtils;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Persistent memo of file md5 hashes, keyed by path, size and modification
+ * time, so that unchanged files (e.g., the forms checked on every
+ * DiskSyncTask scan) are never re-hashed.
+ */
+public class FileHashDbAdapter {
+
+    private static final String TAG = "FileHashDbAdapter";
+
+    private static final String DATABASE_NAME = "filehashes.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String FILE_HASH_TABLE = "filehashes";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_MD5 = "md5";
+
+    private static final String CREATE_FILE_HASH_TABLE =
+            "create table " + FILE_HASH_TABLE + " (" + KEY_PATH + " text primary key, "
+                    + KEY_SIZE + " integer not null, "
+                    + KEY_LAST_MODIFIED + " integer not null, "
+                    + KEY_MD5 + " text not null "
+                    + ");";
+
+    /**
+     * Files modified this recently are not memoized: a rewrite within the
+     * timestamp granularity of the file system (2s on FAT sdcards) could
+     * leave the size and modification time unchanged.
+     */
+    private static final long MIN_AGE_MILLIS = 3000;
+
+    /**
+     * This class helps open, create, and upgrade the database file.
+     */
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(CREATE_FILE_HASH_TABLE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion + ", which will destroy all old data");
+            db.execSQL("DROP TABLE IF EXISTS " + FILE_HASH_TABLE);
+            onCreate(db);
+        }
+    }
+
+    private static DatabaseHelper sDbHelper = null;
+
+    private static synchronized SQLiteDatabase getDatabase() {
+        if (sDbHelper == null) {
+            sDbHelper = new DatabaseHelper();
+        }
+        return sDbHelper.getWritableDatabase();
+    }
+
+    private FileHashDbAdapter() {
+    }
+
+    /**
+     * Returns the md5 hash of the file, computing it only if the file's size
+     * or modification time changed since it was last hashed.
+     *
+     * @param file
+     * @return md5 hash of the file, or null if it could not be read
+     */
+    public static String getMd5Hash(File file) {
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        String md5 = null;
+        try {
+            md5 = lookup(path, size, lastModified);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to read the memoized hash of " + path + ": " + e.toString());
+        }
+        if (md5 != null) {
+            return md5;
+        }
+
+        md5 = FileUtils.getMd5Hash(file);
+        if (md5 != null && isSettled(lastModified)
+                && file.lastModified() == lastModified && file.length() == size) {
+            try {
+                store(path, size, lastModified, md5);
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to memoize the hash of " + path + ": " + e.toString());
+            }
+        }
+        return md5;
+    }
+
+    /**
+     * @return true if a file with this modification time was modified long
+     *         enough ago that its size and modification time identify its
+     *         content
+     */
+    public static boolean isSettled(long lastModified) {
+        return lastModified != 0 && lastModified < System.currentTimeMillis() - MIN_AGE_MILLIS;
+    }
+
+    /**
+     * Forget the hash of the file (e.g., because it was deleted).
+     */
+    public static synchronized void remove(File file) {
+        getDatabase().delete(FILE_HASH_TABLE, KEY_PATH + "=?", new String[] {
+            file.getAbsolutePath()
+        });
+    }
+
+    /**
+     * Forget the hashes of the files that no longer exist, so that the memo
+     * does not keep growing as forms are replaced and deleted.
+     *
+     * @return the number of hashes forgotten
+     */
+    public static synchronized int pruneMissing() {
+        List<String> missing = new ArrayList<String>();
+        SQLiteDatabase db = getDatabase();
+        Cursor c = null;
+        try {
+            c = db.query(FILE_HASH_TABLE, new String[] {
+                KEY_PATH
+            }, null, null, null, null, null);
+            while (c.moveToNext()) {
+                String path = c.getString(0);
+                if (!new File(path).exists()) {
+                    missing.add(path);
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        if (missing.isEmpty()) {
+            return 0;
+        }
+        db.beginTransaction();
+        try {
+            for (String path : missing) {
+                db.delete(FILE_HASH_TABLE, KEY_PATH + "=?", new String[] {
+                    path
+                });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return missing.size();
+    }
+
+    private static synchronized String lookup(String path, long size, long lastModified) {
+        Cursor c = null;
+        try {
+            c = getDatabase().query(FILE_HASH_TABLE, new String[] {
+                    KEY_MD5
+            }, KEY_PATH + "=? and " + KEY_SIZE + "=? and " + KEY_LAST_MODIFIED + "=?",
+                    new String[] {
+                            path, Long.toString(size), Long.toString(lastModified)
+                    }, null, null, null);
+            if (c.moveToFirst()) {
+                return c.getString(0);
+            }
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private static synchronized void store(String path, long size, long lastModified, String md5) {
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_PATH, path);
+        cv.put(KEY_SIZE, size);
+        cv.put(KEY_LAST_MODIFIED, lastModified);
+        cv.put(KEY_MD5, md5);
+        getDatabase().replace(FILE_HASH_TABLE, null, cv);
+    }
+}
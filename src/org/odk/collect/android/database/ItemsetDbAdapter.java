@@ -202,14 +202,22 @@ public class ItemsetDbAdapter {
         mDb.delete(ITEMSET_TABLE, where, whereArgs);
     }
     
-    public static String getMd5FromString(String toEncode) {
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            Log.e("MD5", e.getMessage());
+    private static final ThreadLocal<MessageDigest> md5Digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                Log.e("MD5", e.getMessage());
+                return null;
+            }
         }
+    };
+
+    public static String getMd5FromString(String toEncode) {
+        // digest() resets the digest, so it can be reused by the next call on this thread
+        MessageDigest md = md5Digest.get();
         md.update(toEncode.getBytes());
         byte[] digest = md.digest();
         BigInteger bigInt = new BigInteger(1,digest);
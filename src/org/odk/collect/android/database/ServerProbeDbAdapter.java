@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.database;
+
+import org.odk.collect.android.application.Collect;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Persistent cache of OpenRosa HEAD probes: for each submission Uri, the
+ * Location the server redirected it to and the auth scheme it challenged
+ * with. Entries expire after {@link #TTL_MILLIS} and are dropped when the
+ * server asks for credentials or no longer accepts the remapped Uri, so that
+ * the next upload probes the server again.
+ */
+public class ServerProbeDbAdapter {
+
+    private static final String TAG = "ServerProbeDbAdapter";
+
+    private static final String DATABASE_NAME = "serverprobes.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String SERVER_PROBE_TABLE = "serverprobes";
+    private static final String KEY_URI = "uri";
+    private static final String KEY_HOST = "host";
+    private static final String KEY_LOCATION = "location";
+    private static final String KEY_AUTH_SCHEME = "authScheme";
+    private static final String KEY_PROBED = "probed";
+
+    private static final String CREATE_SERVER_PROBE_TABLE =
+            "create table " + SERVER_PROBE_TABLE + " (" + KEY_URI + " text primary key, "
+                    + KEY_HOST + " text not null, "
+                    + KEY_LOCATION + " text not null, "
+                    + KEY_AUTH_SCHEME + " text, "
+                    + KEY_PROBED + " integer not null "
+                    + ");";
+
+    /**
+     * How long a probe result is trusted.
+     */
+    public static final long TTL_MILLIS = 12L * 60L * 60L * 1000L;
+
+    /**
+     * This class helps open, create, and upgrade the database file.
+     */
+    private static class DatabaseHelper extends ODKSQLiteOpenHelper {
+        DatabaseHelper() {
+            super(Collect.METADATA_PATH, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(CREATE_SERVER_PROBE_TABLE);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
+                    + newVersion + ", which will destroy all old data");
+            db.execSQL("DROP TABLE IF EXISTS " + SERVER_PROBE_TABLE);
+            onCreate(db);
+        }
+    }
+
+    public static class Probe {
+        public final Uri mLocation;
+        public final String mAuthScheme;
+
+        Probe(Uri location, String authScheme) {
+            mLocation = location;
+            mAuthScheme = authScheme;
+        }
+    }
+
+    private static DatabaseHelper sDbHelper = null;
+
+    private static synchronized SQLiteDatabase getDatabase() {
+        if (sDbHelper == null) {
+            sDbHelper = new DatabaseHelper();
+        }
+        return sDbHelper.getWritableDatabase();
+    }
+
+    private ServerProbeDbAdapter() {
+    }
+
+    /**
+     * @param u the submission Uri
+     * @return the unexpired probe of u, or null if it must be probed again
+     */
+    public static synchronized Probe get(Uri u) {
+        Cursor c = null;
+        try {
+            c = getDatabase().query(SERVER_PROBE_TABLE, new String[] {
+                    KEY_LOCATION, KEY_AUTH_SCHEME
+            }, KEY_URI + "=? and " + KEY_PROBED + ">?", new String[] {
+                    u.toString(), Long.toString(System.currentTimeMillis() - TTL_MILLIS)
+            }, null, null, null);
+            if (c.moveToFirst()) {
+                return new Probe(Uri.parse(c.getString(0)), c.isNull(1) ? null : c.getString(1));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to read the probe of " + u + ": " + e.toString());
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records that the server redirected u to location, after challenging
+     * with authScheme (null if it did not).
+     */
+    public static synchronized void put(Uri u, Uri location, String authScheme) {
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_URI, u.toString());
+        cv.put(KEY_HOST, u.getHost() == null ? "" : u.getHost().toLowerCase());
+        cv.put(KEY_LOCATION, location.toString());
+        cv.put(KEY_AUTH_SCHEME, authScheme);
+        cv.put(KEY_PROBED, System.currentTimeMillis());
+        try {
+            getDatabase().replace(SERVER_PROBE_TABLE, null, cv);
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to record the probe of " + u + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Forget the probe of u (e.g., because the server rejected the remapped Uri).
+     */
+    public static synchronized void invalidate(Uri u) {
+        try {
+            getDatabase().delete(SERVER_PROBE_TABLE, KEY_URI + "=?", new String[] {
+                u.toString()
+            });
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to forget the probe of " + u + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Forget the probes of every Uri on host (e.g., because it asked for credentials).
+     */
+    public static synchronized void invalidateHost(String host) {
+        if (host == null) {
+            return;
+        }
+        try {
+            getDatabase().delete(SERVER_PROBE_TABLE, KEY_HOST + "=?", new String[] {
+                host.toLowerCase()
+            });
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to forget the probes of " + host + ": " + e.toString());
+        }
+    }
+
+    /**
+     * @return true if an unexpired probe shows that host redirects its
+     *         submissions to https on the same host.
+     */
+    public static synchronized boolean isSecureHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        Cursor c = null;
+        try {
+            c = getDatabase().query(SERVER_PROBE_TABLE, new String[] {
+                    KEY_LOCATION
+            }, KEY_HOST + "=? and " + KEY_PROBED + ">?", new String[] {
+                    host.toLowerCase(), Long.toString(System.currentTimeMillis() - TTL_MILLIS)
+            }, null, null, null);
+            while (c.moveToNext()) {
+                Uri location = Uri.parse(c.getString(0));
+                if ("https".equals(location.getScheme()) && host.equalsIgnoreCase(location.getHost())) {
+                    return true;
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to read the probes of " + host + ": " + e.toString());
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Originally developed by Dobility, Inc. (as part of SurveyCTO)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.external;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of pulldata() results. JavaRosa re-evaluates
+ * calculations on every answer change, so the same lookups are repeated many times.
+ * <p/>
+ * Entries are keyed by the database file of the data set, the queried column, the
+ * reference column and the reference value. All entries of a data set are dropped
+ * when that data set is re-imported.
+ */
+public class ExternalDataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static ExternalDataCache singleton = null;
+
+    public static synchronized ExternalDataCache getInstance() {
+        if (singleton == null) {
+            singleton = new ExternalDataCache(DEFAULT_MAX_ENTRIES);
+        }
+        return singleton;
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<Key, String> entries;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    public ExternalDataCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, String> eldest) {
+                return size() > ExternalDataCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value, or null if this lookup has not been cached.
+     */
+    public synchronized String get(File dbFile, String queriedColumn, String referenceColumn, String referenceValue) {
+        String value = entries.get(new Key(dbFile, queriedColumn, referenceColumn, referenceValue));
+        if (value == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+        return value;
+    }
+
+    public synchronized void put(File dbFile, String queriedColumn, String referenceColumn, String referenceValue, String value) {
+        if (value == null) {
+            return;
+        }
+        entries.put(new Key(dbFile, queriedColumn, referenceColumn, referenceValue), value);
+    }
+
+    /**
+     * Drops every cached value of the data set stored in dbFile.
+     */
+    public synchronized void invalidate(File dbFile) {
+        String path = dbFile.getAbsolutePath();
+        Iterator<Key> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().dbPath.equals(path)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ExternalDataCache{size=" + entries.size() + ", maxEntries=" + maxEntries
+                + ", hits=" + hitCount + ", misses=" + missCount + "}";
+    }
+
+    private static final class Key {
+        private final String dbPath;
+        private final String queriedColumn;
+        private final String referenceColumn;
+        private final String referenceValue;
+
+        private Key(File dbFile, String queriedColumn, String referenceColumn, String referenceValue) {
+            this.dbPath = dbFile.getAbsolutePath();
+            this.queriedColumn = queriedColumn;
+            this.referenceColumn = referenceColumn;
+            this.referenceValue = referenceValue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return dbPath.equals(key.dbPath)
+                    && queriedColumn.equals(key.queriedColumn)
+                    && referenceColumn.equals(key.referenceColumn)
+                    && referenceValue.equals(key.referenceValue);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = dbPath.hashCode();
+            result = 31 * result + queriedColumn.hashCode();
+            result = 31 * result + referenceColumn.hashCode();
+            result = 31 * result + referenceValue.hashCode();
+            return result;
+        }
+    }
+}
@@ -81,5 +81,6 @@ public class ExternalDataManagerImpl implements ExternalDataManager {
                 externalSQLiteOpenHelper.close();
             }
         }
+        Log.i(ExternalDataUtil.LOGGER_NAME, "pulldata() cache statistics: " + ExternalDataCache.getInstance());
     }
 }
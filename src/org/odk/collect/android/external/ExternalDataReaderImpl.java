@@ -21,11 +21,20 @@ package org.odk.collect.android.external;
 import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 import org.apache.commons.io.FileUtils;
+import org.odk.collect.android.exception.ExternalDataException;
 import org.odk.collect.android.tasks.FormLoaderTask;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Author: Meletis Margaritis
@@ -35,61 +44,119 @@ import java.util.Map;
 public class ExternalDataReaderImpl implements ExternalDataReader {
 
     private FormLoaderTask formLoaderTask;
+    private final Map<String, Set<String>> searchedColumns;
 
     public ExternalDataReaderImpl(FormLoaderTask formLoaderTask) {
+        this(formLoaderTask, new HashMap<String, Set<String>>());
+    }
+
+    /**
+     * @param searchedColumns the columns queried by search() appearances, keyed by normalized data set name.
+     *                        A full-text index is built over them when their data set is imported.
+     */
+    public ExternalDataReaderImpl(FormLoaderTask formLoaderTask, Map<String, Set<String>> searchedColumns) {
         this.formLoaderTask = formLoaderTask;
+        this.searchedColumns = searchedColumns;
     }
 
     @Override
     public void doImport(Map<String, File> externalDataMap) {
-        for (Map.Entry<String, File> stringFileEntry : externalDataMap.entrySet()) {
-            String dataSetName = stringFileEntry.getKey();
-            File dataSetFile = stringFileEntry.getValue();
-            if (dataSetFile.exists()) {
-                File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(), dataSetName + ".db");
-                if (dbFile.exists()) {
-                    // this means the someone updated the csv file, so we need to reload it
-                    boolean deleted = dbFile.delete();
-                    if (!deleted) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " has changed but we could not delete the previous DB at " + dbFile.getAbsolutePath());
-                        continue;
+        if (externalDataMap.size() <= 1) {
+            for (Map.Entry<String, File> stringFileEntry : externalDataMap.entrySet()) {
+                importDataSet(stringFileEntry.getKey(), stringFileEntry.getValue());
+            }
+            return;
+        }
+
+        // each data set lives in its own database file, so they can be populated concurrently.
+        int threads = Math.min(externalDataMap.size(), Math.max(1, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Map.Entry<String, File> stringFileEntry : externalDataMap.entrySet()) {
+                final String dataSetName = stringFileEntry.getKey();
+                final File dataSetFile = stringFileEntry.getValue();
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        importDataSet(dataSetName, dataSetFile);
                     }
+                }));
+            }
+
+            RuntimeException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (failure == null) {
+                        failure = (cause instanceof RuntimeException) ? (RuntimeException) cause : new RuntimeException(cause);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ExternalDataException(e.getMessage(), e);
                 }
-                ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
-                externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-                if (formLoaderTask.isCancelled()) {
-                    Log.w(ExternalDataUtil.LOGGER_NAME, "The import was cancelled, so we need to rollback.");
+    private void importDataSet(String dataSetName, File dataSetFile) {
+        if (!dataSetFile.exists()) {
+            return;
+        }
+        if (formLoaderTask.isCancelled()) {
+            // do not start any other CSVs once the import has been cancelled.
+            return;
+        }
 
-                    // we need to drop the database file since it might be partially populated. It will be re-created next time.
+        File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(), dataSetName + ".db");
+        // any pulldata() results cached for the previous import are now stale
+        ExternalDataCache.getInstance().invalidate(dbFile);
+        if (dbFile.exists()) {
+            // this means the someone updated the csv file, so we need to reload it
+            boolean deleted = dbFile.delete();
+            if (!deleted) {
+                Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " has changed but we could not delete the previous DB at " + dbFile.getAbsolutePath());
+                return;
+            }
+        }
+        ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
+        Set<String> searchIndexColumns = searchedColumns.get(ExternalDataUtil.normalizeDataSetName(dataSetName));
+        externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask, searchIndexColumns);
 
-                    Log.w(ExternalDataUtil.LOGGER_NAME, "Closing database to be deleted " + dbFile);
+        if (formLoaderTask.isCancelled()) {
+            Log.w(ExternalDataUtil.LOGGER_NAME, "The import was cancelled, so we need to rollback.");
 
-                    // then close the database
-                    SQLiteDatabase db = externalSQLiteOpenHelper.getReadableDatabase();
-                    db.close();
+            // we need to drop the database file since it might be partially populated. It will be re-created next time.
 
-                    // the physically delete the db.
-                    try {
-                        FileUtils.forceDelete(dbFile);
-                        Log.w(ExternalDataUtil.LOGGER_NAME, "Deleted " + dbFile.getName());
-                    } catch (IOException e) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
-                    }
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Closing database to be deleted " + dbFile);
 
-                    // then just exit and do not process any other CSVs.
-                    return;
-
-                } else {
-                    // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be loaded again
-                    File importedFile = new File(dataSetFile.getParentFile(), dataSetFile.getName() + ".imported");
-                    boolean renamed = dataSetFile.renameTo(importedFile);
-                    if (!renamed) {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " could not be renamed to be archived. It will be re-imported again! :(");
-                    } else {
-                        Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " was renamed to " + importedFile.getName());
-                    }
-                }
+            // then close the database
+            SQLiteDatabase db = externalSQLiteOpenHelper.getReadableDatabase();
+            db.close();
+
+            // the physically delete the db.
+            try {
+                FileUtils.forceDelete(dbFile);
+                Log.w(ExternalDataUtil.LOGGER_NAME, "Deleted " + dbFile.getName());
+            } catch (IOException e) {
+                Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
+            }
+
+        } else {
+            // rename the dataSetFile into "dataSetFile.csv.imported" in order not to be loaded again
+            File importedFile = new File(dataSetFile.getParentFile(), dataSetFile.getName() + ".imported");
+            boolean renamed = dataSetFile.renameTo(importedFile);
+            if (!renamed) {
+                Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " could not be renamed to be archived. It will be re-imported again! :(");
+            } else {
+                Log.e(ExternalDataUtil.LOGGER_NAME, dataSetFile.getName() + " was renamed to " + importedFile.getName());
             }
         }
     }
@@ -21,14 +21,19 @@ package org.odk.collect.android.external;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
 import org.javarosa.core.model.SelectChoice;
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.instance.FormInstance;
@@ -37,6 +42,7 @@ import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.xpath.XPathParseTool;
 import org.javarosa.xpath.expr.XPathExpression;
 import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathStringLiteral;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.application.Collect;
@@ -53,6 +59,7 @@ public final class ExternalDataUtil {
 
     public static final String LOGGER_NAME = "ExternalData";
     public static final String EXTERNAL_DATA_TABLE_NAME = "externalData";
+    public static final String EXTERNAL_DATA_FTS_TABLE_NAME = "externalData_fts";
     public static final String SORT_COLUMN_NAME = "c_sortby";
 
     private static final Pattern SEARCH_FUNCTION_REGEX = Pattern.compile("search\\(.+\\)");
@@ -129,15 +136,150 @@ public final class ExternalDataUtil {
         }
     }
 
+    /**
+     * Collects, for every data set, the columns that the search() appearances of the form query.
+     * Only literal data set and column arguments can be resolved before the form is filled in.
+     *
+     * @param formDef the form that is being loaded
+     * @return a map with the normalized data set names as keys and the safe column names as values
+     */
+    public static Map<String, Set<String>> findSearchedColumns(FormDef formDef) {
+        Map<String, Set<String>> searchedColumns = new HashMap<String, Set<String>>();
+        findSearchedColumns(formDef, searchedColumns);
+        return searchedColumns;
+    }
+
+    private static void findSearchedColumns(IFormElement element, Map<String, Set<String>> searchedColumns) {
+        if (element instanceof QuestionDef) {
+            XPathFuncExpr xPathFuncExpr;
+            try {
+                xPathFuncExpr = getSearchXPathExpression(element.getAppearanceAttr());
+            } catch (Exception e) {
+                // the widget will report the syntax error
+                xPathFuncExpr = null;
+            }
+            if (xPathFuncExpr != null && xPathFuncExpr.args.length >= 4
+                    && xPathFuncExpr.args[0] instanceof XPathStringLiteral
+                    && xPathFuncExpr.args[2] instanceof XPathStringLiteral) {
+                String dataSetName = normalizeDataSetName(((XPathStringLiteral) xPathFuncExpr.args[0]).s);
+                String queriedColumns = ((XPathStringLiteral) xPathFuncExpr.args[2]).s;
+                if (queriedColumns.trim().length() > 0) {
+                    Set<String> columns = searchedColumns.get(dataSetName);
+                    if (columns == null) {
+                        columns = new HashSet<String>();
+                        searchedColumns.put(dataSetName, columns);
+                    }
+                    columns.addAll(createListOfColumns(queriedColumns));
+                }
+            }
+        }
+        List<IFormElement> children = element.getChildren();
+        if (children != null) {
+            for (IFormElement child : children) {
+                findSearchedColumns(child, searchedColumns);
+            }
+        }
+    }
+
+    /**
+     * SCTO-545
+     *
+     * @param dataSetName the user-supplied data-set in the function
+     * @return the normalized data-set name.
+     */
+    public static String normalizeDataSetName(String dataSetName) {
+        dataSetName = dataSetName.toLowerCase();
+        if (dataSetName.endsWith(".csv")) {
+            dataSetName = dataSetName.substring(0, dataSetName.lastIndexOf(".csv"));
+        }
+        return dataSetName;
+    }
+
+    /**
+     * Returns the leading token of a search term, as the "simple" full-text tokenizer would split it,
+     * so that it can be used as a prefix query against the full-text index.
+     *
+     * Only ASCII characters are lower-cased, as by the tokenizer: its index keeps the other characters
+     * as they are, so folding them here would miss the rows they appear in (e.g., "Élan").
+     *
+     * @return the leading token, ASCII lower-cased, or null if the term does not start with a token character.
+     */
+    public static String getLeadingSearchToken(String queriedValue) {
+        if (queriedValue == null) {
+            return null;
+        }
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < queriedValue.length(); i++) {
+            char ch = queriedValue.charAt(i);
+            if (ch < 128 && !Character.isLetterOrDigit(ch)) {
+                break;
+            }
+            token.append(ch < 128 ? Character.toLowerCase(ch) : ch);
+        }
+        if (token.length() == 0) {
+            return null;
+        }
+        return token.toString();
+    }
+
+    /**
+     * @return the choices of a select prompt, populated from the external data if its appearance
+     *         has a search() function
+     */
+    public static List<SelectChoice> getSelectChoices(FormEntryPrompt formEntryPrompt) {
+        XPathFuncExpr xPathFuncExpr = getSearchXPathExpression(formEntryPrompt.getAppearanceHint());
+        if (xPathFuncExpr != null) {
+            return populateExternalChoices(formEntryPrompt, xPathFuncExpr);
+        } else {
+            return formEntryPrompt.getSelectChoices();
+        }
+    }
+
     public static ArrayList<SelectChoice> populateExternalChoices(FormEntryPrompt formEntryPrompt, XPathFuncExpr xPathFuncExpr) {
+        return populateExternalChoicePage(formEntryPrompt, xPathFuncExpr, 0, -1, null).choices;
+    }
+
+    /**
+     * One page of the choices of a select prompt with a search() appearance.
+     */
+    public static class ChoicePage {
+        public final ArrayList<SelectChoice> choices;
+        /**
+         * Whether a later page may hold more choices.
+         */
+        public final boolean hasMore;
+
+        ChoicePage(ArrayList<SelectChoice> choices, boolean hasMore) {
+            this.choices = choices;
+            this.hasMore = hasMore;
+        }
+    }
+
+    /**
+     * Same as {@link #populateExternalChoices(FormEntryPrompt, XPathFuncExpr)}, but only returns one page
+     * of the dynamic choices, so that a widget can show the first results while it loads the rest.
+     * Static choices are only returned with the first page. Must be called on the UI thread, as the
+     * search() is evaluated against the form.
+     *
+     * @param offset         the number of rows of external data to skip, i.e., the sum of the limits
+     *                       of the earlier pages
+     * @param limit          the maximum number of rows of external data to read, or -1 for all of them
+     * @param returnedValues the values of the dynamic choices of the earlier pages, which are not
+     *                       returned again; the values of this page are added to it. May be null
+     *                       if there are no other pages.
+     */
+    public static ChoicePage populateExternalChoicePage(FormEntryPrompt formEntryPrompt, XPathFuncExpr xPathFuncExpr, int offset, int limit, Set<String> returnedValues) {
         try {
             List<SelectChoice> selectChoices = formEntryPrompt.getSelectChoices();
             ArrayList<SelectChoice> returnedChoices = new ArrayList<SelectChoice>();
+            boolean hasMore = false;
             for (SelectChoice selectChoice : selectChoices) {
                 String value = selectChoice.getValue();
                 if (isAnInteger(value)) {
                     // treat this as a static choice
-                    returnedChoices.add(selectChoice);
+                    if (offset == 0) {
+                        returnedChoices.add(selectChoice);
+                    }
                 } else {
                     String displayColumns = formEntryPrompt.getSelectChoiceText(selectChoice);
                     String imageColumn = formEntryPrompt.getSpecialFormSelectChoiceText(selectChoice, FormEntryCaption.TEXT_FORM_IMAGE);
@@ -153,7 +295,9 @@ public final class ExternalDataUtil {
                     EvaluationContext baseEvaluationContext = new EvaluationContext(formInstance);
                     EvaluationContext evaluationContext = new EvaluationContext(baseEvaluationContext, formEntryPrompt.getIndex().getReference());
                     // we can only add only the appropriate by querying the xPathFuncExpr.id.name
-                    evaluationContext.addFunctionHandler(new ExternalDataHandlerSearch(externalDataManager, displayColumns, value, imageColumn));
+                    ExternalDataHandlerSearch externalDataHandlerSearch = new ExternalDataHandlerSearch(externalDataManager, displayColumns, value, imageColumn);
+                    externalDataHandlerSearch.setPage(offset, limit, returnedValues);
+                    evaluationContext.addFunctionHandler(externalDataHandlerSearch);
 
                     Object eval = xPathFuncExpr.eval(formInstance, evaluationContext);
                     if (eval.getClass().isAssignableFrom(ArrayList.class)) {
@@ -165,9 +309,10 @@ public final class ExternalDataUtil {
                     } else {
                         throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_search_return_error, eval.getClass().getName()));
                     }
+                    hasMore |= externalDataHandlerSearch.isPageFull();
                 }
             }
-            return returnedChoices;
+            return new ChoicePage(returnedChoices, hasMore);
         } catch (Exception e) {
             throw new ExternalDataException(e.getMessage(), e);
         }
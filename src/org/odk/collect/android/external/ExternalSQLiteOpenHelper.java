@@ -18,8 +18,9 @@
 
 package org.odk.collect.android.external;
 
-import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import au.com.bytecode.opencsv.CSVReader;
 import org.digitalcampus.odk.collect.R;
@@ -33,9 +34,12 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Author: Meletis Margaritis
@@ -48,19 +52,36 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
     private static final char DELIMITING_CHAR = ",".charAt(0);
     private static final char QUOTE_CHAR = "\"".charAt(0);
     private static final char ESCAPE_CHAR = "\0".charAt(0);
+    private static final int PROGRESS_ROW_INTERVAL = 1000;
 
+    private final File dbFile;
     private File dataSetFile;
     private ExternalDataReader externalDataReader;
     private FormLoaderTask formLoaderTask;
+    private Set<String> searchIndexColumns;
+    private Set<String> existingSearchIndexColumns;
 
     public ExternalSQLiteOpenHelper(File dbFile) {
         super(dbFile.getParentFile().getAbsolutePath(), dbFile.getName(), null, VERSION);
+        this.dbFile = dbFile;
+    }
+
+    public File getDbFile() {
+        return dbFile;
     }
 
     public void importFromCSV(File dataSetFile, ExternalDataReader externalDataReader, FormLoaderTask formLoaderTask) {
+        importFromCSV(dataSetFile, externalDataReader, formLoaderTask, null);
+    }
+
+    /**
+     * @param searchIndexColumns safe names of the columns to build a full-text index over, or null for none.
+     */
+    public void importFromCSV(File dataSetFile, ExternalDataReader externalDataReader, FormLoaderTask formLoaderTask, Set<String> searchIndexColumns) {
         this.dataSetFile = dataSetFile;
         this.externalDataReader = externalDataReader;
         this.formLoaderTask = formLoaderTask;
+        this.searchIndexColumns = searchIndexColumns;
 
         SQLiteDatabase writableDatabase = null;
         try {
@@ -157,52 +178,97 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                 }
             }
 
-            // populate the database
-            String[] row = reader.readNext();
-            int rowCount = 0;
-            while (row != null && !formLoaderTask.isCancelled()) {
-                // SCTO-894 - first we should make sure that this is not an empty line
-                if (!ExternalDataUtil.containsAnyData(row)) {
-                    // yes, that is an empty row, ignore it
-                    row = reader.readNext();
+            // map every csv column to its safe column name once, rather than per cell.
+            String[] safeColumnNames = new String[headerRow.length];
+            StringBuilder insertColumns = new StringBuilder();
+            StringBuilder insertParams = new StringBuilder();
+            int sortColumnParam = -1;
+            int paramCount = 0;
+            for (int i = 0; i < headerRow.length; i++) {
+                String columnName = headerRow[i].trim();
+                if (columnName.length() == 0) {
                     continue;
                 }
-
-                // SCTO-894 - then check if the row contains less values than the header
-                // we should not ignore the existing values in the row,
-                // we will just fill up the rest with empty strings
-                if (row.length < headerRow.length) {
-                    row = ExternalDataUtil.fillUpNullValues(row, headerRow);
+                safeColumnNames[i] = ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache);
+                if (paramCount > 0) {
+                    insertColumns.append(", ");
+                    insertParams.append(", ");
                 }
+                insertColumns.append(safeColumnNames[i]);
+                insertParams.append("?");
+                paramCount++;
+            }
+            if (!sortColumnAlreadyPresent) {
+                insertColumns.append(", ").append(ExternalDataUtil.SORT_COLUMN_NAME);
+                insertParams.append(", ?");
+                paramCount++;
+                sortColumnParam = paramCount;
+            }
 
-                ContentValues values = new ContentValues();
-                if (!sortColumnAlreadyPresent) {
-                    values.put(ExternalDataUtil.SORT_COLUMN_NAME, rowCount + 1);
-                }
+            // onCreate() already runs inside the transaction opened by getWritableDatabase(),
+            // so all the inserts below are committed together.
+            SQLiteStatement insertStatement = db.compileStatement("INSERT INTO " + tableName
+                    + " (" + insertColumns + ") VALUES (" + insertParams + ");");
 
-                for (int i = 0; i < row.length && i < headerRow.length; i++) {
-                    String columnName = headerRow[i].trim();
-                    String columnValue = row[i];
-                    if (columnName.length() == 0) {
+            // populate the database
+            try {
+                long startTime = System.currentTimeMillis();
+                String[] row = reader.readNext();
+                int rowCount = 0;
+                while (row != null && !formLoaderTask.isCancelled()) {
+                    // SCTO-894 - first we should make sure that this is not an empty line
+                    if (!ExternalDataUtil.containsAnyData(row)) {
+                        // yes, that is an empty row, ignore it
+                        row = reader.readNext();
                         continue;
                     }
-                    String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName, columnNamesCache);
-                    if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                        try {
-                            values.put(safeColumnName, Double.parseDouble(columnValue));
-                        } catch (NumberFormatException e) {
-                            throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_sortBy_numeric_error, columnValue));
+
+                    // SCTO-894 - then check if the row contains less values than the header
+                    // we should not ignore the existing values in the row,
+                    // we will just fill up the rest with empty strings
+                    if (row.length < headerRow.length) {
+                        row = ExternalDataUtil.fillUpNullValues(row, headerRow);
+                    }
+
+                    insertStatement.clearBindings();
+                    if (sortColumnParam != -1) {
+                        insertStatement.bindLong(sortColumnParam, rowCount + 1);
+                    }
+
+                    int param = 0;
+                    for (int i = 0; i < headerRow.length; i++) {
+                        String safeColumnName = safeColumnNames[i];
+                        if (safeColumnName == null) {
+                            continue;
+                        }
+                        param++;
+                        String columnValue = i < row.length ? row[i] : null;
+                        if (columnValue == null) {
+                            insertStatement.bindNull(param);
+                        } else if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
+                            try {
+                                insertStatement.bindDouble(param, Double.parseDouble(columnValue));
+                            } catch (NumberFormatException e) {
+                                throw new ExternalDataException(Collect.getInstance().getString(R.string.ext_sortBy_numeric_error, columnValue));
+                            }
+                        } else {
+                            insertStatement.bindString(param, columnValue);
                         }
-                    } else {
-                        values.put(safeColumnName, columnValue);
+                    }
+                    insertStatement.executeInsert();
+                    row = reader.readNext();
+                    rowCount++;
+                    if (rowCount % PROGRESS_ROW_INTERVAL == 0) {
+                        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+                        long rowsPerSecond = rowCount * 1000L / elapsed;
+                        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, dataSetFile.getName(),
+                                " (" + rowCount + " records so far, " + rowsPerSecond + " records/sec)"));
                     }
                 }
-                db.insertOrThrow(tableName, null, values);
-                row = reader.readNext();
-                rowCount++;
-                if (rowCount % 100 == 0) {
-                    onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message, dataSetFile.getName(), " (" + rowCount + " records so far)"));
-                }
+                Log.i(ExternalDataUtil.LOGGER_NAME, "Inserted " + rowCount + " records from " + dataSetFile + " in "
+                        + (System.currentTimeMillis() - startTime) + "ms");
+            } finally {
+                insertStatement.close();
             }
 
             if (formLoaderTask.isCancelled()) {
@@ -218,6 +284,8 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
                     db.execSQL(createIndexCommand);
                 }
 
+                createSearchIndex(db, tableName, safeColumnNames);
+
                 Log.w(ExternalDataUtil.LOGGER_NAME, "Read all data from " + dataSetFile);
                 onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
             }
@@ -232,6 +300,66 @@ public class ExternalSQLiteOpenHelper extends ODKSQLiteOpenHelper {
         }
     }
 
+    /**
+     * Builds a full-text index over the columns that search() appearances query, so that prefix searches
+     * do not need to scan the whole table. The index is optional: if it cannot be created the searches
+     * fall back to LIKE expressions.
+     */
+    private void createSearchIndex(SQLiteDatabase db, String tableName, String[] safeColumnNames) {
+        if (searchIndexColumns == null || searchIndexColumns.isEmpty()) {
+            return;
+        }
+
+        StringBuilder columns = new StringBuilder();
+        for (String safeColumnName : safeColumnNames) {
+            if (safeColumnName != null && searchIndexColumns.contains(safeColumnName)) {
+                if (columns.length() > 0) {
+                    columns.append(", ");
+                }
+                columns.append(safeColumnName);
+            }
+        }
+        if (columns.length() == 0) {
+            return;
+        }
+
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME + " USING fts3(" + columns + ");");
+            db.execSQL("INSERT INTO " + ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME + " (docid, " + columns + ") SELECT rowid, "
+                    + columns + " FROM " + tableName + ";");
+            Log.w(ExternalDataUtil.LOGGER_NAME, "Created a full-text index on " + columns + " of " + dataSetFile);
+        } catch (Exception e) {
+            Log.e(ExternalDataUtil.LOGGER_NAME, "Could not create a full-text index for " + dataSetFile + ": " + e.getMessage(), e);
+            db.execSQL("DROP TABLE IF EXISTS " + ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME + ";");
+        }
+    }
+
+    /**
+     * @return the safe names of the columns covered by the full-text index, or an empty set if there is no index.
+     */
+    public synchronized Set<String> getSearchIndexColumns() {
+        if (existingSearchIndexColumns == null) {
+            Set<String> columns = new HashSet<String>();
+            Cursor c = null;
+            try {
+                SQLiteDatabase db = getReadableDatabase();
+                c = db.rawQuery("PRAGMA table_info(" + ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME + ")", null);
+                int nameIndex = c.getColumnIndex("name");
+                while (c.moveToNext()) {
+                    columns.add(c.getString(nameIndex));
+                }
+            } catch (Exception e) {
+                Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage(), e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+            existingSearchIndexColumns = Collections.unmodifiableSet(columns);
+        }
+        return existingSearchIndexColumns;
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
     }
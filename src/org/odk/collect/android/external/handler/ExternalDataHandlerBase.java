@@ -20,6 +20,7 @@ package org.odk.collect.android.external.handler;
 
 import org.odk.collect.android.external.ExternalDataHandler;
 import org.odk.collect.android.external.ExternalDataManager;
+import org.odk.collect.android.external.ExternalDataUtil;
 
 /**
  * Author: Meletis Margaritis
@@ -49,10 +50,6 @@ public abstract class ExternalDataHandlerBase implements ExternalDataHandler {
      * @return the normalized data-set name.
      */
     protected String normalize(String dataSetName) {
-        dataSetName = dataSetName.toLowerCase();
-        if (dataSetName.endsWith(".csv")) {
-            dataSetName = dataSetName.substring(0, dataSetName.lastIndexOf(".csv"));
-        }
-        return dataSetName;
+        return ExternalDataUtil.normalizeDataSetName(dataSetName);
     }
 }
@@ -19,10 +19,14 @@
 package org.odk.collect.android.external.handler;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.odk.collect.android.external.ExternalDataCache;
 import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
@@ -40,8 +44,33 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
 
     public static final String HANDLER_NAME = "pulldata";
 
+    private static final int MAX_CACHED_ROWS = 500;
+
+    /**
+     * When true, the first lookup of a reference value loads every column of the matching row,
+     * so that pulldata() calls for other columns of the same row are answered from memory.
+     */
+    private final boolean rowFetch;
+
+    /**
+     * Rows loaded for this form, keyed by data set, reference column and reference value.
+     * A null row means that no row matched.
+     */
+    private final Map<String, Map<String, String>> rowCache =
+            new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+                    return size() > MAX_CACHED_ROWS;
+                }
+            };
+
     public ExternalDataHandlerPull(ExternalDataManager externalDataManager) {
+        this(externalDataManager, true);
+    }
+
+    public ExternalDataHandlerPull(ExternalDataManager externalDataManager, boolean rowFetch) {
         super(externalDataManager);
+        this.rowFetch = rowFetch;
     }
 
     @Override
@@ -79,7 +108,6 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
         // SCTO-545
         dataSetName = normalize(dataSetName);
 
-        Cursor c = null;
         try {
 
             ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(dataSetName, false);
@@ -87,6 +115,38 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
                 return "";
             }
 
+            ExternalDataCache cache = ExternalDataCache.getInstance();
+            String cachedValue = cache.get(sqLiteOpenHelper.getDbFile(), queriedColumn, referenceColumn, referenceValue);
+            if (cachedValue != null) {
+                return cachedValue;
+            }
+
+            String value;
+            if (rowFetch) {
+                value = pullFromRow(sqLiteOpenHelper, queriedColumn, referenceColumn, referenceValue);
+            } else {
+                value = pullValue(sqLiteOpenHelper, queriedColumn, referenceColumn, referenceValue);
+            }
+            if (value == null) {
+                Log.e(ExternalDataUtil.LOGGER_NAME, "Could not find a value in " + queriedColumn + " where the column " + referenceColumn + " has the value " + referenceValue);
+                value = "";
+            }
+            cache.put(sqLiteOpenHelper.getDbFile(), queriedColumn, referenceColumn, referenceValue, value);
+            return value;
+        } catch (Exception e) {
+            Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage());
+            return "";
+        }
+    }
+
+    /**
+     * Queries the single queried column of the first matching row.
+     *
+     * @return the value, or null if no row matched.
+     */
+    private String pullValue(ExternalSQLiteOpenHelper sqLiteOpenHelper, String queriedColumn, String referenceColumn, String referenceValue) {
+        Cursor c = null;
+        try {
             SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
             String[] columns = {ExternalDataUtil.toSafeColumnName(queriedColumn)};
             String selection = ExternalDataUtil.toSafeColumnName(referenceColumn) + "=?";
@@ -97,12 +157,64 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
                 c.moveToFirst();
                 return ExternalDataUtil.nullSafe(c.getString(0));
             } else {
-                Log.e(ExternalDataUtil.LOGGER_NAME, "Could not find a value in " + queriedColumn + " where the column " + referenceColumn + " has the value " + referenceValue);
-                return "";
+                return null;
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Answers the lookup from the cached row of the reference value, loading every column
+     * of that row on the first lookup.
+     *
+     * @return the value, or null if no row matched.
+     */
+    private String pullFromRow(ExternalSQLiteOpenHelper sqLiteOpenHelper, String queriedColumn, String referenceColumn, String referenceValue) {
+        String safeQueriedColumn = ExternalDataUtil.toSafeColumnName(queriedColumn);
+        String safeReferenceColumn = ExternalDataUtil.toSafeColumnName(referenceColumn);
+        String rowKey = sqLiteOpenHelper.getDbFile().getAbsolutePath() + "\0" + safeReferenceColumn + "\0" + referenceValue;
+
+        Map<String, String> row;
+        synchronized (rowCache) {
+            if (rowCache.containsKey(rowKey)) {
+                row = rowCache.get(rowKey);
+            } else {
+                row = loadRow(sqLiteOpenHelper, safeReferenceColumn, referenceValue);
+                rowCache.put(rowKey, row);
+            }
+        }
+
+        if (row == null) {
+            return null;
+        }
+        if (!row.containsKey(safeQueriedColumn)) {
+            throw new IllegalArgumentException("no such column: " + queriedColumn);
+        }
+        return row.get(safeQueriedColumn);
+    }
+
+    private Map<String, String> loadRow(ExternalSQLiteOpenHelper sqLiteOpenHelper, String safeReferenceColumn, String referenceValue) {
+        Cursor c = null;
+        try {
+            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+            String selection = safeReferenceColumn + "=?";
+            String[] selectionArgs = {referenceValue};
+
+            c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, null, selection, selectionArgs, null, null, null, "1");
+            if (c.getCount() > 0) {
+                c.moveToFirst();
+                String[] columnNames = c.getColumnNames();
+                Map<String, String> row = new HashMap<String, String>();
+                for (int i = 0; i < columnNames.length; i++) {
+                    row.put(columnNames[i], ExternalDataUtil.nullSafe(c.getString(i)));
+                }
+                return row;
+            } else {
+                return null;
             }
-        } catch (Exception e) {
-            Log.e(ExternalDataUtil.LOGGER_NAME, e.getMessage());
-            return "";
         } finally {
             if (c != null) {
                 c.close();
@@ -46,6 +46,11 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
     private final String valueColumn;
     private final String imageColumn;
 
+    private int offset = 0;
+    private int limit = -1;
+    private Set<String> returnedValues = null;
+    private int rowsRead = 0;
+
     public ExternalDataHandlerSearch(ExternalDataManager externalDataManager, String displayColumns, String valueColumn, String imageColumn) {
         super(externalDataManager);
         this.displayColumns = displayColumns;
@@ -65,6 +70,27 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         return imageColumn;
     }
 
+    /**
+     * Restricts the results to one page of the matching rows.
+     *
+     * @param offset         the number of rows to skip
+     * @param limit          the maximum number of rows to read, or -1 for no limit
+     * @param returnedValues the values returned by the earlier pages, which are skipped; the values
+     *                       of this page are added to it. May be null.
+     */
+    public void setPage(int offset, int limit, Set<String> returnedValues) {
+        this.offset = offset;
+        this.limit = limit;
+        this.returnedValues = returnedValues;
+    }
+
+    /**
+     * @return true if the last evaluation read a whole page, so that the next page may hold more rows
+     */
+    public boolean isPageFull() {
+        return limit >= 0 && rowsRead >= limit;
+    }
+
     @Override
     public String getName() {
         return HANDLER_NAME;
@@ -162,16 +188,37 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
                 selectionArgs = null;
             }
 
+            if (searchRows && externalDataSearchType.isPrefixSearch()
+                    && sqLiteOpenHelper.getSearchIndexColumns().containsAll(queriedColumns)) {
+                String token = ExternalDataUtil.getLeadingSearchToken(queriedValue);
+                if (token != null) {
+                    // narrow the candidate rows through the full-text index; the LIKE expression
+                    // above still decides the exact matches.
+                    selection = "rowid IN (SELECT docid FROM " + ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME + " WHERE "
+                            + ExternalDataUtil.EXTERNAL_DATA_FTS_TABLE_NAME + " MATCH ?) AND ( " + selection + " )";
+                    String[] indexedArgs = new String[selectionArgs.length + 1];
+                    indexedArgs[0] = token + "*";
+                    System.arraycopy(selectionArgs, 0, indexedArgs, 1, selectionArgs.length);
+                    selectionArgs = indexedArgs;
+                }
+            }
+
+            String limitClause = null;
+            if (limit >= 0) {
+                limitClause = offset + "," + limit;
+            }
+
             try {
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME);
+                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME, limitClause);
             } catch (Exception e) {
                 if ( c != null ) { 
                   c.close();
                 }
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, null);
+                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection, selectionArgs, null, null, null, limitClause);
             }
 
-            return createDynamicSelectChoices(c, selectColumnMap, safeImageColumn);
+            rowsRead = c.getCount();
+            return createDynamicSelectChoices(c, selectColumnMap, safeImageColumn, offset, returnedValues);
         } finally {
             if (c != null) {
                 c.close();
@@ -180,6 +227,14 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
     }
 
     protected ArrayList<SelectChoice> createDynamicSelectChoices(Cursor c, LinkedHashMap<String, String> selectColumnMap, String safeImageColumn) {
+        return createDynamicSelectChoices(c, selectColumnMap, safeImageColumn, 0, null);
+    }
+
+    /**
+     * @param firstIndex     the index of the first choice, so that the choices of later pages do not reuse indexes
+     * @param returnedValues the values already returned by earlier pages, to which the new ones are added; may be null
+     */
+    protected ArrayList<SelectChoice> createDynamicSelectChoices(Cursor c, LinkedHashMap<String, String> selectColumnMap, String safeImageColumn, int firstIndex, Set<String> returnedValues) {
         List<String> columnsToExcludeFromLabels = new ArrayList<String>();
         if (safeImageColumn != null) {
             columnsToExcludeFromLabels.add(safeImageColumn);
@@ -188,8 +243,8 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         ArrayList<SelectChoice> selectChoices = new ArrayList<SelectChoice>();
         if (c.getCount() > 0) {
             c.moveToPosition(-1);
-            int index = 0;
-            Set<String> uniqueValues = new HashSet<String>();
+            int index = firstIndex;
+            Set<String> uniqueValues = (returnedValues == null) ? new HashSet<String>() : returnedValues;
             while (c.moveToNext()) {
 
                 // the value is always the first column
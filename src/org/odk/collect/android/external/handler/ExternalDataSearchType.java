@@ -37,6 +37,11 @@ enum ExternalDataSearchType {
         protected String getSingleLikeArgument(String queriedValue) {
             return queriedValue;
         }
+
+        @Override
+        public boolean isPrefixSearch() {
+            return true;
+        }
     },
 
     STARTS("startsWith") {
@@ -44,6 +49,11 @@ enum ExternalDataSearchType {
         protected String getSingleLikeArgument(String queriedValue) {
             return queriedValue + '%';
         }
+
+        @Override
+        public boolean isPrefixSearch() {
+            return true;
+        }
     },
 
     ENDS("endsWith") {
@@ -84,5 +94,13 @@ enum ExternalDataSearchType {
         return args;
     }
 
+    /**
+     * @return true if every match starts with the queried value, so that it can be answered
+     *         through a prefix query on the full-text index.
+     */
+    public boolean isPrefixSearch() {
+        return false;
+    }
+
     protected abstract String getSingleLikeArgument(String queriedValue);
 }
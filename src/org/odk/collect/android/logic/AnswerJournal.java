@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.javarosa.xform.util.XFormAnswerDataParser;
+import org.odk.collect.android.application.Collect;
+
+import android.util.Log;
+
+/**
+ * Append-only journal of the answers given since the last savepoint of an
+ * instance. Each answer saved through the {@link FormController} is appended
+ * as an (XPath, answer) line, so a savepoint only needs a full serialization
+ * of the instance (a compaction) every {@link #COMPACTION_THRESHOLD} answers
+ * or after a repeat is added or removed.
+ * <p/>
+ * A compaction moves the journal aside before the savepoint is serialized;
+ * once the savepoint is written, the moved journal is deleted. On reload,
+ * {@link FormController#replayAnswerJournal()} replays the moved journal (if
+ * the savepoint was not written) and then the journal over the savepoint.
+ */
+public class AnswerJournal {
+    private final static String t = "AnswerJournal";
+
+    /**
+     * Number of journaled answers after which the next savepoint compacts the journal.
+     */
+    public static final int COMPACTION_THRESHOLD = 50;
+
+    private static final String JOURNAL_EXTENSION = ".journal";
+    private static final String COMPACTING_EXTENSION = ".journal.old";
+
+    private static final char ANSWER = 'A';
+    private static final char CLEARED = 'C';
+    // the repeats changed; later answers may not apply to an older savepoint
+    private static final char STRUCTURE_CHANGED = 'S';
+
+    private final File mJournalFile;
+    private final File mCompactingFile;
+    private FileOutputStream mOut = null;
+    private int mEntries = 0;
+    private boolean mStructureChanged = false;
+    private int mGeneration = 0;
+    // the last value journaled for each XPath since the last compaction
+    private final HashMap<String, String> mJournaled = new HashMap<String, String>();
+
+    public AnswerJournal(File instancePath) {
+        mJournalFile = journalFile(instancePath);
+        mCompactingFile = compactingFile(instancePath);
+    }
+
+    public static File journalFile(File instancePath) {
+        return new File(Collect.CACHE_PATH, instancePath.getName() + JOURNAL_EXTENSION);
+    }
+
+    private static File compactingFile(File instancePath) {
+        return new File(Collect.CACHE_PATH, instancePath.getName() + COMPACTING_EXTENSION);
+    }
+
+    /**
+     * Records the answer saved into the question at xpath.
+     *
+     * @param xpath as produced by {@link FormController#getQuestionXPath(FormIndex)}
+     * @param data the answer, or null if it was cleared
+     */
+    public synchronized void append(String xpath, IAnswerData data) {
+        String value = (data == null) ? null : data.uncast().getString();
+        // every answer on the screen is saved on each swipe; only journal changes
+        if (mJournaled.containsKey(xpath)) {
+            String journaled = mJournaled.get(xpath);
+            if (journaled == null ? value == null : journaled.equals(value)) {
+                return;
+            }
+        }
+        if (value == null) {
+            write(CLEARED + "\t" + escape(xpath) + "\n");
+        } else {
+            write(ANSWER + "\t" + escape(xpath) + "\t" + escape(value) + "\n");
+        }
+        mJournaled.put(xpath, value);
+        ++mEntries;
+    }
+
+    /**
+     * Records that a repeat was added or removed. The journaled XPaths of
+     * later answers only apply to an instance serialized after this point.
+     */
+    public synchronized void appendStructureChange() {
+        write(STRUCTURE_CHANGED + "\n");
+        mStructureChanged = true;
+        mJournaled.clear();
+    }
+
+    private void write(String line) {
+        try {
+            if (mOut == null) {
+                mOut = new FileOutputStream(mJournalFile, true);
+            }
+            // unbuffered, so the answer survives the process being killed
+            mOut.write(line.getBytes("UTF-8"));
+        } catch (IOException e) {
+            Log.e(t, "Unable to journal to " + mJournalFile.getAbsolutePath(), e);
+            // force a full savepoint instead
+            mStructureChanged = true;
+        }
+    }
+
+    /**
+     * @return true if the next savepoint must serialize the whole instance
+     */
+    public synchronized boolean needsCompaction() {
+        return mStructureChanged || mEntries >= COMPACTION_THRESHOLD;
+    }
+
+    /**
+     * Moves the current journal aside. Must be called before the instance is
+     * serialized for the savepoint.
+     *
+     * @return the generation to pass to {@link #endCompaction(int)}
+     */
+    public synchronized int beginCompaction() {
+        IOUtils.closeQuietly(mOut);
+        mOut = null;
+        if (mJournalFile.exists()) {
+            if (mCompactingFile.exists()) {
+                // an earlier savepoint did not complete; keep both journals
+                appendTo(mJournalFile, mCompactingFile);
+                mJournalFile.delete();
+            } else if (!mJournalFile.renameTo(mCompactingFile)) {
+                Log.w(t, "Unable to move " + mJournalFile.getName() + " aside");
+            }
+        }
+        mEntries = 0;
+        mStructureChanged = false;
+        mJournaled.clear();
+        return ++mGeneration;
+    }
+
+    /**
+     * Deletes the journal moved aside by {@link #beginCompaction()}, now that
+     * the savepoint holding its answers is written, unless another
+     * compaction has begun since.
+     */
+    public synchronized void endCompaction(int generation) {
+        if (generation == mGeneration && mCompactingFile.exists()) {
+            mCompactingFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the journal (e.g., because the instance was saved).
+     */
+    public synchronized void reset() {
+        IOUtils.closeQuietly(mOut);
+        mOut = null;
+        mJournalFile.delete();
+        mCompactingFile.delete();
+        mEntries = 0;
+        mStructureChanged = false;
+        mJournaled.clear();
+        ++mGeneration;
+    }
+
+    public synchronized void close() {
+        IOUtils.closeQuietly(mOut);
+        mOut = null;
+    }
+
+    /**
+     * @return true if the journal holds answers given after instance was last written
+     */
+    public synchronized boolean isNewerThan(File instance) {
+        long saved = instance.exists() ? instance.lastModified() : 0L;
+        return (mCompactingFile.exists() && mCompactingFile.lastModified() > saved)
+                || (mJournalFile.exists() && mJournalFile.lastModified() > saved);
+    }
+
+    /**
+     * Saves the journaled answers into the form, stopping at the first
+     * repeat change. Use {@link FormController#replayAnswerJournal()} rather
+     * than calling this directly, so that the replay is not journaled again.
+     *
+     * @return the number of answers replayed
+     */
+    synchronized int replay(FormController formController) {
+        int replayed = 0;
+        for (File journal : new File[] { mCompactingFile, mJournalFile }) {
+            if (!journal.exists()) {
+                continue;
+            }
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    if (line.charAt(0) == STRUCTURE_CHANGED) {
+                        Log.w(t, "Stopped replaying " + journal.getName() + " at a repeat change");
+                        return replayed;
+                    }
+                    if (replayLine(formController, line)) {
+                        ++replayed;
+                    }
+                }
+            } catch (IOException e) {
+                // a partially written last line; keep what was replayed
+                Log.e(t, "Error reading " + journal.getAbsolutePath(), e);
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+        }
+        return replayed;
+    }
+
+    private boolean replayLine(FormController formController, String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 2 || (fields[0].charAt(0) == ANSWER && fields.length < 3)) {
+            Log.w(t, "Skipping malformed journal entry: " + line);
+            return false;
+        }
+        String xpath = unescape(fields[1]);
+        FormIndex index = formController.getIndexFromXPath(xpath);
+        if (index == null) {
+            Log.w(t, "Skipping journaled answer to unknown question: " + xpath);
+            return false;
+        }
+        try {
+            IAnswerData data = null;
+            if (fields[0].charAt(0) == ANSWER) {
+                FormEntryPrompt prompt = formController.getQuestionPrompt(index);
+                data = XFormAnswerDataParser.getAnswerData(unescape(fields[2]),
+                        prompt.getDataType(), prompt.getQuestion());
+            }
+            return formController.saveAnswer(index, data);
+        } catch (Exception e) {
+            Log.w(t, "Unable to replay the journaled answer to " + xpath + ": " + e.toString());
+            return false;
+        }
+    }
+
+    private static void appendTo(File source, File destination) {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(source);
+            out = new FileOutputStream(destination, true);
+            IOUtils.copy(in, out);
+        } catch (IOException e) {
+            Log.e(t, "Unable to append " + source.getName() + " to " + destination.getName(), e);
+        } finally {
+            IOUtils.closeQuietly(in);
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private static String escape(String value) {
+        StringBuilder b = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                default:
+                    b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    private static String unescape(String value) {
+        StringBuilder b = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char n = value.charAt(++i);
+                switch (n) {
+                    case 't':
+                        b.append('\t');
+                        break;
+                    case 'n':
+                        b.append('\n');
+                        break;
+                    case 'r':
+                        b.append('\r');
+                        break;
+                    default:
+                        b.append(n);
+                }
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+}
@@ -17,6 +17,7 @@ package org.odk.collect.android.logic;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -33,11 +34,13 @@ import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.StringData;
 import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.services.IPropertyManager;
 import org.javarosa.core.services.PrototypeManager;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.model.xform.XFormSerializingVisitor;
 import org.javarosa.model.xform.XFormsModule;
@@ -155,10 +158,31 @@ public class FormController {
     private FormEntryController mFormEntryController;
     private FormIndex mIndexWaitingForData = null;
 
+    /**
+     * XPath (as produced by getXPath) to FormIndex lookup table. Built lazily
+     * on the first call to getIndexFromXPath and kept up to date by newRepeat
+     * and deleteRepeat so that resuming a large form does not walk it again.
+     * As answers can change the relevance of questions, each hit is checked
+     * against the model, and a miss falls back to walking the form.
+     */
+    private HashMap<String, FormIndex> mXPathIndex = null;
+
+    /**
+     * Journal of the answers saved since the last savepoint, or null if
+     * there is no instance path yet.
+     */
+    private AnswerJournal mAnswerJournal = null;
+
+    /**
+     * Whether the form has repeats with a jr:count, which stepping onto
+     * creates. Computed lazily, as the structure of a form never changes.
+     */
+    private Boolean mHasCountedRepeats = null;
+
     public FormController(File mediaFolder, FormEntryController fec, File instancePath) {
     	mMediaFolder = mediaFolder;
         mFormEntryController = fec;
-        mInstancePath = instancePath;
+        setInstancePath(instancePath);
     }
 
     public FormDef getFormDef() {
@@ -175,6 +199,33 @@ public class FormController {
 
     public void setInstancePath(File instancePath) {
     	mInstancePath = instancePath;
+    	if (mAnswerJournal != null) {
+    		mAnswerJournal.close();
+    	}
+    	mAnswerJournal = (instancePath == null) ? null : new AnswerJournal(instancePath);
+    }
+
+    public AnswerJournal getAnswerJournal() {
+    	return mAnswerJournal;
+    }
+
+    /**
+     * Saves the answers journaled since the last savepoint into the form,
+     * without journaling them again.
+     *
+     * @return the number of answers replayed
+     */
+    public int replayAnswerJournal() {
+    	AnswerJournal journal = mAnswerJournal;
+    	if (journal == null) {
+    		return 0;
+    	}
+    	mAnswerJournal = null;
+    	try {
+    		return journal.replay(this);
+    	} finally {
+    		mAnswerJournal = journal;
+    	}
     }
 
     public void setIndexWaitingForData(FormIndex index) {
@@ -192,8 +243,12 @@ public class FormController {
      * @return xpath value for this index
      */
     public String getXPath(FormIndex index) {
+    	return getXPath(index, getEvent());
+    }
+
+    private String getXPath(FormIndex index, int event) {
     	String value;
-    	switch ( getEvent() ) {
+    	switch ( event ) {
     	case FormEntryController.EVENT_BEGINNING_OF_FORM:
     		value = "beginningOfForm";
     		break;
@@ -222,6 +277,14 @@ public class FormController {
     	return value;
     }
 
+    /**
+     * @return the XPath of the question at index, whatever the current event
+     *         is (e.g., the group of a field-list screen)
+     */
+    public String getQuestionXPath(FormIndex index) {
+    	return getXPath(index, FormEntryController.EVENT_QUESTION);
+    }
+
     public FormIndex getIndexFromXPath(String xPath) {
     	if ( xPath.equals("beginningOfForm") ) {
             return FormIndex.createBeginningOfFormIndex();
@@ -231,27 +294,150 @@ public class FormController {
     		Log.e(t, "Unexpected string from XPath");
     		throw new IllegalArgumentException("unexpected string from XPath");
     	} else {
-    		FormIndex returned = null;
-			FormIndex saved = getFormIndex();
-			// the only way I know how to do this is to step through the entire form
-			// until the XPath of a form entry matches that of the supplied XPath
-			try {
-				jumpToIndex(FormIndex.createBeginningOfFormIndex());
-				int event = stepToNextEvent(true);
-				while ( event != FormEntryController.EVENT_END_OF_FORM ) {
-					String candidateXPath = getXPath(getFormIndex());
-					// Log.i(t, "xpath: " + candidateXPath);
-					if ( candidateXPath.equals(xPath) ) {
-						returned = getFormIndex();
-						break;
+    		if ( mXPathIndex == null ) {
+    			buildXPathIndex();
+    		}
+    		FormIndex index = mXPathIndex.get(xPath);
+    		if ( index != null && isIndexedAs(index, xPath) ) {
+    			return index;
+    		}
+    		// answers may have changed relevance since the index was built
+    		index = findIndexFromXPath(xPath);
+    		if ( index != null ) {
+    			mXPathIndex.put(xPath, index);
+    		} else {
+    			mXPathIndex.remove(xPath);
+    		}
+    		return index;
+    	}
+    }
+
+    /**
+     * @return true if index is still relevant, and still has the given XPath
+     */
+    private boolean isIndexedAs(FormIndex index, String xPath) {
+    	try {
+    		FormEntryModel model = mFormEntryController.getModel();
+    		return model.isIndexRelevant(index)
+    				&& getXPath(index, model.getEvent(index)).equals(xPath);
+    	} catch (RuntimeException e) {
+    		// e.g., the repeat it was in has been removed
+    		return false;
+    	}
+    }
+
+    /**
+     * Step through the form until the XPath of a form entry matches xPath.
+     *
+     * @return the first matching index, or null if there is none
+     */
+    private FormIndex findIndexFromXPath(String xPath) {
+		FormIndex saved = getFormIndex();
+		try {
+			jumpToIndex(FormIndex.createBeginningOfFormIndex());
+			int event = stepToNextEvent(true);
+			while ( event != FormEntryController.EVENT_END_OF_FORM ) {
+				FormIndex index = getFormIndex();
+				if ( getXPath(index, event).equals(xPath) ) {
+					return index;
+				}
+				event = stepToNextEvent(true);
+			}
+			return null;
+		} finally {
+			jumpToIndex(saved);
+		}
+    }
+
+    /**
+     * Step through the entire form once, recording the XPath of every form entry.
+     */
+    private void buildXPathIndex() {
+    	long start = System.currentTimeMillis();
+    	HashMap<String, FormIndex> xPathIndex = new HashMap<String, FormIndex>();
+		FormIndex saved = getFormIndex();
+		try {
+			jumpToIndex(FormIndex.createBeginningOfFormIndex());
+			int event = stepToNextEvent(true);
+			while ( event != FormEntryController.EVENT_END_OF_FORM ) {
+				FormIndex index = getFormIndex();
+				String xPath = getXPath(index, event);
+				// the first entry with a given XPath, as the walk would find
+				if ( !xPathIndex.containsKey(xPath) ) {
+					xPathIndex.put(xPath, index);
+				}
+				event = stepToNextEvent(true);
+			}
+		} finally {
+			jumpToIndex(saved);
+		}
+		mXPathIndex = xPathIndex;
+		Log.i(t, "XPath index built with " + xPathIndex.size() + " entries in "
+				+ (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Re-index the entries of one repeat (and its later siblings) after the repeat
+     * structure has changed. Entries from repeatRef onward are dropped, then the form
+     * is walked from 'start' for as long as it stays within the affected repeats.
+     *
+     * @param start index at or just before the first affected repeat instance
+     * @param repeatRef reference to the first affected repeat instance
+     */
+    private void reindexRepeat(FormIndex start, TreeReference repeatRef) {
+    	if ( mXPathIndex == null ) {
+    		return;
+    	}
+
+    	Iterator<FormIndex> it = mXPathIndex.values().iterator();
+    	while ( it.hasNext() ) {
+    		FormIndex index = it.next();
+    		if ( isInRepeatOrLaterSibling(index.getReference(), repeatRef) ) {
+    			it.remove();
+    		}
+    	}
+
+		FormIndex saved = getFormIndex();
+		try {
+			boolean entered = false;
+			int event = jumpToIndex(start);
+			while ( event != FormEntryController.EVENT_END_OF_FORM ) {
+				FormIndex index = getFormIndex();
+				if ( event != FormEntryController.EVENT_BEGINNING_OF_FORM
+						&& isInRepeatOrLaterSibling(index.getReference(), repeatRef) ) {
+					String xPath = getXPath(index, event);
+					if ( !mXPathIndex.containsKey(xPath) ) {
+						mXPathIndex.put(xPath, index);
 					}
-					event = stepToNextEvent(true);
+					entered = true;
+				} else if ( entered ) {
+					break;
 				}
-			} finally {
-				jumpToIndex(saved);
+				event = stepToNextEvent(true);
 			}
-			return returned;
+		} finally {
+			jumpToIndex(saved);
+		}
+    }
+
+    /**
+     * @return true if ref is repeatRef, a later instance of the same repeat, or is
+     *         contained within either.
+     */
+    private boolean isInRepeatOrLaterSibling(TreeReference ref, TreeReference repeatRef) {
+    	if ( ref == null ) {
+    		return false;
     	}
+    	int level = repeatRef.size() - 1;
+    	if ( ref.size() <= level ) {
+    		return false;
+    	}
+    	TreeReference parent = repeatRef.getParentRef();
+    	if ( parent != null && !parent.isParentOf(ref, true) ) {
+    		return false;
+    	}
+    	return repeatRef.getName(level).equals(ref.getName(level))
+    			&& ref.getMultiplicity(level) >= repeatRef.getMultiplicity(level);
     }
 
     /**
@@ -465,11 +651,16 @@ public class FormController {
      * @return
      */
     public int answerQuestion(FormIndex index, IAnswerData data) throws JavaRosaException {
+       int result;
        try {
-          return mFormEntryController.answerQuestion(index, data, true);
+          result = mFormEntryController.answerQuestion(index, data, true);
       } catch (Exception e) {
          throw new JavaRosaException(e);
       }
+       if (result == FormEntryController.ANSWER_OK && mAnswerJournal != null) {
+          mAnswerJournal.append(getQuestionXPath(index), data);
+       }
+       return result;
     }
 
     /**
@@ -502,11 +693,16 @@ public class FormController {
      * @return true if saved successfully, false otherwise.
      */
     public boolean saveAnswer(FormIndex index, IAnswerData data) throws JavaRosaException {
+        boolean saved;
         try {
-            return mFormEntryController.saveAnswer(index, data, true);
+            saved = mFormEntryController.saveAnswer(index, data, true);
         } catch (Exception e) {
             throw new JavaRosaException(e);
         }
+        if (saved && mAnswerJournal != null) {
+            mAnswerJournal.append(getQuestionXPath(index), data);
+        }
+        return saved;
     }
 
 
@@ -666,6 +862,82 @@ public class FormController {
     }
 
 
+    /**
+     * The screen stepToNextScreenEvent would move to, read without leaving
+     * the current one.
+     */
+    public static class ScreenLookAhead {
+        public final FormIndex index;
+        public final FormEntryPrompt[] prompts;
+        public final FormEntryCaption[] groups;
+
+        ScreenLookAhead(FormIndex index, FormEntryPrompt[] prompts, FormEntryCaption[] groups) {
+            this.index = index;
+            this.prompts = prompts;
+            this.groups = groups;
+        }
+    }
+
+
+    /**
+     * Looks ahead at the screen stepToNextScreenEvent would move to. The
+     * current FormIndex is left unchanged.
+     *
+     * @return the next screen, or null if it is not a question or field-list
+     *         (or if stepping to it could change the instance, by creating the
+     *         instances of a counted repeat)
+     */
+    public ScreenLookAhead lookAheadToNextScreen() {
+        if (hasCountedRepeats() || getEvent() == FormEntryController.EVENT_END_OF_FORM) {
+            return null;
+        }
+        FormIndex current = getFormIndex();
+        try {
+            int event = stepToNextScreenEvent();
+            if (event == FormEntryController.EVENT_QUESTION
+                    || event == FormEntryController.EVENT_GROUP
+                    || event == FormEntryController.EVENT_REPEAT) {
+                return new ScreenLookAhead(getFormIndex(), getQuestionPrompts(),
+                        getGroupsForCurrentIndex());
+            }
+            return null;
+        } catch (JavaRosaException e) {
+            Log.w(t, "Unable to look ahead: " + e.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            Log.w(t, "Unable to look ahead: " + e.getMessage());
+            return null;
+        } finally {
+            mFormEntryController.jumpToIndex(current);
+        }
+    }
+
+
+    private boolean hasCountedRepeats() {
+        if (mHasCountedRepeats == null) {
+            mHasCountedRepeats = hasCountedRepeats(getFormDef().getChildren());
+        }
+        return mHasCountedRepeats;
+    }
+
+
+    private static boolean hasCountedRepeats(List<IFormElement> children) {
+        if (children == null) {
+            return false;
+        }
+        for (IFormElement child : children) {
+            if (child instanceof GroupDef) {
+                GroupDef gd = (GroupDef) child;
+                if ((gd.getRepeat() && gd.getCountReference() != null)
+                        || hasCountedRepeats(gd.getChildren())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
     /**
      * Move the current form index to the index of the first enclosing repeat
      * or to the start of the form.
@@ -825,6 +1097,11 @@ public class FormController {
      */
     public void newRepeat() {
         mFormEntryController.newRepeat();
+        if (mAnswerJournal != null) {
+            mAnswerJournal.appendStructureChange();
+        }
+        // the prompt for this repeat is now the repeat itself, followed by a new prompt
+        reindexRepeat(getFormIndex(), getFormIndex().getReference());
     }
 
 
@@ -834,8 +1111,27 @@ public class FormController {
      * (2) > group2 (3) and you call deleteRepeat, it will delete the 3rd instance of group2.
      */
     public void deleteRepeat() {
+        TreeReference repeatRef = null;
+        FormEntryCaption[] groups = getCaptionHierarchy();
+        for (int i = groups.length - 1; i > -1; i--) {
+            if (groups[i].repeats()) {
+                repeatRef = groups[i].getIndex().getReference();
+                break;
+            }
+        }
+
         FormIndex fi = mFormEntryController.deleteRepeat();
         mFormEntryController.jumpToIndex(fi);
+        if (mAnswerJournal != null) {
+            mAnswerJournal.appendStructureChange();
+        }
+
+        if (repeatRef != null) {
+            // later instances of this repeat have shifted down by one
+            reindexRepeat(fi, repeatRef);
+        } else {
+            mXPathIndex = null;
+        }
     }
 
 
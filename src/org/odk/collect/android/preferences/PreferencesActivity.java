@@ -63,6 +63,7 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
   public static final String KEY_SPLASH_PATH = "splashPath";
   public static final String KEY_FONT_SIZE = "font_size";
   public static final String KEY_DELETE_AFTER_SEND = "delete_send";
+  public static final String KEY_ENCRYPT_ON_UPLOAD = "encrypt_on_upload";
 
   public static final String KEY_PROTOCOL = "protocol";
   public static final String KEY_PROTOCOL_SETTINGS = "protocol_settings";
@@ -97,11 +98,16 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
 
   public static final String KEY_HIGH_RESOLUTION = "high_resolution";
 
+  public static final String KEY_IMAGE_MAX_DIMENSION = "image_max_dimension";
+  public static final String KEY_IMAGE_JPEG_QUALITY = "image_jpeg_quality";
+
   public static final String KEY_AUTH = "auth";
 
   public static final String KEY_AUTOSEND_WIFI = "autosend_wifi";
   public static final String KEY_AUTOSEND_NETWORK = "autosend_network";
 
+  public static final String KEY_UPLOAD_PARALLELISM = "upload_parallelism";
+
   public static final String KEY_NAVIGATION = "navigation";
   public static final String KEY_CONSTRAINT_BEHAVIOR = "constraint_behavior";
 
@@ -115,6 +121,9 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
   private CheckBoxPreference mAutosendWifiPreference;
   private CheckBoxPreference mAutosendNetworkPreference;
   private ListPreference mProtocolPreference;
+  private ListPreference mUploadParallelismPreference;
+  private ListPreference mImageMaxDimensionPreference;
+  private ListPreference mImageJpegQualityPreference;
 
   private PreferenceScreen mProtocolSettings;
 
@@ -176,6 +185,45 @@ public class PreferencesActivity extends PreferenceActivity implements OnPrefere
       getPreferenceScreen().removePreference(autosendCategory);
     }
 
+    mUploadParallelismPreference = (ListPreference) findPreference(KEY_UPLOAD_PARALLELISM);
+    mUploadParallelismPreference.setSummary(mUploadParallelismPreference.getEntry());
+    mUploadParallelismPreference.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+
+      @Override
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+        String entry = (String) ((ListPreference) preference).getEntries()[index];
+        ((ListPreference) preference).setSummary(entry);
+        return true;
+      }
+    });
+
+    mImageMaxDimensionPreference = (ListPreference) findPreference(KEY_IMAGE_MAX_DIMENSION);
+    mImageMaxDimensionPreference.setSummary(mImageMaxDimensionPreference.getEntry());
+    mImageMaxDimensionPreference.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+
+      @Override
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+        String entry = (String) ((ListPreference) preference).getEntries()[index];
+        ((ListPreference) preference).setSummary(entry);
+        return true;
+      }
+    });
+
+    mImageJpegQualityPreference = (ListPreference) findPreference(KEY_IMAGE_JPEG_QUALITY);
+    mImageJpegQualityPreference.setSummary(mImageJpegQualityPreference.getEntry());
+    mImageJpegQualityPreference.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
+
+      @Override
+      public boolean onPreferenceChange(Preference preference, Object newValue) {
+        int index = ((ListPreference) preference).findIndexOfValue(newValue.toString());
+        String entry = (String) ((ListPreference) preference).getEntries()[index];
+        ((ListPreference) preference).setSummary(entry);
+        return true;
+      }
+    });
+
     mProtocolPreference = (ListPreference) findPreference(KEY_PROTOCOL);
     mProtocolPreference.setSummary(mProtocolPreference.getEntry());
     Intent prefIntent = null;
@@ -16,12 +16,14 @@ package org.odk.collect.android.provider;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Locale;
 
 import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileHashDbAdapter;
 import org.odk.collect.android.database.ItemsetDbAdapter;
 import org.odk.collect.android.database.ODKSQLiteOpenHelper;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
@@ -29,8 +31,11 @@ import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.MediaUtils;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -48,7 +53,7 @@ public class FormsProvider extends ContentProvider {
 	private static final String t = "FormsProvider";
 
 	private static final String DATABASE_NAME = "forms.db";
-	private static final int DATABASE_VERSION = 4;
+	private static final int DATABASE_VERSION = 5;
 	private static final String FORMS_TABLE_NAME = "forms";
 
 	private static HashMap<String, String> sFormsProjectionMap;
@@ -94,6 +99,8 @@ public class FormsProvider extends ContentProvider {
 					+ FormsColumns.LANGUAGE + " text, "
 					+ FormsColumns.SUBMISSION_URI + " text, "
 					+ FormsColumns.BASE64_RSA_PUBLIC_KEY + " text, "
+					+ FormsColumns.FORM_FILE_LENGTH + " integer, "
+					+ FormsColumns.FORM_FILE_LAST_MODIFIED + " integer, "
 					+ FormsColumns.JRCACHE_FILE_PATH + " text not null );");
 		}
 
@@ -107,6 +114,13 @@ public class FormsProvider extends ContentProvider {
 				db.execSQL("DROP TABLE IF EXISTS " + FORMS_TABLE_NAME);
 				onCreate(db);
 				return;
+			} else if (oldVersion >= 4) {
+				// adding FORM_FILE_LENGTH and FORM_FILE_LAST_MODIFIED, which
+				// are null until the md5s are taken again
+				db.execSQL("ALTER TABLE " + FORMS_TABLE_NAME + " ADD COLUMN "
+						+ FormsColumns.FORM_FILE_LENGTH + " integer");
+				db.execSQL("ALTER TABLE " + FORMS_TABLE_NAME + " ADD COLUMN "
+						+ FormsColumns.FORM_FILE_LAST_MODIFIED + " integer");
 			} else {
 				// adding BASE64_RSA_PUBLIC_KEY and changing type and name of
 				// integer MODEL_VERSION to text VERSION
@@ -353,11 +367,7 @@ public class FormsProvider extends ContentProvider {
 		}
 
 		// don't let users put in a manual md5 hash
-		if (values.containsKey(FormsColumns.MD5_HASH)) {
-			values.remove(FormsColumns.MD5_HASH);
-		}
-		String md5 = FileUtils.getMd5Hash(form);
-		values.put(FormsColumns.MD5_HASH, md5);
+		String md5 = putMd5Hash(values, form);
 
 		if (values.containsKey(FormsColumns.JRCACHE_FILE_PATH) == false) {
 			String cachePath = Collect.CACHE_PATH + File.separator + md5
@@ -436,6 +446,12 @@ public class FormsProvider extends ContentProvider {
 			}
 			file.delete();
 			Log.i(t, "attempting to delete file: " + file.getAbsolutePath());
+			try {
+				FileHashDbAdapter.remove(file);
+			} catch (SQLException e) {
+				Log.w(t, "Unable to forget the hash of " + file.getName() + ": "
+						+ e.toString());
+			}
 		}
 	}
 
@@ -543,17 +559,14 @@ public class FormsProvider extends ContentProvider {
 		switch (sUriMatcher.match(uri)) {
 		case FORMS:
 			// don't let users manually update md5
-			if (values.containsKey(FormsColumns.MD5_HASH)) {
-				values.remove(FormsColumns.MD5_HASH);
-			}
+			removeMd5Hash(values);
 			// if values contains path, then all filepaths and md5s will get
 			// updated
 			// this probably isn't a great thing to do.
 			if (values.containsKey(FormsColumns.FORM_FILE_PATH)) {
 				String formFile = values
 						.getAsString(FormsColumns.FORM_FILE_PATH);
-				values.put(FormsColumns.MD5_HASH,
-						FileUtils.getMd5Hash(new File(formFile)));
+				putMd5Hash(values, new File(formFile));
 			}
 
 			Cursor c = null;
@@ -616,9 +629,7 @@ public class FormsProvider extends ContentProvider {
 					update.moveToFirst();
 
 					// don't let users manually update md5
-					if (values.containsKey(FormsColumns.MD5_HASH)) {
-						values.remove(FormsColumns.MD5_HASH);
-					}
+					removeMd5Hash(values);
 
 					// the order here is important (jrcache needs to be before
 					// form file)
@@ -652,9 +663,7 @@ public class FormsProvider extends ContentProvider {
 						deleteFileOrDir(update
 								.getString(update
 										.getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
-						String newMd5 = FileUtils
-								.getMd5Hash(new File(formFile));
-						values.put(FormsColumns.MD5_HASH, newMd5);
+						String newMd5 = putMd5Hash(values, new File(formFile));
 						values.put(FormsColumns.JRCACHE_FILE_PATH,
 								Collect.CACHE_PATH + File.separator + newMd5
 										+ ".formdef");
@@ -695,6 +704,61 @@ public class FormsProvider extends ContentProvider {
 		return count;
 	}
 
+	/**
+	 * Removes the md5 of the form file, and the length and modification time
+	 * recorded with it, from values.
+	 */
+	private static void removeMd5Hash(ContentValues values) {
+		values.remove(FormsColumns.MD5_HASH);
+		values.remove(FormsColumns.FORM_FILE_LENGTH);
+		values.remove(FormsColumns.FORM_FILE_LAST_MODIFIED);
+	}
+
+	/**
+	 * Puts the md5 of the form file in values, with the length and
+	 * modification time of the file when it was hashed, so that readers can
+	 * tell whether the md5 still holds. These are null if the file was
+	 * modified too recently for them to identify its content.
+	 *
+	 * @return the md5 of the form file
+	 */
+	private static String putMd5Hash(ContentValues values, File form) {
+		long length = form.length();
+		long lastModified = form.lastModified();
+		String md5 = FileHashDbAdapter.getMd5Hash(form);
+		values.put(FormsColumns.MD5_HASH, md5);
+		if (FileHashDbAdapter.isSettled(lastModified)
+				&& form.length() == length
+				&& form.lastModified() == lastModified) {
+			values.put(FormsColumns.FORM_FILE_LENGTH, length);
+			values.put(FormsColumns.FORM_FILE_LAST_MODIFIED, lastModified);
+		} else {
+			values.putNull(FormsColumns.FORM_FILE_LENGTH);
+			values.putNull(FormsColumns.FORM_FILE_LAST_MODIFIED);
+		}
+		return md5;
+	}
+
+	/**
+	 * Applies the operations in one transaction, so that a batch is written
+	 * at once rather than committing each operation, and is either recorded
+	 * entirely or not at all.
+	 */
+	@Override
+	public ContentProviderResult[] applyBatch(
+			ArrayList<ContentProviderOperation> operations)
+			throws OperationApplicationException {
+		SQLiteDatabase db = getDbHelper().getWritableDatabase();
+		db.beginTransaction();
+		try {
+			ContentProviderResult[] results = super.applyBatch(operations);
+			db.setTransactionSuccessful();
+			return results;
+		} finally {
+			db.endTransaction();
+		}
+	}
+
 	static {
 		sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 		sUriMatcher.addURI(FormsProviderAPI.AUTHORITY, "forms", FORMS);
@@ -725,6 +789,10 @@ public class FormsProvider extends ContentProvider {
 		sFormsProjectionMap.put(FormsColumns.JRCACHE_FILE_PATH,
 				FormsColumns.JRCACHE_FILE_PATH);
 		sFormsProjectionMap.put(FormsColumns.LANGUAGE, FormsColumns.LANGUAGE);
+		sFormsProjectionMap.put(FormsColumns.FORM_FILE_LENGTH,
+				FormsColumns.FORM_FILE_LENGTH);
+		sFormsProjectionMap.put(FormsColumns.FORM_FILE_LAST_MODIFIED,
+				FormsColumns.FORM_FILE_LAST_MODIFIED);
 	}
 
 }
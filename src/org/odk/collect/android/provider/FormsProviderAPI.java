@@ -55,6 +55,10 @@ public final class FormsProviderAPI {
         public static final String DATE = "date";        
         public static final String JRCACHE_FILE_PATH = "jrcacheFilePath";
         public static final String FORM_MEDIA_PATH = "formMediaPath";      
+        // the length and modification time of the form file when its md5 was taken (null if
+        // it was modified too recently to be told apart from a later rewrite)
+        public static final String FORM_FILE_LENGTH = "formFileLength";
+        public static final String FORM_FILE_LAST_MODIFIED = "formFileLastModified";
         
         
         // this is null on create, and can only be set on an update.
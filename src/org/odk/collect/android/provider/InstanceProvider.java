@@ -46,7 +46,7 @@ public class InstanceProvider extends ContentProvider {
     private static final String t = "InstancesProvider";
 
     private static final String DATABASE_NAME = "instances.db";
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 5;
     private static final String INSTANCES_TABLE_NAME = "instances";
 
     private static HashMap<String, String> sInstancesProjectionMap;
@@ -78,7 +78,9 @@ public class InstanceProvider extends ContentProvider {
                + InstanceColumns.JR_VERSION + " text, "
                + InstanceColumns.STATUS + " text not null, "
                + InstanceColumns.LAST_STATUS_CHANGE_DATE + " date not null, "
-               + InstanceColumns.DISPLAY_SUBTEXT + " text not null );");
+               + InstanceColumns.DISPLAY_SUBTEXT + " text not null, "
+               + InstanceColumns.ACKNOWLEDGED_ATTACHMENTS + " text, "
+               + InstanceColumns.DEFERRED_ENCRYPTION + " text );");
         }
 
 
@@ -97,6 +99,16 @@ public class InstanceProvider extends ContentProvider {
         	if ( oldVersion == 2 ) {
         		db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME + " ADD COLUMN " +
     					InstanceColumns.JR_VERSION + " text;");
+        		oldVersion = 3;
+        	}
+        	if ( oldVersion == 3 ) {
+        		db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME + " ADD COLUMN " +
+    					InstanceColumns.ACKNOWLEDGED_ATTACHMENTS + " text;");
+        		oldVersion = 4;
+        	}
+        	if ( oldVersion == 4 ) {
+        		db.execSQL("ALTER TABLE " + INSTANCES_TABLE_NAME + " ADD COLUMN " +
+    					InstanceColumns.DEFERRED_ENCRYPTION + " text;");
         	}
             Log.w(t, "Successfully upgraded database from version " + initialVersion + " to " + newVersion
                     + ", without destroying all the old data");
@@ -237,6 +249,17 @@ public class InstanceProvider extends ContentProvider {
         }
     }
 
+    /**
+     * An instance that is edited again must be re-sent in full, so forget
+     * the attachments acknowledged by an interrupted submission.
+     */
+    private void resetAcknowledgedAttachments(String status, ContentValues values) {
+        if (InstanceProviderAPI.STATUS_INCOMPLETE.equalsIgnoreCase(status)
+                && values.containsKey(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS) == false) {
+            values.putNull(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS);
+        }
+    }
+
     private void deleteAllFilesInDirectory(File directory) {
         if (directory.exists()) {
         	// do not delete the directory if it might be an
@@ -357,6 +380,7 @@ public class InstanceProvider extends ContentProvider {
                         String text = getDisplaySubtext(status, today);
                         values.put(InstanceColumns.DISPLAY_SUBTEXT, text);
                     }
+                    resetAcknowledgedAttachments(status, values);
                 }
 
                 count = db.update(INSTANCES_TABLE_NAME, values, where, whereArgs);
@@ -373,6 +397,7 @@ public class InstanceProvider extends ContentProvider {
                         String text = getDisplaySubtext(status, today);
                         values.put(InstanceColumns.DISPLAY_SUBTEXT, text);
                     }
+                    resetAcknowledgedAttachments(status, values);
                 }
 
                 count =
@@ -404,6 +429,8 @@ public class InstanceProvider extends ContentProvider {
         sInstancesProjectionMap.put(InstanceColumns.STATUS, InstanceColumns.STATUS);
         sInstancesProjectionMap.put(InstanceColumns.LAST_STATUS_CHANGE_DATE, InstanceColumns.LAST_STATUS_CHANGE_DATE);
         sInstancesProjectionMap.put(InstanceColumns.DISPLAY_SUBTEXT, InstanceColumns.DISPLAY_SUBTEXT);
+        sInstancesProjectionMap.put(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS, InstanceColumns.ACKNOWLEDGED_ATTACHMENTS);
+        sInstancesProjectionMap.put(InstanceColumns.DEFERRED_ENCRYPTION, InstanceColumns.DEFERRED_ENCRYPTION);
     }
 
 }
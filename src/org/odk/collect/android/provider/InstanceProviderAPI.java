@@ -58,6 +58,12 @@ public final class InstanceProviderAPI {
         public static final String CAN_EDIT_WHEN_COMPLETE = "canEditWhenComplete";
         public static final String LAST_STATUS_CHANGE_DATE = "date";
         public static final String DISPLAY_SUBTEXT = "displaySubtext";
+        // attachments the server acknowledged in an interrupted submission,
+        // one "name:size:lastModified" key per line
+        public static final String ACKNOWLEDGED_ATTACHMENTS = "acknowledgedAttachments";
+        // key and IVs of the attachments of an encrypted form, when they are
+        // encrypted as they are sent rather than when the form is finalized
+        public static final String DEFERRED_ENCRYPTION = "deferredEncryption";
         //public static final String DISPLAY_SUB_SUBTEXT = "displaySubSubtext";
 
 
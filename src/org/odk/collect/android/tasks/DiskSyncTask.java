@@ -16,22 +16,34 @@ package org.odk.collect.android.tasks;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileHashDbAdapter;
 import org.odk.collect.android.listeners.DiskSyncListener;
+import org.odk.collect.android.provider.FormsProviderAPI;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCache;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.RemoteException;
 import android.util.Log;
 
 /**
@@ -45,6 +57,10 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 
     private static int counter = 0;
 
+    private static final int MAX_PARSE_THREADS = 4;
+
+    private static final Object sScanLock = new Object();
+
     int instance;
     
     DiskSyncListener mListener;
@@ -67,6 +83,9 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
     	instance = ++counter; // roughly track the scan # we're on... logging use only
     	Log.i(t, "["+instance+"] doInBackground begins!");
     	
+    	// only one scan runs at a time; a scan that waited will find the
+    	// forms already recorded (and their hashes memoized) by the previous one.
+    	synchronized (sScanLock) {
     	try {
 	    	// Process everything then report what didn't work.
 	    	StringBuffer errors = new StringBuffer();
@@ -119,7 +138,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 		                    // remove it from the list of forms (we only want forms 
 		                	// we haven't added at the end)
 		                    xFormsToAdd.remove(sqlFile);
-		                    if (!FileUtils.getMd5Hash(sqlFile).contentEquals(md5)) {
+		                    if (!FileHashDbAdapter.getMd5Hash(sqlFile).contentEquals(md5)) {
 		                        // Probably someone overwrite the file on the sdcard
 		                        // So re-parse it and update it's information
 		                        String id = mCursor.getString(mCursor.getColumnIndex(FormsColumns._ID));
@@ -136,73 +155,45 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 		        	}
 		        }
 	            
-		        // Step3: go through uriToUpdate to parse and update each in turn.
-		        // This is slow because buildContentValues(...) is slow.
-		        Collections.shuffle(uriToUpdate); // Big win if multiple DiskSyncTasks running
-		        for ( UriFile entry : uriToUpdate ) {
-		        	Uri updateUri = entry.uri;
-		        	File formDefFile = entry.file;
-	                // Probably someone overwrite the file on the sdcard
-	                // So re-parse it and update it's information
-		        	ContentValues values;
-		        	
-		        	try {
-		        		values = buildContentValues(formDefFile);
-		        	} catch ( IllegalArgumentException e) {
-		        		errors.append(e.getMessage()).append("\r\n");
-		        		File badFile = new File(formDefFile.getParentFile(), formDefFile.getName() + ".bad");
-		        		badFile.delete();
-		        		formDefFile.renameTo(badFile);
-		        		continue;
-		        	}
-	                
-	                // update in content provider
-	                int count =
-	                        Collect.getInstance().getContentResolver()
-	                                .update(updateUri, values, null, null);
-	                    Log.i(t, "["+instance+"] " + count + " records successfully updated");
-		        }
+		        // Step 3: parse the changed and the newly-discovered files.
+		        // This is slow because buildContentValues(...) is slow, so
+		        // the files are parsed in parallel on a bounded pool.
+		        List<ParseResult> parsed = parseAll(uriToUpdate, xFormsToAdd);
 		        uriToUpdate.clear();
-		        
-		        // Step 4: go through the newly-discovered files in xFormsToAdd and add them.
-		        // This is slow because buildContentValues(...) is slow.
-		        //
-		        Collections.shuffle(xFormsToAdd); // Big win if multiple DiskSyncTasks running
-		        while ( !xFormsToAdd.isEmpty() ) {
-		        	File formDefFile = xFormsToAdd.remove(0);
-		        	
-		        	// Since parsing is so slow, if there are multiple tasks, 
-		        	// they may have already updated the database.  
-		        	// Skip this file if that is the case.
-		        	if ( isAlreadyDefined(formDefFile) ) {
-		        		Log.i(t, "["+instance+"] skipping -- definition already recorded: " + formDefFile.getAbsolutePath());
-		        		continue;
-		        	}
-		        	
-	                // Parse it for the first time...
-	                ContentValues values;
-		        	
-		        	try {
-		        		values = buildContentValues(formDefFile);
-		        	} catch ( IllegalArgumentException e) {
-		        		errors.append(e.getMessage()).append("\r\n");
-		        		File badFile = new File(formDefFile.getParentFile(), formDefFile.getName() + ".bad");
+		        xFormsToAdd.clear();
+
+		        // Step 4: record all the parsed forms in the content provider
+		        // through a single batch.
+		        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+		        for ( ParseResult result : parsed ) {
+		        	if ( result.error != null ) {
+		        		errors.append(result.error).append("\r\n");
+		        		File badFile = new File(result.file.getParentFile(), result.file.getName() + ".bad");
 		        		badFile.delete();
-		        		formDefFile.renameTo(badFile);
-		        		continue;
-		        	}
-	                
-	                // insert into content provider
-		        	try {
-		        		// insert failures are OK and expected if multiple 
-		        		// DiskSync scanners are active.
-		        		Collect.getInstance().getContentResolver()
-		            				.insert(FormsColumns.CONTENT_URI, values);
-		        	} catch ( SQLException e ) {
-		        		Log.i(t, "["+instance+"] " + e.toString());
+		        		result.file.renameTo(badFile);
+		        	} else if ( result.uri != null ) {
+		        		// Probably someone overwrite the file on the sdcard
+		        		operations.add(ContentProviderOperation.newUpdate(result.uri)
+		        				.withValues(result.values).build());
+		        	} else {
+		        		operations.add(ContentProviderOperation.newInsert(FormsColumns.CONTENT_URI)
+		        				.withValues(result.values).build());
 		        	}
-	            }
+		        }
+		        applyOperations(operations);
+	        }
+	        // drop the cached FormDefs of forms that are gone
+	        FormDefCache.evictOrphans();
+	        // and the memoized hashes of files that are gone
+	        try {
+	        	int pruned = FileHashDbAdapter.pruneMissing();
+	        	if ( pruned != 0 ) {
+	        		Log.i(t, "["+instance+"] forgot the hashes of " + pruned + " missing files");
+	        	}
+	        } catch ( SQLException e ) {
+	        	Log.w(t, "["+instance+"] " + e.toString());
 	        }
+
 	        if ( errors.length() != 0 ) {
 	        	statusMessage = errors.toString();
 	        } else {
@@ -212,6 +203,127 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
     	} finally {
     		Log.i(t, "["+instance+"] doInBackground ends!");
     	}
+    	}
+    }
+
+    private static class ParseResult {
+    	public final Uri uri;
+    	public final File file;
+    	public final ContentValues values;
+    	public final String error;
+
+    	ParseResult(Uri uri, File file, ContentValues values, String error) {
+    		this.uri = uri;
+    		this.file = file;
+    		this.values = values;
+    		this.error = error;
+    	}
+    }
+
+    /**
+     * Parses the updated and the new form files in parallel.
+     *
+     * @param uriToUpdate forms already in the content provider whose file changed
+     * @param xFormsToAdd files not yet in the content provider
+     * @return the parse results, updates first, in the order given
+     */
+    private List<ParseResult> parseAll(List<UriFile> uriToUpdate, List<File> xFormsToAdd) {
+    	List<Callable<ParseResult>> jobs = new ArrayList<Callable<ParseResult>>();
+    	for ( final UriFile entry : uriToUpdate ) {
+    		jobs.add(new Callable<ParseResult>() {
+    			@Override
+    			public ParseResult call() {
+    				return parse(entry.uri, entry.file);
+    			}
+    		});
+    	}
+    	for ( final File formDefFile : xFormsToAdd ) {
+    		jobs.add(new Callable<ParseResult>() {
+    			@Override
+    			public ParseResult call() {
+    				// a previous scan may have recorded it since we listed the provider
+    				if ( isAlreadyDefined(formDefFile) ) {
+    					Log.i(t, "["+instance+"] skipping -- definition already recorded: " + formDefFile.getAbsolutePath());
+    					return null;
+    				}
+    				return parse(null, formDefFile);
+    			}
+    		});
+    	}
+
+    	List<ParseResult> results = new ArrayList<ParseResult>();
+    	if ( jobs.isEmpty() ) {
+    		return results;
+    	}
+
+    	int threads = Math.max(1, Math.min(jobs.size(),
+    			Math.min(MAX_PARSE_THREADS, Runtime.getRuntime().availableProcessors())));
+    	ExecutorService executor = Executors.newFixedThreadPool(threads);
+    	try {
+    		for ( Future<ParseResult> future : executor.invokeAll(jobs) ) {
+    			try {
+    				ParseResult result = future.get();
+    				if ( result != null ) {
+    					results.add(result);
+    				}
+    			} catch (ExecutionException e) {
+    				Log.e(t, "["+instance+"] " + e.getCause().toString());
+    			}
+    		}
+    	} catch (InterruptedException e) {
+    		Log.w(t, "["+instance+"] interrupted while parsing forms");
+    		Thread.currentThread().interrupt();
+    	} finally {
+    		executor.shutdownNow();
+    	}
+    	return results;
+    }
+
+    private ParseResult parse(Uri uri, File formDefFile) {
+    	try {
+    		return new ParseResult(uri, formDefFile, buildContentValues(formDefFile), null);
+    	} catch ( IllegalArgumentException e ) {
+    		return new ParseResult(uri, formDefFile, null, e.getMessage());
+    	}
+    }
+
+    /**
+     * Applies the operations in one batch. If the batch fails part way (e.g., an
+     * insert conflicting with a concurrent writer), the operations are applied
+     * one at a time so that a single failure does not lose the others.
+     */
+    private void applyOperations(ArrayList<ContentProviderOperation> operations) {
+    	if ( operations.isEmpty() ) {
+    		return;
+    	}
+    	ContentResolver resolver = Collect.getInstance().getContentResolver();
+    	try {
+    		ContentProviderResult[] results = resolver.applyBatch(FormsProviderAPI.AUTHORITY, operations);
+    		Log.i(t, "["+instance+"] " + results.length + " forms successfully recorded");
+    		for ( int i = 0; i < results.length; ++i ) {
+    			FormDefCache.prewarm(results[i].uri != null ? results[i].uri : operations.get(i).getUri());
+    		}
+    		return;
+    	} catch ( RemoteException e ) {
+    		Log.w(t, "["+instance+"] " + e.toString());
+    	} catch ( OperationApplicationException e ) {
+    		Log.w(t, "["+instance+"] " + e.toString());
+    	} catch ( SQLException e ) {
+    		Log.w(t, "["+instance+"] " + e.toString());
+    	}
+
+    	for ( ContentProviderOperation operation : operations ) {
+    		ArrayList<ContentProviderOperation> single = new ArrayList<ContentProviderOperation>();
+    		single.add(operation);
+    		try {
+    			ContentProviderResult[] results = resolver.applyBatch(FormsProviderAPI.AUTHORITY, single);
+    			FormDefCache.prewarm(results[0].uri != null ? results[0].uri : operation.getUri());
+    		} catch ( Exception e ) {
+    			// insert failures are OK and expected if another writer
+    			// recorded the form first.
+    			Log.i(t, "["+instance+"] " + e.toString());
+    		}
+    	}
     }
 
     private boolean isAlreadyDefined(File formDefFile) {
@@ -16,21 +16,25 @@ package org.odk.collect.android.tasks;
 
 import org.opendatakit.httpclientandroidlib.client.HttpClient;
 import org.opendatakit.httpclientandroidlib.protocol.HttpContext;
-import org.javarosa.xform.parse.XFormParser;
-import org.kxml2.kdom.Element;
 import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.ServerProbeDbAdapter;
 import org.odk.collect.android.listeners.FormListDownloaderListener;
 import org.odk.collect.android.logic.FormDetails;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.utilities.DocumentFetchResult;
+import org.odk.collect.android.utilities.FormListCache;
 import org.odk.collect.android.utilities.WebUtils;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.io.IOException;
 import java.util.HashMap;
 
 /**
@@ -54,8 +58,8 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
         "http://openrosa.org/xforms/xformsList";
 
 
-    private boolean isXformsListNamespacedElement(Element e) {
-        return e.getNamespace().equalsIgnoreCase(NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_LIST);
+    private static boolean isXformsListNamespace(String namespace) {
+        return namespace.equalsIgnoreCase(NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_LIST);
     }
 
 
@@ -71,6 +75,15 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
         String downloadPath = settings.getString(PreferencesActivity.KEY_FORMLIST_URL, formListUrl);
         downloadListUrl += downloadPath;
 
+        // if submissions to this server are known to be redirected to https,
+        // ask for the form list over https and save the redirect.
+        Uri downloadListUri = Uri.parse(downloadListUrl);
+        if ("http".equals(downloadListUri.getScheme())
+                && ServerProbeDbAdapter.isSecureHost(downloadListUri.getHost())) {
+            downloadListUrl = downloadListUri.buildUpon().scheme("https").build().toString();
+            Log.i(t, "Using https for the form list: " + downloadListUrl);
+        }
+
     	Collect.getInstance().getActivityLogger().logAction(this, formListUrl, downloadListUrl);
 
         // We populate this with available forms from the specified server.
@@ -81,12 +94,19 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
         HttpContext localContext = Collect.getInstance().getHttpContext();
         HttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
 
+        // if we have the form list already, only download it again if it changed
+        FormListCache.Entry cached = FormListCache.read(downloadListUrl);
+        FormListParser parser = new FormListParser();
         DocumentFetchResult result =
-            WebUtils.getXmlDocument(downloadListUrl, localContext, httpclient);
+            WebUtils.getXmlStream(downloadListUrl, localContext, httpclient,
+                (cached == null) ? null : cached.mETag,
+                (cached == null) ? null : cached.mLastModified, parser);
 
         // If we can't get the document, return the error, cancel the task
         if (result.errorMessage != null) {
             if (result.responseCode == 401) {
+                // the credentials changed, so the submission probes are stale too
+                ServerProbeDbAdapter.invalidateHost(downloadListUri.getHost());
                 formList.put(DL_AUTH_REQUIRED, new FormDetails(result.errorMessage));
             } else {
                 formList.put(DL_ERROR_MSG, new FormDetails(result.errorMessage));
@@ -94,42 +114,65 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
             return formList;
         }
 
-        if (result.isOpenRosaResponse) {
+        if (result.notModified) {
+            Log.i(t, "Form list not modified, using the " + cached.mFormList.size() + " cached forms");
+            return cached.mFormList;
+        }
+
+        if (parser.mError != null) {
+            FormListCache.invalidate(downloadListUrl);
+            formList.put(DL_ERROR_MSG, new FormDetails(parser.mError));
+            return formList;
+        }
+
+        FormListCache.write(downloadListUrl, result.eTag, result.lastModified, parser.mFormList);
+        return parser.mFormList;
+    }
+
+
+    /**
+     * Pulls the form list from the response without building the document in memory.
+     */
+    private class FormListParser implements WebUtils.XmlPullHandler {
+        final HashMap<String, FormDetails> mFormList = new HashMap<String, FormDetails>();
+        String mError = null;
+
+        @Override
+        public void parse(XmlPullParser parser, boolean isOpenRosaResponse) throws Exception {
+            int event;
+            while ((event = parser.next()) != XmlPullParser.START_TAG) {
+                if (event == XmlPullParser.END_DOCUMENT) {
+                    throw new XmlPullParserException("no root element");
+                }
+            }
+            if (isOpenRosaResponse) {
+                parseOpenRosa(parser);
+            } else {
+                parseLegacy(parser);
+            }
+        }
+
+        private void parseOpenRosa(XmlPullParser parser) throws XmlPullParserException, IOException {
             // Attempt OpenRosa 1.0 parsing
-            Element xformsElement = result.doc.getRootElement();
-            if (!xformsElement.getName().equals("xforms")) {
-                String error = "root element is not <xforms> : " + xformsElement.getName();
+            if (!parser.getName().equals("xforms")) {
+                String error = "root element is not <xforms> : " + parser.getName();
                 Log.e(t, "Parsing OpenRosa reply -- " + error);
-                formList.put(
-                    DL_ERROR_MSG,
-                    new FormDetails(Collect.getInstance().getString(
-                        R.string.parse_openrosa_formlist_failed, error)));
-                return formList;
+                mError = Collect.getInstance().getString(R.string.parse_openrosa_formlist_failed, error);
+                return;
             }
-            String namespace = xformsElement.getNamespace();
-            if (!isXformsListNamespacedElement(xformsElement)) {
+            String namespace = parser.getNamespace();
+            if (!isXformsListNamespace(namespace)) {
                 String error = "root element namespace is incorrect:" + namespace;
                 Log.e(t, "Parsing OpenRosa reply -- " + error);
-                formList.put(
-                    DL_ERROR_MSG,
-                    new FormDetails(Collect.getInstance().getString(
-                        R.string.parse_openrosa_formlist_failed, error)));
-                return formList;
+                mError = Collect.getInstance().getString(R.string.parse_openrosa_formlist_failed, error);
+                return;
             }
-            int nElements = xformsElement.getChildCount();
-            for (int i = 0; i < nElements; ++i) {
-                if (xformsElement.getType(i) != Element.ELEMENT) {
-                    // e.g., whitespace (text)
-                    continue;
-                }
-                Element xformElement = (Element) xformsElement.getElement(i);
-                if (!isXformsListNamespacedElement(xformElement)) {
-                    // someone else's extension?
-                    continue;
-                }
-                String name = xformElement.getName();
-                if (!name.equalsIgnoreCase("xform")) {
+            int i = 0;
+            while (nextChildElement(parser, 1)) {
+                if (!isXformsListNamespace(parser.getNamespace())
+                        || !parser.getName().equalsIgnoreCase("xform")) {
                     // someone else's extension?
+                    skipElement(parser);
                     continue;
                 }
 
@@ -138,57 +181,31 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
                 String formName = null;
                 String version = null;
                 String majorMinorVersion = null;
-                String description = null;
                 String downloadUrl = null;
                 String manifestUrl = null;
-                // don't process descriptionUrl
-                int fieldCount = xformElement.getChildCount();
-                for (int j = 0; j < fieldCount; ++j) {
-                    if (xformElement.getType(j) != Element.ELEMENT) {
-                        // whitespace
-                        continue;
-                    }
-                    Element child = xformElement.getElement(j);
-                    if (!isXformsListNamespacedElement(child)) {
+                // don't process descriptionText or descriptionUrl
+                int depth = parser.getDepth();
+                while (nextChildElement(parser, depth)) {
+                    if (!isXformsListNamespace(parser.getNamespace())) {
                         // someone else's extension?
+                        skipElement(parser);
                         continue;
                     }
-                    String tag = child.getName();
+                    String tag = parser.getName();
                     if (tag.equals("formID")) {
-                        formId = XFormParser.getXMLText(child, true);
-                        if (formId != null && formId.length() == 0) {
-                            formId = null;
-                        }
+                        formId = readText(parser);
                     } else if (tag.equals("name")) {
-                        formName = XFormParser.getXMLText(child, true);
-                        if (formName != null && formName.length() == 0) {
-                            formName = null;
-                        }
+                        formName = readText(parser);
                     } else if (tag.equals("version")) {
-                        version = XFormParser.getXMLText(child, true);
-                        if (version != null && version.length() == 0) {
-                        	version = null;
-                        }
+                        version = readText(parser);
                     } else if (tag.equals("majorMinorVersion")) {
-                        majorMinorVersion = XFormParser.getXMLText(child, true);
-                        if (majorMinorVersion != null && majorMinorVersion.length() == 0) {
-                            majorMinorVersion = null;
-                        }
-                    } else if (tag.equals("descriptionText")) {
-                        description = XFormParser.getXMLText(child, true);
-                        if (description != null && description.length() == 0) {
-                            description = null;
-                        }
+                        majorMinorVersion = readText(parser);
                     } else if (tag.equals("downloadUrl")) {
-                        downloadUrl = XFormParser.getXMLText(child, true);
-                        if (downloadUrl != null && downloadUrl.length() == 0) {
-                            downloadUrl = null;
-                        }
+                        downloadUrl = readText(parser);
                     } else if (tag.equals("manifestUrl")) {
-                        manifestUrl = XFormParser.getXMLText(child, true);
-                        if (manifestUrl != null && manifestUrl.length() == 0) {
-                            manifestUrl = null;
-                        }
+                        manifestUrl = readText(parser);
+                    } else {
+                        skipElement(parser);
                     }
                 }
                 if (formId == null || downloadUrl == null || formName == null) {
@@ -196,63 +213,107 @@ public class DownloadFormListTask extends AsyncTask<Void, String, HashMap<String
                         "Forms list entry " + Integer.toString(i)
                                 + " is missing one or more tags: formId, name, or downloadUrl";
                     Log.e(t, "Parsing OpenRosa reply -- " + error);
-                    formList.clear();
-                    formList.put(
-                        DL_ERROR_MSG,
-                        new FormDetails(Collect.getInstance().getString(
-                            R.string.parse_openrosa_formlist_failed, error)));
-                    return formList;
+                    mFormList.clear();
+                    mError = Collect.getInstance().getString(R.string.parse_openrosa_formlist_failed, error);
+                    return;
                 }
-                formList.put(formId, new FormDetails(formName, downloadUrl, manifestUrl, formId, (version != null) ? version : majorMinorVersion));
+                mFormList.put(formId, new FormDetails(formName, downloadUrl, manifestUrl, formId, (version != null) ? version : majorMinorVersion));
+                ++i;
             }
-        } else {
+        }
+
+        private void parseLegacy(XmlPullParser parser) throws XmlPullParserException, IOException {
             // Aggregate 0.9.x mode...
             // populate HashMap with form names and urls
-            Element formsElement = result.doc.getRootElement();
-            int formsCount = formsElement.getChildCount();
             String formId = null;
-            for (int i = 0; i < formsCount; ++i) {
-                if (formsElement.getType(i) != Element.ELEMENT) {
-                    // whitespace
-                    continue;
-                }
-                Element child = formsElement.getElement(i);
-                String tag = child.getName();
+            int i = 0;
+            while (nextChildElement(parser, 1)) {
+                String tag = parser.getName();
                 if (tag.equals("formID")) {
-                    formId = XFormParser.getXMLText(child, true);
-                    if (formId != null && formId.length() == 0) {
-                        formId = null;
-                    }
-                }
-                if (tag.equalsIgnoreCase("form")) {
-                    String formName = XFormParser.getXMLText(child, true);
-                    if (formName != null && formName.length() == 0) {
-                        formName = null;
-                    }
-                    String downloadUrl = child.getAttributeValue(null, "url");
-                    downloadUrl = downloadUrl.trim();
-                    if (downloadUrl != null && downloadUrl.length() == 0) {
-                        downloadUrl = null;
+                    formId = readText(parser);
+                } else if (tag.equalsIgnoreCase("form")) {
+                    String downloadUrl = parser.getAttributeValue(null, "url");
+                    String formName = readText(parser);
+                    if (downloadUrl != null) {
+                        downloadUrl = downloadUrl.trim();
+                        if (downloadUrl.length() == 0) {
+                            downloadUrl = null;
+                        }
                     }
                     if (downloadUrl == null || formName == null) {
                         String error =
                             "Forms list entry " + Integer.toString(i)
                                     + " is missing form name or url attribute";
                         Log.e(t, "Parsing OpenRosa reply -- " + error);
-                        formList.clear();
-                        formList.put(
-                            DL_ERROR_MSG,
-                            new FormDetails(Collect.getInstance().getString(
-                                R.string.parse_legacy_formlist_failed, error)));
-                        return formList;
+                        mFormList.clear();
+                        mError = Collect.getInstance().getString(R.string.parse_legacy_formlist_failed, error);
+                        return;
                     }
-                    formList.put(formName, new FormDetails(formName, downloadUrl, null, formId, null));
+                    mFormList.put(formName, new FormDetails(formName, downloadUrl, null, formId, null));
 
                     formId = null;
+                    ++i;
+                } else {
+                    skipElement(parser);
                 }
             }
         }
-        return formList;
+    }
+
+
+    /**
+     * Advances to the start tag of the next child of the element at depth.
+     *
+     * @return false if the end tag of the element was reached instead
+     */
+    private static boolean nextChildElement(XmlPullParser parser, int depth)
+            throws XmlPullParserException, IOException {
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_TAG && parser.getDepth() == depth + 1) {
+                return true;
+            }
+            if (event == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Advances past the end tag of the current element.
+     */
+    private static void skipElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * Reads the text of the current element, advancing past its end tag.
+     *
+     * @return the trimmed text, or null if it is empty
+     */
+    private static String readText(XmlPullParser parser) throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        StringBuilder b = new StringBuilder();
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.END_TAG && parser.getDepth() == depth) {
+                break;
+            }
+            if (event == XmlPullParser.TEXT) {
+                b.append(parser.getText());
+            }
+        }
+        String text = b.toString().trim();
+        return (text.length() == 0) ? null : text;
     }
 
 
@@ -19,21 +19,38 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 
 import org.javarosa.xform.parse.XFormParser;
 import org.kxml2.kdom.Element;
 import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileHashDbAdapter;
 import org.odk.collect.android.exception.TaskCancelledException;
 import org.odk.collect.android.listeners.FormDownloaderListener;
 import org.odk.collect.android.logic.FormDetails;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.DocumentFetchResult;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCache;
 import org.odk.collect.android.utilities.WebUtils;
 import org.opendatakit.httpclientandroidlib.Header;
 import org.opendatakit.httpclientandroidlib.HttpEntity;
@@ -41,6 +58,9 @@ import org.opendatakit.httpclientandroidlib.HttpResponse;
 import org.opendatakit.httpclientandroidlib.HttpStatus;
 import org.opendatakit.httpclientandroidlib.client.HttpClient;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpGet;
+import org.opendatakit.httpclientandroidlib.client.protocol.ClientContext;
+import org.opendatakit.httpclientandroidlib.impl.client.BasicAuthCache;
+import org.opendatakit.httpclientandroidlib.protocol.BasicHttpContext;
 import org.opendatakit.httpclientandroidlib.protocol.HttpContext;
 
 import android.content.ContentValues;
@@ -64,9 +84,42 @@ public class DownloadFormsTask extends
 
     private static final String MD5_COLON_PREFIX = "md5:";
     private static final String TEMP_DOWNLOAD_EXTENSION = ".tempDownload";
+    private static final String RANGE_HEADER = "Range";
+
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    // media files downloaded at once; bounded by the per-server connections of WebUtils
+    private static final int MAX_MEDIA_DOWNLOADS = WebUtils.MAX_CONNECTIONS_PER_ROUTE;
+
+    // forms (and manifests) downloaded at once when several forms are requested
+    private static final int MAX_CONCURRENT_FORMS = 3;
+
+    private static final long PIPELINE_SHUTDOWN_SECONDS = 5;
 
     private FormDownloaderListener mStateListener;
 
+    // the media downloads of all forms share these threads
+    private ExecutorService mMediaExecutor;
+
+    private final ThreadLocal<HttpContext> mMediaContext = new ThreadLocal<HttpContext>() {
+        @Override
+        protected HttpContext initialValue() {
+            // layered over the shared HttpContext so authentication and cookies are retained
+            HttpContext context = new BasicHttpContext(Collect.getInstance().getHttpContext());
+            // the auth cache is not thread-safe
+            context.setAttribute(ClientContext.AUTH_CACHE, new BasicAuthCache());
+            return context;
+        }
+    };
+
+    // form files chosen by downloads in progress, which may not exist yet
+    private final Set<String> mReservedPaths = Collections.synchronizedSet(new HashSet<String>());
+
+    private final AtomicInteger mTempMediaSequence = new AtomicInteger(0);
+
+    // the lock of each resumable temp file in use, by name
+    private final Map<String, Object> mTempFileLocks = new HashMap<String, Object>();
+
     private static final String NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_MANIFEST =
         "http://openrosa.org/xforms/xformsManifest";
 
@@ -85,97 +138,218 @@ public class DownloadFormsTask extends
 
         HashMap<FormDetails, String> result = new HashMap<FormDetails, String>();
 
-        for (FormDetails fd : toDownload) {
-            publishProgress(fd.formName, Integer.valueOf(count).toString(), Integer.valueOf(total)
-                    .toString());
+        mMediaExecutor = Executors.newFixedThreadPool(MAX_MEDIA_DOWNLOADS);
+        try {
+            if (total > 1) {
+                downloadPipelined(toDownload, result);
+                return result;
+            }
 
-            String message = "";
+            for (FormDetails fd : toDownload) {
+                if (isCancelled()) {
+                    break;
+                }
 
-            if (isCancelled()) {
-                break;
+                FormDownload download = downloadForm(fd, count, total);
+                if (download.cancelled) {
+                    // do not download additional forms.
+                    break;
+                }
+                installForm(download);
+
+                count++;
+                saveResult(result, fd, download.message);
             }
+        } finally {
+            mMediaExecutor.shutdownNow();
+        }
 
-            String tempMediaPath = null;
-            String finalMediaPath = null;
-            FileResult fileResult = null;
-            try {
-                // get the xml file
-                // if we've downloaded a duplicate, this gives us the file
-                fileResult = downloadXform(fd.formName, fd.downloadUrl);
-
-                if (fd.manifestUrl != null) {
-                    // use a temporary media path until everything is ok.
-                    tempMediaPath = new File(Collect.CACHE_PATH, String.valueOf(System.currentTimeMillis())).getAbsolutePath();
-                    finalMediaPath = FileUtils.constructMediaPath(fileResult.getFile().getAbsolutePath());
-                    String error = downloadManifestAndMediaFiles(tempMediaPath, finalMediaPath, fd, count, total);
-                    if (error != null) {
-                        message += error;
+        return result;
+    }
+
+    /**
+     * Downloads up to {@link #MAX_CONCURRENT_FORMS} forms (and their manifests) at once. The media
+     * files of all of them share the {@link #MAX_MEDIA_DOWNLOADS} threads of mMediaExecutor, so no
+     * more than MAX_CONCURRENT_FORMS + MAX_MEDIA_DOWNLOADS connections are open at any time. The
+     * forms are registered with the forms provider one at a time, on this thread, in the order
+     * their downloads complete.
+     */
+    private void downloadPipelined(ArrayList<FormDetails> toDownload, HashMap<FormDetails, String> result) {
+        final int total = toDownload.size();
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+
+        Log.i(t, "Downloading " + total + " forms, " + MAX_CONCURRENT_FORMS + " at a time");
+        ExecutorService formExecutor = Executors.newFixedThreadPool(Math.min(total, MAX_CONCURRENT_FORMS));
+        CompletionService<FormDownload> completionService =
+            new ExecutorCompletionService<FormDownload>(formExecutor);
+        int pending = 0;
+        // an error fetching one manifest must not drop the connections of the others
+        WebUtils.beginConcurrentUse();
+        try {
+            for (final FormDetails fd : toDownload) {
+                final int count = ++pending;
+                completionService.submit(new Callable<FormDownload>() {
+                    @Override
+                    public FormDownload call() {
+                        if (isCancelled() || stopped.get()) {
+                            return null;
+                        }
+                        FormDownload download = downloadForm(fd, count, total);
+                        if (download.cancelled) {
+                            // do not download additional forms.
+                            stopped.set(true);
+                        }
+                        return download;
                     }
-                } else {
-                    Log.i(t, "No Manifest for: " + fd.formName);
-                }
-            } catch (TaskCancelledException e) {
-                Log.e(t, e.getMessage());
+                });
+            }
 
-                cleanUp(fileResult, e.getFile(), tempMediaPath);
+            while (pending > 0) {
+                Future<FormDownload> future = completionService.take();
+                --pending;
+                FormDownload download;
+                try {
+                    download = future.get();
+                } catch (ExecutionException e) {
+                    Log.e(t, "Unexpected error downloading a form: " + e.getCause().toString());
+                    continue;
+                }
+                if (download == null || download.cancelled) {
+                    continue;
+                }
+                installForm(download);
+                saveResult(result, download.fd, download.message);
+            }
+        } catch (InterruptedException e) {
+            Log.w(t, "Interrupted while downloading forms");
+        } finally {
+            stopped.set(true);
+            formExecutor.shutdownNow();
+            if (pending > 0) {
+                discardPending(completionService, formExecutor);
+            }
+            WebUtils.endConcurrentUse();
+        }
+    }
 
-                // do not download additional forms.
-                break;
-            } catch (Exception e) {
-                String msg = e.getMessage();
-                if ( msg == null ) {
-                  msg = e.toString();
+    /**
+     * Cleans up the forms that finish downloading after the pipeline was stopped.
+     */
+    private void discardPending(CompletionService<FormDownload> completionService,
+            ExecutorService formExecutor) {
+        try {
+            if (!formExecutor.awaitTermination(PIPELINE_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(t, "Form downloads still running after cancel");
+            }
+        } catch (InterruptedException e) {
+            // clean up what has completed
+        }
+        Future<FormDownload> future;
+        while ((future = completionService.poll()) != null) {
+            try {
+                FormDownload download = future.get();
+                if (download != null && !download.cancelled) {
+                    cleanUp(download.fileResult, null, download.tempMediaPath);
                 }
-                Log.e(t, msg);
+            } catch (Exception e) {
+                // no-op
+            }
+        }
+    }
 
-                if (e.getCause() != null) {
-                  msg = e.getCause().getMessage();
-                  if ( msg == null ) {
-                    msg = e.getCause().toString();
-                  }
+    /**
+     * Downloads the form, its manifest and its media files. Errors are reported in the message of
+     * the result; if the download was cancelled, it has been cleaned up already.
+     */
+    private FormDownload downloadForm(FormDetails fd, int count, int total) {
+        publishProgress(fd.formName, Integer.valueOf(count).toString(), Integer.valueOf(total)
+                .toString());
+
+        FormDownload download = new FormDownload(fd);
+        try {
+            // get the xml file
+            // if we've downloaded a duplicate, this gives us the file
+            download.fileResult = downloadXform(fd.formName, fd.downloadUrl);
+
+            if (fd.manifestUrl != null) {
+                // use a temporary media path until everything is ok.
+                download.tempMediaPath = new File(Collect.CACHE_PATH, System.currentTimeMillis() + "_"
+                    + mTempMediaSequence.incrementAndGet()).getAbsolutePath();
+                String finalMediaPath = FileUtils.constructMediaPath(download.fileResult.getFile().getAbsolutePath());
+                String error = downloadManifestAndMediaFiles(download.tempMediaPath, finalMediaPath, fd, count, total);
+                if (error != null) {
+                    download.message += error;
                 }
-                message += msg;
+            } else {
+                Log.i(t, "No Manifest for: " + fd.formName);
             }
+        } catch (TaskCancelledException e) {
+            Log.e(t, e.getMessage());
+
+            cleanUp(download.fileResult, e.getFile(), download.tempMediaPath);
+            download.cancelled = true;
+        } catch (Exception e) {
+            String msg = e.getMessage();
+            if ( msg == null ) {
+              msg = e.toString();
+            }
+            Log.e(t, msg);
 
-            if (!isCancelled() && message.length() == 0 && fileResult != null) {
-                // install everything
-                UriResult uriResult = null;
-                try {
-                    uriResult = findExistingOrCreateNewUri(fileResult.getFile());
-                    Log.w(t, "Form uri = " + uriResult.getUri() + ", isNew = " + uriResult.isNew());
+            if (e.getCause() != null) {
+              msg = e.getCause().getMessage();
+              if ( msg == null ) {
+                msg = e.getCause().toString();
+              }
+            }
+            download.message += msg;
+        }
+        return download;
+    }
 
-                    // move the media files in the media folder
-                    if (tempMediaPath != null) {
-                        File formMediaPath = new File(uriResult.getMediaPath());
+    /**
+     * Registers the downloaded form with the forms provider and moves its media files into place,
+     * or cleans it up if its download failed.
+     */
+    private void installForm(FormDownload download) {
+        FileResult fileResult = download.fileResult;
+        String tempMediaPath = download.tempMediaPath;
 
-                        FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
-                    }
-                } catch (IOException e) {
-                    Log.e(t, e.getMessage());
-
-                    if (uriResult != null && uriResult.isNew() && fileResult.isNew())  {
-                        // this means we should delete the entire form together with the metadata
-                        Uri uri = uriResult.getUri();
-                        Log.w(t, "The form is new. We should delete the entire form.");
-                        int deletedCount = Collect.getInstance().getContentResolver().delete(uri, null, null);
-                        Log.w(t, "Deleted " + deletedCount + " rows using uri " + uri);
-                    }
+        if (!isCancelled() && download.message.length() == 0 && fileResult != null) {
+            // install everything
+            UriResult uriResult = null;
+            try {
+                uriResult = findExistingOrCreateNewUri(fileResult.getFile());
+                Log.w(t, "Form uri = " + uriResult.getUri() + ", isNew = " + uriResult.isNew());
 
-                    cleanUp(fileResult, null, tempMediaPath);
-                } catch (TaskCancelledException e) {
-                    Log.e(t, e.getMessage());
+                // move the media files in the media folder
+                if (tempMediaPath != null) {
+                    File formMediaPath = new File(uriResult.getMediaPath());
 
-                    cleanUp(fileResult, e.getFile(), tempMediaPath);
+                    FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
                 }
-            } else {
+
+                // parse and cache the form now, so the first open does not have to
+                FormDefCache.prewarm(uriResult.getUri());
+            } catch (IOException e) {
+                Log.e(t, e.getMessage());
+
+                if (uriResult != null && uriResult.isNew() && fileResult.isNew())  {
+                    // this means we should delete the entire form together with the metadata
+                    Uri uri = uriResult.getUri();
+                    Log.w(t, "The form is new. We should delete the entire form.");
+                    int deletedCount = Collect.getInstance().getContentResolver().delete(uri, null, null);
+                    Log.w(t, "Deleted " + deletedCount + " rows using uri " + uri);
+                }
+
                 cleanUp(fileResult, null, tempMediaPath);
-            }
+            } catch (TaskCancelledException e) {
+                Log.e(t, e.getMessage());
 
-            count++;
-            saveResult(result, fd, message);
+                cleanUp(fileResult, e.getFile(), tempMediaPath);
+            }
+        } else {
+            cleanUp(fileResult, null, tempMediaPath);
         }
-
-        return result;
     }
 
     private void saveResult(HashMap<FormDetails, String> result, FormDetails fd, String message) {
@@ -300,7 +474,7 @@ public class DownloadFormsTask extends
         String path = Collect.FORMS_PATH + File.separator + rootName + ".xml";
         int i = 2;
         File f = new File(path);
-        while (f.exists()) {
+        while (f.exists() || !mReservedPaths.add(path)) {
             path = Collect.FORMS_PATH + File.separator + rootName + "_" + i + ".xml";
             f = new File(path);
             i++;
@@ -361,7 +535,57 @@ public class DownloadFormsTask extends
      * @throws Exception
      */
     private void downloadFile(File file, String downloadUrl) throws Exception {
-        File tempFile = File.createTempFile(file.getName(), TEMP_DOWNLOAD_EXTENSION, new File(Collect.CACHE_PATH));
+        // get shared HttpContext so that authentication and cookies are retained.
+        downloadFile(file, downloadUrl, Collect.getInstance().getHttpContext(), null);
+    }
+
+    /**
+     * Downloads as {@link #downloadFile(File, String)}, checking the md5 hash of the contents as
+     * they are written.
+     *
+     * When the hash is known, the temp file is named after it and is kept when the download fails
+     * or is cancelled, so that the retry (or the next download of the form) resumes it with a Range
+     * request instead of starting over.
+     *
+     * @param file         the final file
+     * @param downloadUrl  the url to get the contents from.
+     * @param localContext the HttpContext to download with
+     * @param expectedMd5  the md5 hash of the contents, or null if it is not known
+     * @throws Exception
+     */
+    private void downloadFile(File file, String downloadUrl, HttpContext localContext,
+            String expectedMd5) throws Exception {
+        if (expectedMd5 == null) {
+            File tempFile = File.createTempFile(file.getName(), TEMP_DOWNLOAD_EXTENSION, new File(Collect.CACHE_PATH));
+            downloadFile(file, tempFile, downloadUrl, localContext, null);
+            return;
+        }
+
+        File tempFile = new File(Collect.CACHE_PATH, file.getName() + "." + expectedMd5.toLowerCase()
+                + TEMP_DOWNLOAD_EXTENSION);
+        // forms downloaded at once may share a media file (e.g., a logo), and
+        // so its temp file; only one of them may write and move it at a time.
+        synchronized (getTempFileLock(tempFile)) {
+            downloadFile(file, tempFile, downloadUrl, localContext, expectedMd5);
+        }
+    }
+
+    private Object getTempFileLock(File tempFile) {
+        synchronized (mTempFileLocks) {
+            Object lock = mTempFileLocks.get(tempFile.getName());
+            if (lock == null) {
+                lock = new Object();
+                mTempFileLocks.put(tempFile.getName(), lock);
+            }
+            return lock;
+        }
+    }
+
+    private void downloadFile(File file, File tempFile, String downloadUrl, HttpContext localContext,
+            String expectedMd5) throws Exception {
+        boolean resumable = (expectedMd5 != null);
+        // a resumable temp file is left in place on cancel
+        File fileOnCancel = resumable ? null : tempFile;
 
         URI uri;
         try {
@@ -384,27 +608,45 @@ public class DownloadFormsTask extends
         final int MAX_ATTEMPT_COUNT = 2;
         while ( !success && ++attemptCount <= MAX_ATTEMPT_COUNT ) {
 
+            long offset = (resumable && tempFile.exists()) ? tempFile.length() : 0L;
+
             if (isCancelled()) {
-                throw new TaskCancelledException(tempFile, "Cancelled before requesting " + tempFile.getAbsolutePath());
+                throw new TaskCancelledException(fileOnCancel, "Cancelled before requesting " + tempFile.getAbsolutePath());
+            } else if (offset > 0) {
+                Log.i(t, "Resuming download to " + tempFile.getAbsolutePath() + " at byte " + offset + " from " + downloadUrl);
             } else {
                 Log.i(t, "Started downloading to " + tempFile.getAbsolutePath() + " from " + downloadUrl);
             }
 
-            // get shared HttpContext so that authentication and cookies are retained.
-	        HttpContext localContext = Collect.getInstance().getHttpContext();
-
 	        HttpClient httpclient = WebUtils.createHttpClient(WebUtils.CONNECTION_TIMEOUT);
 
 	        // set up request...
 	        HttpGet req = WebUtils.createOpenRosaHttpGet(uri);
-	        req.addHeader(WebUtils.ACCEPT_ENCODING_HEADER, WebUtils.GZIP_CONTENT_ENCODING);
+	        if (!resumable) {
+	            req.addHeader(WebUtils.ACCEPT_ENCODING_HEADER, WebUtils.GZIP_CONTENT_ENCODING);
+	        } else if (offset > 0) {
+	            // byte ranges address the stored bytes, so the content is not gzipped
+	            req.addHeader(RANGE_HEADER, "bytes=" + offset + "-");
+	        }
 
 	        HttpResponse response;
 	        try {
 	            response = httpclient.execute(req, localContext);
 	            int statusCode = response.getStatusLine().getStatusCode();
 
-	            if (statusCode != HttpStatus.SC_OK) {
+	            if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset > 0) {
+	                // the temp file is not a prefix of the file; start over without a retry
+	                WebUtils.discardEntityBytes(response);
+	                Log.w(t, "Server refused to resume " + tempFile.getAbsolutePath() + " at byte " + offset);
+	                FileUtils.deleteAndReport(tempFile);
+	                --attemptCount;
+	                continue;
+	            }
+
+	            // a server that ignores the Range header sends the whole file
+	            boolean append = (statusCode == HttpStatus.SC_PARTIAL_CONTENT && offset > 0);
+
+	            if (statusCode != HttpStatus.SC_OK && !append) {
 	            	WebUtils.discardEntityBytes(response);
 	            	if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
 	            		// clear the cookies -- should not be necessary?
@@ -417,6 +659,15 @@ public class DownloadFormsTask extends
 	                throw new Exception(errMsg);
 	            }
 
+	            // hash the bytes already on disk, then the bytes as they arrive
+	            MessageDigest md = null;
+	            if (resumable) {
+	                md = MessageDigest.getInstance("MD5");
+	                if (append) {
+	                    digestFile(md, tempFile);
+	                }
+	            }
+
 	            // write connection to file
 	            InputStream is = null;
 	            OutputStream os = null;
@@ -427,13 +678,31 @@ public class DownloadFormsTask extends
 	                if ( contentEncoding != null && contentEncoding.getValue().equalsIgnoreCase(WebUtils.GZIP_CONTENT_ENCODING) ) {
 	                	is = new GZIPInputStream(is);
 	                }
-	                os = new FileOutputStream(tempFile);
-	                byte buf[] = new byte[4096];
+	                os = new FileOutputStream(tempFile, append);
+	                byte buf[] = new byte[DOWNLOAD_BUFFER_SIZE];
 	                int len;
 	                while ((len = is.read(buf)) > 0 && !isCancelled()) {
 	                    os.write(buf, 0, len);
+	                    if (md != null) {
+	                        md.update(buf, 0, len);
+	                    }
 	                }
 	                os.flush();
+	                os.close();
+	                os = null;
+
+	                if (md != null && !isCancelled()) {
+	                    String md5 = FileUtils.toHexMd5(md.digest());
+	                    if (!md5.equalsIgnoreCase(expectedMd5)) {
+	                        // corrupt, or the file changed on the server; the retry starts over
+	                        FileUtils.deleteAndReport(tempFile);
+	                        String errMsg =
+	                            Collect.getInstance().getString(R.string.file_hash_mismatch, downloadUrl,
+	                                expectedMd5, md5);
+	                        Log.e(t, errMsg);
+	                        throw new Exception(errMsg);
+	                    }
+	                }
 	                success = true;
 	            } finally {
 	                if (os != null) {
@@ -462,7 +731,9 @@ public class DownloadFormsTask extends
 	            // silently retry unless this is the last attempt,
 	            // in which case we rethrow the exception.
 
-                FileUtils.deleteAndReport(tempFile);
+	            if (!resumable) {
+	                FileUtils.deleteAndReport(tempFile);
+	            }
 
 	            if ( attemptCount == MAX_ATTEMPT_COUNT ) {
 	            	throw e;
@@ -470,8 +741,10 @@ public class DownloadFormsTask extends
 	        }
 
             if (isCancelled()) {
-                FileUtils.deleteAndReport(tempFile);
-                throw new TaskCancelledException(tempFile, "Cancelled downloading of " + tempFile.getAbsolutePath());
+                if (!resumable) {
+                    FileUtils.deleteAndReport(tempFile);
+                }
+                throw new TaskCancelledException(fileOnCancel, "Cancelled downloading of " + tempFile.getAbsolutePath());
             }
         }
 
@@ -479,6 +752,10 @@ public class DownloadFormsTask extends
 
         FileUtils.deleteAndReport(file);
 
+        if (tempFile.renameTo(file)) {
+            return;
+        }
+
         String errorMessage = FileUtils.copyFile(tempFile, file);
 
         if (file.exists()) {
@@ -491,6 +768,19 @@ public class DownloadFormsTask extends
         }
     }
 
+    private static void digestFile(MessageDigest md, File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            byte buf[] = new byte[DOWNLOAD_BUFFER_SIZE];
+            int len;
+            while ((len = is.read(buf)) > 0) {
+                md.update(buf, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
     private static class UriResult {
 
         private final Uri uri;
@@ -535,6 +825,18 @@ public class DownloadFormsTask extends
         }
     }
 
+    private static class FormDownload {
+        final FormDetails fd;
+        FileResult fileResult = null;
+        String tempMediaPath = null;
+        String message = "";
+        boolean cancelled = false;
+
+        FormDownload(FormDetails fd) {
+            this.fd = fd;
+        }
+    }
+
     private static class MediaFile {
         final String filename;
         final String hash;
@@ -652,7 +954,6 @@ public class DownloadFormsTask extends
 
         // OK we now have the full set of files to download...
         Log.i(t, "Downloading " + files.size() + " media files.");
-        int mediaCount = 0;
         if (files.size() > 0) {
             File tempMediaDir = new File(tempMediaPath);
             File finalMediaDir = new File(finalMediaPath);
@@ -660,39 +961,89 @@ public class DownloadFormsTask extends
             FileUtils.checkMediaPath(tempMediaDir);
             FileUtils.checkMediaPath(finalMediaDir);
 
-            for (MediaFile toDownload : files) {
-                ++mediaCount;
-                publishProgress(
-                    Collect.getInstance().getString(R.string.form_download_progress, fd.formName,
-                        mediaCount, files.size()), Integer.valueOf(count).toString(), Integer
-                            .valueOf(total).toString());
-//                try {
-                    File finalMediaFile = new File(finalMediaDir, toDownload.filename);
-                    File tempMediaFile = new File(tempMediaDir, toDownload.filename);
-
-                    if (!finalMediaFile.exists()) {
-                        downloadFile(tempMediaFile, toDownload.downloadUrl);
-                    } else {
-                        String currentFileHash = FileUtils.getMd5Hash(finalMediaFile);
-                        String downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
-
-                        if (!currentFileHash.contentEquals(downloadFileHash)) {
-                            // if the hashes match, it's the same file
-                            // otherwise delete our current one and replace it with the new one
-                            FileUtils.deleteAndReport(finalMediaFile);
-                            downloadFile(tempMediaFile, toDownload.downloadUrl);
-                        } else {
-                            // exists, and the hash is the same
-                            // no need to download it again
-                        	Log.i(t, "Skipping media file fetch -- file hashes identical: " + finalMediaFile.getAbsolutePath());
+            downloadMediaFilesConcurrently(files, tempMediaDir, finalMediaDir, fd, count, total);
+        }
+        return null;
+    }
+
+
+    /**
+     * Downloads the media files into tempMediaDir on the shared pool of {@link #MAX_MEDIA_DOWNLOADS}
+     * threads. Each thread uses its own HttpContext layered over the shared one, so cookies and
+     * credentials are shared but the per-request state is not. Progress is reported as each file
+     * completes. Once a download fails, the files not yet started are skipped and the first
+     * failure is rethrown.
+     */
+    private void downloadMediaFilesConcurrently(List<MediaFile> files, final File tempMediaDir,
+            final File finalMediaDir, final FormDetails fd, final int count, final int total)
+            throws Exception {
+        final int mediaTotal = files.size();
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        try {
+            List<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
+            for (final MediaFile toDownload : files) {
+                jobs.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        if (isCancelled() || failed.get()) {
+                            return null;
                         }
+                        try {
+                            downloadMediaFile(toDownload, tempMediaDir, finalMediaDir, mMediaContext.get());
+                        } catch (Exception e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                        publishProgress(
+                            Collect.getInstance().getString(R.string.form_download_progress, fd.formName,
+                                completed.incrementAndGet(), mediaTotal), Integer.valueOf(count).toString(),
+                                Integer.valueOf(total).toString());
+                        return null;
                     }
-//                } catch (Exception e) {
-//                    return e.getLocalizedMessage();
-//                }
+                });
             }
+            for (Future<Void> future : mMediaExecutor.invokeAll(jobs)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TaskCancelledException(null, "Interrupted while downloading the media files of " + fd.formName);
         }
-        return null;
+    }
+
+
+    private void downloadMediaFile(MediaFile toDownload, File tempMediaDir, File finalMediaDir,
+            HttpContext localContext) throws Exception {
+        File finalMediaFile = new File(finalMediaDir, toDownload.filename);
+        File tempMediaFile = new File(tempMediaDir, toDownload.filename);
+
+        String downloadFileHash = null;
+        if (toDownload.hash.startsWith(MD5_COLON_PREFIX)) {
+            downloadFileHash = toDownload.hash.substring(MD5_COLON_PREFIX.length());
+        }
+
+        if (finalMediaFile.exists()) {
+            String currentFileHash = FileHashDbAdapter.getMd5Hash(finalMediaFile);
+
+            if (currentFileHash != null && currentFileHash.equalsIgnoreCase(downloadFileHash)) {
+                // exists, and the hash is the same
+                // no need to download it again
+                Log.i(t, "Skipping media file fetch -- file hashes identical: " + finalMediaFile.getAbsolutePath());
+                return;
+            }
+            // the hashes differ: delete our current one and replace it with the new one
+            FileUtils.deleteAndReport(finalMediaFile);
+        }
+        downloadFile(tempMediaFile, toDownload.downloadUrl, localContext, downloadFileHash);
     }
 
 
@@ -14,13 +14,10 @@
 
 package org.odk.collect.android.tasks;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
@@ -35,8 +32,6 @@ import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
 import org.javarosa.core.reference.ReferenceManager;
 import org.javarosa.core.reference.RootTranslator;
-import org.javarosa.core.util.externalizable.DeserializationException;
-import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.debug.Event;
 import org.javarosa.debug.EventNotifier;
 import org.javarosa.form.api.FormEntryController;
@@ -54,12 +49,14 @@ import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.external.ExternalDataManagerImpl;
 import org.odk.collect.android.external.ExternalDataReader;
 import org.odk.collect.android.external.ExternalDataReaderImpl;
+import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
 import org.odk.collect.android.logic.FormController;
 import org.odk.collect.android.preferences.AdminPreferencesActivity;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCache;
 import org.odk.collect.android.utilities.ZipUtils;
 
 import android.content.Intent;
@@ -134,8 +131,8 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     String formPath = path[0];
 
     File formXml = new File(formPath);
-    String formHash = FileUtils.getMd5Hash(formXml);
-    File formBin = new File(Collect.CACHE_PATH + File.separator + formHash + ".formdef");
+    String formHash = FormDefCache.getMd5Hash(formXml);
+    File formBin = FormDefCache.getCacheFile(formHash);
 
     publishProgress(Collect.getInstance().getString(R.string.survey_loading_reading_form_message));
 
@@ -168,13 +165,26 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     if (fd == null) {
       // no binary, read from xml
       try {
-        Log.i(t, "Attempting to load from: " + formXml.getAbsolutePath());
-        fis = new FileInputStream(formXml);
-        fd = XFormUtils.getFormFromInputStream(fis);
-        if (fd == null) {
-          mErrorMsg = "Error reading XForm file";
-        } else {
-          serializeFormDef(fd, formPath);
+        // one parse at a time, and wait for a prewarm of this form to finish
+        // rather than parse it again
+        synchronized (FormDefCache.PARSE_LOCK) {
+          if (formBin.exists()) {
+            Log.i(t, "Loading " + formXml.getName() + " from the cache file built meanwhile");
+            fd = deserializeFormDef(formBin);
+            if (fd == null) {
+              formBin.delete();
+            }
+          }
+          if (fd == null) {
+            Log.i(t, "Attempting to load from: " + formXml.getAbsolutePath());
+            fis = new FileInputStream(formXml);
+            fd = XFormUtils.getFormFromInputStream(fis);
+            if (fd == null) {
+              mErrorMsg = "Error reading XForm file";
+            } else {
+              FormDefCache.write(fd, formHash);
+            }
+          }
         }
       } catch (FileNotFoundException e) {
         e.printStackTrace();
@@ -205,7 +215,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
     fd.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
 
     try {
-      loadExternalData(formMediaDir);
+      loadExternalData(formMediaDir, fd);
     } catch (Exception e) {
       mErrorMsg = e.getMessage();
       e.printStackTrace();
@@ -343,6 +353,14 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
 
     FormController fc = new FormController(formMediaDir, fec, mInstancePath == null ? null
         : new File(mInstancePath));
+    if (fc.getAnswerJournal() != null && fc.getAnswerJournal().isNewerThan(new File(mInstancePath))) {
+      // replay the answers given since the last savepoint
+      int replayed = fc.replayAnswerJournal();
+      Log.w(t, "Replayed " + replayed + " journaled answers over " + mInstancePath);
+      if (replayed > 0) {
+        usedSavepoint = true;
+      }
+    }
     if (mXPath != null) {
       // we are resuming after having terminated -- set index to this
       // position...
@@ -359,7 +377,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
   }
 
   @SuppressWarnings("unchecked")
-  private void loadExternalData(File mediaFolder) {
+  private void loadExternalData(File mediaFolder, FormDef formDef) {
     // SCTO-594
     File[] zipFiles = mediaFolder.listFiles(new FileFilter() {
       @Override
@@ -400,7 +418,8 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         publishProgress(Collect.getInstance()
             .getString(R.string.survey_loading_reading_csv_message));
 
-        ExternalDataReader externalDataReader = new ExternalDataReaderImpl(this);
+        ExternalDataReader externalDataReader = new ExternalDataReaderImpl(this,
+            ExternalDataUtil.findSearchedColumns(formDef));
         externalDataReader.doImport(externalDataMap);
       }
     }
@@ -470,35 +489,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
    * @return {@link FormDef} object
    */
   public FormDef deserializeFormDef(File formDef) {
-
-    // TODO: any way to remove reliance on jrsp?
-    FileInputStream fis = null;
-    FormDef fd = null;
-    try {
-      // create new form def
-      fd = new FormDef();
-      fis = new FileInputStream(formDef);
-      DataInputStream dis = new DataInputStream(fis);
-
-      // read serialized formdef into new formdef
-      fd.readExternal(dis, ExtUtil.defaultPrototypes());
-      dis.close();
-
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-      fd = null;
-    } catch (IOException e) {
-      e.printStackTrace();
-      fd = null;
-    } catch (DeserializationException e) {
-      e.printStackTrace();
-      fd = null;
-    } catch (Exception e) {
-      e.printStackTrace();
-      fd = null;
-    }
-
-    return fd;
+    return FormDefCache.read(formDef);
   }
 
   /**
@@ -508,25 +499,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
    *          path to the form file
    */
   public void serializeFormDef(FormDef fd, String filepath) {
-    // calculate unique md5 identifier
-    String hash = FileUtils.getMd5Hash(new File(filepath));
-    File formDef = new File(Collect.CACHE_PATH + File.separator + hash + ".formdef");
-
-    // formdef does not exist, create one.
-    if (!formDef.exists()) {
-      FileOutputStream fos;
-      try {
-        fos = new FileOutputStream(formDef);
-        DataOutputStream dos = new DataOutputStream(fos);
-        fd.writeExternal(dos);
-        dos.flush();
-        dos.close();
-      } catch (FileNotFoundException e) {
-        e.printStackTrace();
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-    }
+    FormDefCache.write(fd, FormDefCache.getMd5Hash(new File(filepath)));
   }
 
   @Override
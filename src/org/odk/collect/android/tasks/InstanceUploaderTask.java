@@ -25,32 +25,50 @@ import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.ServerProbeDbAdapter;
+import org.odk.collect.android.exception.EncryptionException;
 import org.odk.collect.android.listeners.InstanceUploaderListener;
 import org.odk.collect.android.logic.PropertyManager;
 import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.utilities.EncryptedFileBody;
+import org.odk.collect.android.utilities.EncryptionUtils;
+import org.odk.collect.android.utilities.EncryptionUtils.DeferredEncryption;
 import org.odk.collect.android.utilities.WebUtils;
 import org.opendatakit.httpclientandroidlib.Header;
 import org.opendatakit.httpclientandroidlib.HttpResponse;
 import org.opendatakit.httpclientandroidlib.HttpStatus;
+import org.opendatakit.httpclientandroidlib.auth.AuthScope;
+import org.opendatakit.httpclientandroidlib.auth.AuthState;
 import org.opendatakit.httpclientandroidlib.client.ClientProtocolException;
+import org.opendatakit.httpclientandroidlib.client.CredentialsProvider;
 import org.opendatakit.httpclientandroidlib.client.HttpClient;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpHead;
 import org.opendatakit.httpclientandroidlib.client.methods.HttpPost;
+import org.opendatakit.httpclientandroidlib.client.protocol.ClientContext;
 import org.opendatakit.httpclientandroidlib.conn.ConnectTimeoutException;
 import org.opendatakit.httpclientandroidlib.conn.HttpHostConnectException;
 import org.opendatakit.httpclientandroidlib.entity.mime.MultipartEntity;
 import org.opendatakit.httpclientandroidlib.entity.mime.content.FileBody;
 import org.opendatakit.httpclientandroidlib.entity.mime.content.StringBody;
+import org.opendatakit.httpclientandroidlib.impl.client.BasicAuthCache;
+import org.opendatakit.httpclientandroidlib.protocol.BasicHttpContext;
 import org.opendatakit.httpclientandroidlib.protocol.HttpContext;
 
 import android.content.ContentValues;
@@ -59,6 +77,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
@@ -76,39 +95,164 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
 
     private InstanceUploaderListener mStateListener;
 
+    // true while submissions are uploaded by more than one thread
+    private volatile boolean mConcurrent = false;
+
+    // one lock per submission Uri, serializing the HEAD requests to that server
+    private final Map<Uri, Object> mProbeLocks = new HashMap<Uri, Object>();
+
     public static class Outcome {
         public Uri mAuthRequestingServer = null;
         public HashMap<String, String> mResults = new HashMap<String,String>();
     }
 
+    private static class Submission {
+        final String mId;
+        final String mInstanceFilePath;
+        final Uri mToUpdate;
+        final String mUrlString;
+
+        Submission(String id, String instanceFilePath, Uri toUpdate, String urlString) {
+            mId = id;
+            mInstanceFilePath = instanceFilePath;
+            mToUpdate = toUpdate;
+            mUrlString = urlString;
+        }
+    }
+
     /**
-     * Uploads to urlString the submission identified by id with filepath of instance
-     * @param urlString destination URL
-     * @param id
-     * @param instanceFilePath
-     * @param toUpdate - Instance URL for recording status update.
-     * @param httpclient - client connection
-     * @param localContext - context (e.g., credentials, cookies) for client connection
-     * @param uriRemap - mapping of Uris to avoid redirects on subsequent invocations
-     * @return false if credentials are required and we should terminate immediately.
+     * Where a submission is sent, as resolved by resolveSubmissionUri.
      */
-    private boolean uploadOneSubmission(String urlString, String id, String instanceFilePath,
-    			Uri toUpdate, HttpContext localContext, Map<Uri, Uri> uriRemap, Outcome outcome) {
+    private static class SubmissionTarget {
+        Uri mUri;
+        boolean mOpenRosaServer = false;
+        // true if the HEAD request was skipped; the credentials it would have
+        // asked for may not be in localContext yet
+        boolean mHeadSkipped = true;
+    }
 
-    	Collect.getInstance().getActivityLogger().logAction(this, urlString, instanceFilePath);
+    private synchronized Object getProbeLock(Uri u) {
+        Object lock = mProbeLocks.get(u);
+        if (lock == null) {
+            lock = new Object();
+            mProbeLocks.put(u, lock);
+        }
+        return lock;
+    }
 
-        File instanceFile = new File(instanceFilePath);
-        ContentValues cv = new ContentValues();
-        Uri u = Uri.parse(urlString);
-        HttpClient httpclient = WebUtils.createHttpClient(CONNECTION_TIMEOUT);
+    /**
+     * @return the key under which an acknowledged attachment is recorded; a
+     *         file that changed since it was sent will not match it.
+     */
+    private static String getAttachmentKey(File f) {
+        return f.getName() + ":" + f.length() + ":" + f.lastModified();
+    }
+
+    private static Set<String> getAcknowledgedAttachments(Uri toUpdate) {
+        Set<String> acknowledged = new HashSet<String>();
+        Cursor c = null;
+        try {
+            c = Collect.getInstance().getContentResolver().query(toUpdate, new String[] {
+                    InstanceColumns.ACKNOWLEDGED_ATTACHMENTS
+            }, null, null, null);
+            if (c != null && c.moveToFirst() && !c.isNull(0)) {
+                for (String key : c.getString(0).split("\n")) {
+                    if (key.length() != 0) {
+                        acknowledged.add(key);
+                    }
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return acknowledged;
+    }
+
+    /**
+     * @return the keys to encrypt the attachments of the instance with as
+     *         they are sent, or null if they are not to be encrypted (or are
+     *         already).
+     * @throws EncryptionException if they are to be encrypted, but the keys
+     *             cannot be read
+     */
+    private static DeferredEncryption getDeferredEncryption(Uri toUpdate)
+            throws EncryptionException {
+        Cursor c = null;
+        try {
+            c = Collect.getInstance().getContentResolver().query(toUpdate, new String[] {
+                    InstanceColumns.DEFERRED_ENCRYPTION
+            }, null, null, null);
+            if (c != null && c.moveToFirst() && !c.isNull(0)) {
+                return DeferredEncryption.parse(c.getString(0));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the name of the scheme the server authenticated the last
+     *         request of localContext with, or null if it did not ask.
+     */
+    private static String getAuthScheme(HttpContext localContext) {
+        AuthState authState = (AuthState) localContext.getAttribute(ClientContext.TARGET_AUTH_STATE);
+        if (authState == null || authState.getAuthScheme() == null) {
+            return null;
+        }
+        return authState.getAuthScheme().getSchemeName();
+    }
+
+    /**
+     * @return true if credentials for host are held, as set by
+     *         WebUtils.addCredentials for every scheme it may ask for
+     */
+    private static boolean hasHostCredentials(String host) {
+        CredentialsProvider credsProvider = Collect.getInstance().getCredentialsProvider();
+        for (AuthScope a : WebUtils.buildAuthScopes(host)) {
+            if (credsProvider.getCredentials(a) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        boolean openRosaServer = false;
+    /**
+     * Drops all open connections after an unexpected error. When uploading
+     * concurrently this would abort the other uploads, so the pooled
+     * connection manager is left to discard the failed connection instead.
+     */
+    private void clearConnections() {
+        if (!mConcurrent) {
+            WebUtils.clearHttpConnectionManager();
+        }
+    }
+
+    /**
+     * Resolves the Uri to send a submission to: from the remap of an earlier
+     * submission, from a cached probe of the server, or by issuing a HEAD
+     * request. Called holding the probe lock of u.
+     *
+     * @return where to send the submission, or null if it is not to be sent:
+     *         either its failure is recorded in outcome, or outcome asks for
+     *         credentials
+     */
+    private SubmissionTarget resolveSubmissionUri(Uri u, String id, String urlString,
+            Uri toUpdate, HttpClient httpclient, HttpContext localContext,
+            Map<Uri, Uri> uriRemap, Outcome outcome) {
+        ContentValues cv = new ContentValues();
+        SubmissionTarget target = new SubmissionTarget();
+        ServerProbeDbAdapter.Probe probe;
         if (uriRemap.containsKey(u)) {
             // we already issued a head request and got a response,
             // so we know the proper URL to send the submission to
             // and the proper scheme. We also know that it was an
             // OpenRosa compliant server.
-            openRosaServer = true;
+            target.mOpenRosaServer = true;
             u = uriRemap.get(u);
 
             // if https then enable preemptive basic auth...
@@ -117,6 +261,24 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             }
 
             Log.i(t, "Using Uri remap for submission " + id + ". Now: " + u.toString());
+        } else if ((probe = ServerProbeDbAdapter.get(u)) != null
+                && (probe.mAuthScheme == null || hasHostCredentials(probe.mLocation.getHost()))) {
+            // an earlier upload already probed this server, so skip the
+            // HEAD request and use the location it redirected us to. If the
+            // server asked for credentials and none are held (e.g., after a
+            // restart), the HEAD request below asks for them instead of
+            // sending the whole submission to be challenged.
+            target.mOpenRosaServer = true;
+            uriRemap.put(u, probe.mLocation);
+            u = probe.mLocation;
+
+            // if https then enable preemptive basic auth...
+            if ( u.getScheme().equals("https") ) {
+            	WebUtils.enablePreemptiveBasicAuth(localContext, u.getHost());
+            }
+
+            Log.i(t, "Using cached probe for submission " + id + ". Now: " + u.toString()
+            		+ " (auth: " + probe.mAuthScheme + ")");
         } else {
 
             // if https then enable preemptive basic auth...
@@ -125,6 +287,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             }
 
             // we need to issue a head request
+            target.mHeadSkipped = false;
             HttpHead httpHead = WebUtils.createOpenRosaHttpHead(u);
 
             // prepare response
@@ -137,12 +300,13 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                 if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
             		// clear the cookies -- should not be necessary?
             		Collect.getInstance().getCookieStore().clear();
+            		ServerProbeDbAdapter.invalidateHost(u.getHost());
 
                 	WebUtils.discardEntityBytes(response);
             		// we need authentication, so stop and return what we've
                     // done so far.
                 	outcome.mAuthRequestingServer = u;
-                    return false;
+                    return null;
                 } else if (statusCode == 204) {
                 	Header[] locations = response.getHeaders("Location");
                 	WebUtils.discardEntityBytes(response);
@@ -150,14 +314,16 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                         try {
                             Uri uNew = Uri.parse(URLDecoder.decode(locations[0].getValue(), "utf-8"));
                             if (u.getHost().equalsIgnoreCase(uNew.getHost())) {
-                                openRosaServer = true;
+                                target.mOpenRosaServer = true;
                                 // trust the server to tell us a new location
                                 // ... and possibly to use https instead.
                                 uriRemap.put(u, uNew);
+                                ServerProbeDbAdapter.put(u, uNew, getAuthScheme(localContext));
                                 u = uNew;
                             } else {
                                 // Don't follow a redirection attempt to a different host.
                                 // We can't tell if this is a spoof or not.
+                                ServerProbeDbAdapter.invalidate(u);
                             	outcome.mResults.put(
                                     id,
                                     fail
@@ -167,7 +333,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                                     InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                                 Collect.getInstance().getContentResolver()
                                         .update(toUpdate, cv, null, null);
-                                return true;
+                                return null;
                             }
                         } catch (Exception e) {
                             e.printStackTrace();
@@ -176,7 +342,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                                 InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                             Collect.getInstance().getContentResolver()
                                     .update(toUpdate, cv, null, null);
-                            return true;
+                            return null;
                         }
                     }
                 } else {
@@ -193,53 +359,53 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                             InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                         Collect.getInstance().getContentResolver()
                                 .update(toUpdate, cv, null, null);
-                        return true;
+                        return null;
                     }
                 }
             } catch (ClientProtocolException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                clearConnections();
                 outcome.mResults.put(id, fail + "Client Protocol Exception");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
-                return true;
+                return null;
             } catch (ConnectTimeoutException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                clearConnections();
                 outcome.mResults.put(id, fail + "Connection Timeout");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
-                return true;
+                return null;
             } catch (UnknownHostException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                clearConnections();
                 outcome.mResults.put(id, fail + e.toString() + " :: Network Connection Failed");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
-                return true;
+                return null;
             } catch (SocketTimeoutException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                clearConnections();
                 outcome.mResults.put(id, fail + "Connection Timeout");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
-                return true;
+                return null;
             } catch (HttpHostConnectException e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                clearConnections();
                 outcome.mResults.put(id, fail + "Network Connection Refused");
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
-                return true;
+                return null;
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                clearConnections();
                 String msg = e.getMessage();
                 if (msg == null) {
                     msg = e.toString();
@@ -247,9 +413,49 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                 outcome.mResults.put(id, fail + "Generic Exception: " + msg);
                 cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
                 Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
-                return true;
+                return null;
             }
         }
+        target.mUri = u;
+        return target;
+    }
+
+    /**
+     * Uploads to urlString the submission identified by id with filepath of instance
+     * @param urlString destination URL
+     * @param id
+     * @param instanceFilePath
+     * @param toUpdate - Instance URL for recording status update.
+     * @param httpclient - client connection
+     * @param localContext - context (e.g., credentials, cookies) for client connection
+     * @param uriRemap - mapping of Uris to avoid redirects on subsequent invocations
+     * @return false if credentials are required and we should terminate immediately.
+     */
+    private boolean uploadOneSubmission(String urlString, String id, String instanceFilePath,
+    			Uri toUpdate, HttpContext localContext, Map<Uri, Uri> uriRemap, Outcome outcome) {
+
+    	Collect.getInstance().getActivityLogger().logAction(this, urlString, instanceFilePath);
+
+        File instanceFile = new File(instanceFilePath);
+        ContentValues cv = new ContentValues();
+        Uri u = Uri.parse(urlString);
+        HttpClient httpclient = WebUtils.createHttpClient(CONNECTION_TIMEOUT);
+
+        Uri probedUri = u;
+        SubmissionTarget target;
+        // concurrent uploads to the same server wait here for the first
+        // one to issue the HEAD request, then all use the same remapped Uri.
+        synchronized (getProbeLock(u)) {
+            target = resolveSubmissionUri(u, id, urlString, toUpdate, httpclient, localContext,
+                    uriRemap, outcome);
+        }
+        if (target == null) {
+            // stop only if credentials are needed
+            return outcome.mAuthRequestingServer == null;
+        }
+        u = target.mUri;
+        boolean openRosaServer = target.mOpenRosaServer;
+        boolean headSkipped = target.mHeadSkipped;
 
         // At this point, we may have updated the uri to use https.
         // This occurs only if the Location header keeps the host name
@@ -285,6 +491,23 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             return true;
         }
 
+        // attachments the server already acknowledged in an interrupted
+        // submission need not be sent again (OpenRosa servers only).
+        Set<String> acknowledged = openRosaServer ? getAcknowledgedAttachments(toUpdate)
+                : new HashSet<String>();
+
+        // attachments of an encrypted form that are encrypted as they are sent
+        DeferredEncryption deferredEncryption;
+        try {
+            deferredEncryption = getDeferredEncryption(toUpdate);
+        } catch (EncryptionException e) {
+            // never send the attachments in plaintext instead
+            outcome.mResults.put(id, fail + e.getMessage());
+            cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
+            Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
+            return true;
+        }
+
         // find all files in parent directory
         File[] allFiles = instanceFile.getParentFile().listFiles();
 
@@ -307,6 +530,8 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                 continue; // the xml file has already been added
             } else if (fileName.equals(submissionFile.getName())) {
                 continue; // the xml file has already been added
+            } else if (acknowledged.contains(getAttachmentKey(f))) {
+                Log.i(t, "skipping attachment acknowledged by the server: " + f.getName());
             } else if (openRosaServer) {
                 files.add(f);
             } else if (extension.equals("jpg")) { // legacy 0.9x
@@ -328,6 +553,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         while (j < files.size() || first) {
         	lastJ = j;
             first = false;
+            boolean incomplete = false;
 
             HttpPost httppost = WebUtils.createOpenRosaHttpPost(u);
 
@@ -356,7 +582,17 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
 
                 // we will be processing every one of these, so
                 // we only need to deal with the content type determination...
-                if (extension.equals("xml")) {
+                if (deferredEncryption != null && deferredEncryption.isDeferred(f)) {
+                    // sent as its .enc file would have been
+                    contentType = m.getMimeTypeFromExtension("enc");
+                    if (contentType == null) {
+                        contentType = "application/octet-stream";
+                    }
+                    fb = new EncryptedFileBody(f, contentType, deferredEncryption);
+                    entity.addPart(fb.getFilename(), fb);
+                    byteCount += f.length();
+                    Log.i(t, "added file " + f.getName() + " as " + fb.getFilename());
+                } else if (extension.equals("xml")) {
                     fb = new FileBody(f, "text/xml");
                     entity.addPart(f.getName(), fb);
                     byteCount += f.length();
@@ -417,6 +653,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                         try {
                             StringBody sb = new StringBody("yes", Charset.forName("UTF-8"));
                             entity.addPart("*isIncomplete*", sb);
+                            incomplete = true;
                         } catch (Exception e) {
                             e.printStackTrace(); // never happens...
                         }
@@ -440,11 +677,22 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                 // verify that the response was a 201 or 202.
                 // If it wasn't, the submission has failed.
                 if (responseCode != HttpStatus.SC_CREATED && responseCode != HttpStatus.SC_ACCEPTED) {
+                    // the server may have moved or changed its credentials,
+                    // so probe it again next time.
+                    ServerProbeDbAdapter.invalidate(probedUri);
                     if (responseCode == HttpStatus.SC_OK) {
                     	outcome.mResults.put(id, fail + "Network login failure? Again?");
                     } else if (responseCode == HttpStatus.SC_UNAUTHORIZED) {
                 		// clear the cookies -- should not be necessary?
                     	Collect.getInstance().getCookieStore().clear();
+                    	ServerProbeDbAdapter.invalidateHost(u.getHost());
+                    	if (headSkipped) {
+                    	    // as if the HEAD request had been challenged: probe
+                    	    // again next time, and stop to get credentials.
+                    	    uriRemap.remove(probedUri);
+                    	    outcome.mAuthRequestingServer = u;
+                    	    return false;
+                    	}
                     	outcome.mResults.put(id, fail + response.getStatusLine().getReasonPhrase()
                                 + " (" + responseCode + ") at " + urlString);
                     } else {
@@ -457,10 +705,21 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
                             .update(toUpdate, cv, null, null);
                     return true;
                 }
+
+                if (incomplete && openRosaServer) {
+                    // the server has these attachments; don't resend them if
+                    // a later part fails.
+                    for (File f : files.subList(lastJ, j)) {
+                        acknowledged.add(getAttachmentKey(f));
+                    }
+                    ContentValues ack = new ContentValues();
+                    ack.put(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS, TextUtils.join("\n", acknowledged));
+                    Collect.getInstance().getContentResolver().update(toUpdate, ack, null, null);
+                }
             } catch (Exception e) {
                 e.printStackTrace();
                 Log.e(t, e.toString());
-                WebUtils.clearHttpConnectionManager();
+                clearConnections();
                 String msg = e.getMessage();
                 if (msg == null) {
                     msg = e.toString();
@@ -473,8 +732,16 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         }
 
         // if it got here, it must have worked
+        if (deferredEncryption != null) {
+            // the server has the encrypted attachments; drop the plaintext ones and their keys
+            if (!EncryptionUtils.deletePlaintextFiles(instanceFile)) {
+                Log.e(t, "Error deleting plaintext files for " + instanceFile.getAbsolutePath());
+            }
+            cv.putNull(InstanceColumns.DEFERRED_ENCRYPTION);
+        }
         outcome.mResults.put(id, Collect.getInstance().getString(R.string.success));
         cv.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMITTED);
+        cv.putNull(InstanceColumns.ACKNOWLEDGED_ATTACHMENTS);
         Collect.getInstance().getContentResolver().update(toUpdate, cv, null, null);
         return true;
     }
@@ -501,8 +768,9 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
         // get shared HttpContext so that authentication and cookies are retained.
         HttpContext localContext = Collect.getInstance().getHttpContext();
 
-        Map<Uri, Uri> uriRemap = new HashMap<Uri, Uri>();
+        Map<Uri, Uri> uriRemap = Collections.synchronizedMap(new HashMap<Uri, Uri>());
 
+        List<Submission> submissions = new ArrayList<Submission>();
         Cursor c = null;
         try {
         	c = Collect.getInstance().getContentResolver()
@@ -511,10 +779,6 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
 	        if (c.getCount() > 0) {
 	            c.moveToPosition(-1);
 	            while (c.moveToNext()) {
-	                if (isCancelled()) {
-	                    return outcome;
-	                }
-	                publishProgress(c.getPosition() + 1, c.getCount());
 	                String instance = c.getString(c.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
 	                String id = c.getString(c.getColumnIndex(InstanceColumns._ID));
 	                Uri toUpdate = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, id);
@@ -547,9 +811,7 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
 						// unreachable...
 					}
 
-	                if ( !uploadOneSubmission(urlString, id, instance, toUpdate, localContext, uriRemap, outcome) ) {
-	                	return outcome; // get credentials...
-	                }
+	                submissions.add(new Submission(id, instance, toUpdate, urlString));
 	            }
 	        }
         } finally {
@@ -558,9 +820,104 @@ public class InstanceUploaderTask extends AsyncTask<Long, Integer, InstanceUploa
             }
         }
 
+        int parallelism = Math.min(getParallelism(), submissions.size());
+        if (parallelism > 1) {
+        	uploadConcurrently(submissions, parallelism, localContext, uriRemap, outcome);
+        	return outcome;
+        }
+
+        for (int i = 0; i < submissions.size(); i++) {
+            if (isCancelled()) {
+                return outcome;
+            }
+            publishProgress(i + 1, submissions.size());
+            Submission s = submissions.get(i);
+            if ( !uploadOneSubmission(s.mUrlString, s.mId, s.mInstanceFilePath, s.mToUpdate,
+            		localContext, uriRemap, outcome) ) {
+            	return outcome; // get credentials...
+            }
+        }
+
         return outcome;
     }
 
+    /**
+     * @return the number of submissions to upload at once, from the preferences
+     */
+    private int getParallelism() {
+        SharedPreferences settings =
+                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        try {
+            int parallelism = Integer.parseInt(settings.getString(
+                    PreferencesActivity.KEY_UPLOAD_PARALLELISM, "1"));
+            return Math.max(1, Math.min(parallelism, WebUtils.MAX_CONNECTIONS_PER_ROUTE));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    /**
+     * Uploads the submissions on a pool of parallelism threads. Each thread
+     * uses its own HttpContext layered over the shared one, so cookies and
+     * credentials are shared but the per-request state is not. Progress is
+     * reported as each submission completes. If a server asks for
+     * credentials, the submissions not yet started are left for the retry.
+     */
+    private void uploadConcurrently(List<Submission> submissions, int parallelism,
+            final HttpContext localContext, final Map<Uri, Uri> uriRemap, final Outcome outcome) {
+        final int total = submissions.size();
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicBoolean authRequested = new AtomicBoolean(false);
+        final ThreadLocal<HttpContext> threadContext = new ThreadLocal<HttpContext>() {
+            @Override
+            protected HttpContext initialValue() {
+                HttpContext context = new BasicHttpContext(localContext);
+                // the auth cache is not thread-safe
+                context.setAttribute(ClientContext.AUTH_CACHE, new BasicAuthCache());
+                return context;
+            }
+        };
+
+        Log.i(t, "Uploading " + total + " submissions on " + parallelism + " threads");
+        mConcurrent = true;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Callable<Void>> jobs = new ArrayList<Callable<Void>>();
+            for (final Submission s : submissions) {
+                jobs.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        if (isCancelled() || authRequested.get()) {
+                            return null;
+                        }
+                        Outcome result = new Outcome();
+                        boolean proceed = uploadOneSubmission(s.mUrlString, s.mId, s.mInstanceFilePath,
+                                s.mToUpdate, threadContext.get(), uriRemap, result);
+                        synchronized (outcome) {
+                            outcome.mResults.putAll(result.mResults);
+                            if (!proceed && outcome.mAuthRequestingServer == null) {
+                                outcome.mAuthRequestingServer = result.mAuthRequestingServer;
+                            }
+                        }
+                        if (!proceed) {
+                            authRequested.set(true); // get credentials...
+                        } else {
+                            publishProgress(completed.incrementAndGet(), total);
+                        }
+                        return null;
+                    }
+                });
+            }
+            executor.invokeAll(jobs);
+        } catch (InterruptedException e) {
+            Log.w(t, "Interrupted while uploading submissions");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            mConcurrent = false;
+        }
+    }
+
 
     @Override
     protected void onPostExecute(Outcome outcome) {
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Originally developed by Dobility, Inc. (as part of SurveyCTO)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.javarosa.core.services.transport.payload.ByteArrayPayload;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.listeners.SavePointListener;
+import org.odk.collect.android.logic.AnswerJournal;
+import org.odk.collect.android.logic.FormController;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Writes savepoints on a single background thread. Requests arriving while
+ * one is pending are coalesced into it, and the write is debounced until no
+ * request has arrived for {@link #getDebounceMillis()}, but never delayed more
+ * than {@link #getMaxStalenessMillis()} after the first pending request.
+ * Requesting a savepoint never blocks the calling (UI) thread.
+ */
+public class SavePointScheduler {
+
+    private final static String t = "SavePointScheduler";
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+    public static final long DEFAULT_MAX_STALENESS_MILLIS = 3000;
+
+    private static SavePointScheduler singleton = null;
+
+    public static synchronized SavePointScheduler getInstance() {
+        if (singleton == null) {
+            singleton = new SavePointScheduler();
+        }
+        return singleton;
+    }
+
+    private final ScheduledExecutorService mWorker =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, t);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mWriteSavePoint = new Runnable() {
+        @Override
+        public void run() {
+            writeSavePoint();
+        }
+    };
+
+    private long mDebounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+    private long mMaxStalenessMillis = DEFAULT_MAX_STALENESS_MILLIS;
+
+    // pending request state; guarded by this
+    private boolean mPending = false;
+    private long mFirstPendingTime = 0L;
+    private ScheduledFuture<?> mScheduledWrite = null;
+    private WeakReference<SavePointListener> mListener = null;
+
+    // metrics; guarded by this
+    private int mRequestCount = 0;
+    private int mWrittenCount = 0;
+    private int mFailedCount = 0;
+    private long mTotalWriteMillis = 0L;
+    private long mMaxWriteMillis = 0L;
+
+    private SavePointScheduler() {
+    }
+
+    public synchronized long getDebounceMillis() {
+        return mDebounceMillis;
+    }
+
+    public synchronized void setDebounceMillis(long debounceMillis) {
+        mDebounceMillis = Math.max(0L, debounceMillis);
+    }
+
+    public synchronized long getMaxStalenessMillis() {
+        return mMaxStalenessMillis;
+    }
+
+    public synchronized void setMaxStalenessMillis(long maxStalenessMillis) {
+        mMaxStalenessMillis = Math.max(0L, maxStalenessMillis);
+    }
+
+    /**
+     * Requests a savepoint of the current form, written once the requests
+     * settle down.
+     *
+     * @param listener notified on the UI thread if the savepoint fails
+     */
+    public void schedule(SavePointListener listener) {
+        schedule(listener, false);
+    }
+
+    /**
+     * Requests a savepoint of the current form, written as soon as the
+     * worker is free (e.g., because the activity may be about to be killed).
+     *
+     * @param listener notified on the UI thread if the savepoint fails
+     */
+    public void scheduleNow(SavePointListener listener) {
+        schedule(listener, true);
+    }
+
+    private synchronized void schedule(SavePointListener listener, boolean now) {
+        long time = System.currentTimeMillis();
+        ++mRequestCount;
+        mListener = new WeakReference<SavePointListener>(listener);
+        if (!mPending) {
+            mPending = true;
+            mFirstPendingTime = time;
+        }
+
+        long delay = now ? 0L : Math.min(mDebounceMillis, mFirstPendingTime + mMaxStalenessMillis - time);
+        if (mScheduledWrite != null) {
+            // coalesce into the pending request; it may now run later (debounce)
+            // or sooner (staleness bound, or an immediate request)
+            mScheduledWrite.cancel(false);
+        }
+        mScheduledWrite = mWorker.schedule(mWriteSavePoint, Math.max(0L, delay), TimeUnit.MILLISECONDS);
+    }
+
+    private void writeSavePoint() {
+        final SavePointListener listener;
+        synchronized (this) {
+            if (!mPending) {
+                return;
+            }
+            mPending = false;
+            mScheduledWrite = null;
+            listener = (mListener == null) ? null : mListener.get();
+        }
+
+        long start = System.currentTimeMillis();
+        String errorMessage = null;
+        File temp = null;
+        try {
+            FormController formController = Collect.getInstance().getFormController();
+            if (formController == null || formController.getInstancePath() == null) {
+                return;
+            }
+            temp = SaveToDiskTask.savepointFile(formController.getInstancePath());
+
+            // the answers journaled so far will be in this savepoint
+            AnswerJournal journal = formController.getAnswerJournal();
+            int journalGeneration = (journal == null) ? 0 : journal.beginCompaction();
+
+            ByteArrayPayload payload = formController.getFilledInFormXml();
+
+            // write out xml
+            SaveToDiskTask.exportXmlFile(payload, temp.getAbsolutePath());
+            if (journal != null) {
+                journal.endCompaction(journalGeneration);
+            }
+        } catch (Exception e) {
+            errorMessage = e.getMessage();
+            Log.e(t, errorMessage, e);
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+        synchronized (this) {
+            if (errorMessage == null) {
+                ++mWrittenCount;
+                mTotalWriteMillis += elapsed;
+                mMaxWriteMillis = Math.max(mMaxWriteMillis, elapsed);
+            } else {
+                ++mFailedCount;
+            }
+            Log.i(t, "Savepoint ms: " + elapsed + " to " + temp + " " + toString());
+        }
+
+        if (errorMessage != null && listener != null) {
+            final String msg = errorMessage;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onSavePointError(msg);
+                }
+            });
+        }
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized int getWrittenCount() {
+        return mWrittenCount;
+    }
+
+    public synchronized int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return the number of requests coalesced into another savepoint
+     */
+    public synchronized int getSkippedCount() {
+        return mRequestCount - mWrittenCount - mFailedCount - (mPending ? 1 : 0);
+    }
+
+    public synchronized long getAverageWriteMillis() {
+        return (mWrittenCount == 0) ? 0L : mTotalWriteMillis / mWrittenCount;
+    }
+
+    public synchronized long getMaxWriteMillis() {
+        return mMaxWriteMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SavePointScheduler{requested=" + mRequestCount + ", written=" + mWrittenCount
+                + ", skipped=" + getSkippedCount() + ", failed=" + mFailedCount
+                + ", avgWriteMs=" + getAverageWriteMillis() + ", maxWriteMs=" + mMaxWriteMillis + "}";
+    }
+}
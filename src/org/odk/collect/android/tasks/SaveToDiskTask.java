@@ -17,8 +17,8 @@ package org.odk.collect.android.tasks;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 
+import org.apache.commons.io.IOUtils;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.form.api.FormEntryController;
@@ -27,17 +27,21 @@ import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.exception.EncryptionException;
 import org.odk.collect.android.listeners.FormSavedListener;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.preferences.PreferencesActivity;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.utilities.EncryptionUtils;
 import org.odk.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
 import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.ImageReducer;
 
 import android.content.ContentValues;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -49,11 +53,16 @@ import android.util.Log;
 public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     private final static String t = "SaveToDiskTask";
 
+    // how long a finalize waits for captured images to be reduced
+    private static final long IMAGE_REDUCTION_TIMEOUT_MILLIS = 60000L;
+
     private FormSavedListener mSavedListener;
     private Boolean mSave;
     private Boolean mMarkCompleted;
     private Uri mUri;
     private String mInstanceName;
+    // keys of the attachments to encrypt as they are sent, if deferred
+    private String mDeferredEncryption = null;
 
     public static final int SAVED = 500;
     public static final int SAVE_ERROR = 501;
@@ -109,6 +118,18 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         	formController.postProcessInstance();
         }
 
+        if (mMarkCompleted) {
+            // the finalized images must not change while they are encrypted or sent
+            publishProgress(Collect.getInstance().getString(R.string.survey_saving_reducing_images_message));
+            if (!ImageReducer.getInstance().awaitPending(IMAGE_REDUCTION_TIMEOUT_MILLIS)) {
+                // an image could still be replaced after it is signed
+                saveResult.setSaveErrorMessage(
+                        Collect.getInstance().getString(R.string.survey_saving_images_pending));
+                saveResult.setSaveResult(SAVE_ERROR);
+                return saveResult;
+            }
+        }
+
     	Collect.getInstance().getActivityLogger().logInstanceAction(this, "save", Boolean.toString(mMarkCompleted));
 
         // close all open databases of external data.
@@ -129,6 +150,9 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
             if (shadowInstance.exists()) {
                 FileUtils.deleteAndReport(shadowInstance);
             }
+            if (formController.getAnswerJournal() != null) {
+                formController.getAnswerJournal().reset();
+            }
 
             saveResult.setSaveResult(mSave ? SAVED_AND_EXIT : SAVED);
         } catch (Exception e) {
@@ -157,6 +181,9 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         }
         // update this whether or not the status is complete...
         values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(canEditAfterCompleted));
+        if (mDeferredEncryption != null) {
+            values.put(InstanceColumns.DEFERRED_ENCRYPTION, mDeferredEncryption);
+        }
 
         // If FormEntryActivity was started with an Instance, just update that instance
         if (Collect.getInstance().getContentResolver().getType(mUri).equals(InstanceColumns.CONTENT_ITEM_TYPE)) {
@@ -293,7 +320,22 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
                 publishProgress(Collect.getInstance().getString(R.string.survey_saving_encrypting_message));
 
-                EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
+                ProgressNotifier notifier = new ProgressNotifier() {
+                    @Override
+                    public void onProgressStep(String stepMessage) {
+                        publishProgress(stepMessage);
+                    }
+                };
+                SharedPreferences settings =
+                        PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+                if (settings.getBoolean(PreferencesActivity.KEY_ENCRYPT_ON_UPLOAD, false)) {
+                    // the attachments stay in plaintext until they are sent
+                    mDeferredEncryption = EncryptionUtils.generateDeferredEncryptedSubmission(
+                            instanceXml, submissionXml, formInfo, notifier);
+                } else {
+                    EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo,
+                            notifier);
+                }
                 isEncrypted = true;
             }
 
@@ -320,16 +362,17 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 	        	// in the InstanceUploader task.  Leftover plaintext media
 	        	// files are handled during form deletion.
 
-	            // delete the restore Xml file.
-	            if ( !instanceXml.delete() ) {
+	            // rename the submission.xml over the instanceXml; only if the
+	            // file system cannot replace on rename, delete the restore Xml
+	            // file first.
+	            if ( !submissionXml.renameTo(instanceXml) && !instanceXml.delete() ) {
                     String msg = "Error deleting " + instanceXml.getAbsolutePath()
                             + " prior to renaming submission.xml";
                     Log.e(t, msg);
 	                throw new IOException(msg);
 	            }
 
-	            // rename the submission.xml to be the instanceXml
-	            if ( !submissionXml.renameTo(instanceXml) ) {
+	            if ( submissionXml.exists() && !submissionXml.renameTo(instanceXml) ) {
                     String msg = "Error renaming submission.xml to " + instanceXml.getAbsolutePath();
                     Log.e(t, msg);
 	                throw new IOException(msg);
@@ -347,7 +390,8 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
             // if encrypted, delete all plaintext files
             // (anything not named instanceXml or anything not ending in .enc)
-            if ( isEncrypted ) {
+            // (unless the attachments are encrypted when they are sent)
+            if ( isEncrypted && mDeferredEncryption == null ) {
                 if ( !EncryptionUtils.deletePlaintextFiles(instanceXml) ) {
                     Log.e(t, "Error deleting plaintext files for " + instanceXml.getAbsolutePath());
                 }
@@ -357,50 +401,20 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
 
     /**
-     * This method actually writes the xml to disk.
+     * This method actually writes the xml to disk. The payload is streamed
+     * into a temporary file that replaces the existing file only once it is
+     * completely written and synced.
      * @param payload
      * @param path
      * @return
      */
     static void exportXmlFile(ByteArrayPayload payload, String path) throws IOException {
-        File file = new File(path);
-        if (file.exists() && !file.delete()) {
-            throw new IOException("Cannot overwrite " + path + ". Perhaps the file is locked?");
-        }
-
-        // create data stream
         InputStream is = payload.getPayloadStream();
-        int len = (int) payload.getLength();
-
-        // read from data stream
-        byte[] data = new byte[len];
-//        try {
-            int read = is.read(data, 0, len);
-            if (read > 0) {
-                // write xml file
-                RandomAccessFile randomAccessFile = null;
-                try {
-                    // String filename = path + File.separator +
-                    // path.substring(path.lastIndexOf(File.separator) + 1) + ".xml";
-                    randomAccessFile = new RandomAccessFile(file, "rws");
-                    randomAccessFile.write(data);
-                } finally {
-                    if (randomAccessFile != null) {
-                        try {
-                            randomAccessFile.close();
-                        } catch (IOException e) {
-                            Log.e(t, "Error closing RandomAccessFile: " + path, e);
-                        }
-                    }
-                }
-            }
-//        } catch (IOException e) {
-//            Log.e(t, "Error reading from payload data stream");
-//            e.printStackTrace();
-//            return false;
-//        }
-//
-//        return false;
+        try {
+            FileUtils.writeAtomically(is, new File(path));
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
     }
 
     @Override
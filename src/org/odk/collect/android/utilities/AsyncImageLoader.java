@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.ColorDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * Decodes the images of question widgets on a background pool, so that
+ * building a screen does not wait for them. The image view shows a
+ * placeholder until its bitmap is delivered to it on the UI thread. Loading
+ * a view again, or cancelling it (e.g., because the view was swiped away),
+ * drops its pending load.
+ * <p/>
+ * Must only be called on the UI thread.
+ */
+public class AsyncImageLoader {
+    private final static String t = "AsyncImageLoader";
+
+    private static final int POOL_SIZE = 2;
+
+    private static final int PLACEHOLDER_COLOR = Color.LTGRAY;
+
+    /**
+     * Notified on the UI thread once the image of a view is loaded (and set
+     * on the view), or could not be.
+     */
+    public interface ImageLoadListener {
+        /**
+         * @param b the bitmap set on view, or null if the image could not be decoded
+         */
+        void onImageLoaded(ImageView view, Bitmap b);
+    }
+
+    private static AsyncImageLoader singleton = null;
+
+    public static synchronized AsyncImageLoader getInstance() {
+        if (singleton == null) {
+            singleton = new AsyncImageLoader();
+        }
+        return singleton;
+    }
+
+    private final ExecutorService mPool = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, t + "-" + mCount.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    });
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // the pending load of each view
+    private final WeakHashMap<ImageView, Load> mPending = new WeakHashMap<ImageView, Load>();
+
+    private AsyncImageLoader() {
+    }
+
+    private class Load implements Runnable {
+        private final WeakReference<ImageView> mView;
+        private final File mFile;
+        private final int mScreenHeight;
+        private final int mScreenWidth;
+        private final boolean mCached;
+        private final ImageLoadListener mListener;
+        private volatile boolean mCancelled = false;
+        private Future<?> mFuture;
+
+        Load(ImageView view, File file, int screenHeight, int screenWidth, boolean cached,
+                ImageLoadListener listener) {
+            mView = new WeakReference<ImageView>(view);
+            mFile = file;
+            mScreenHeight = screenHeight;
+            mScreenWidth = screenWidth;
+            mCached = cached;
+            mListener = listener;
+        }
+
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled || mView.get() == null) {
+                return;
+            }
+            Bitmap b = null;
+            try {
+                if (mCached) {
+                    b = BitmapCache.getInstance().getBitmapScaledToDisplay(mFile, mScreenHeight,
+                            mScreenWidth);
+                } else {
+                    b = FileUtils.getBitmapScaledToDisplay(mFile, mScreenHeight, mScreenWidth);
+                }
+            } catch (OutOfMemoryError e) {
+                Log.e(t, "Out of memory decoding " + mFile.getAbsolutePath());
+            }
+
+            final Bitmap bitmap = b;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(Load.this, bitmap);
+                }
+            });
+        }
+    }
+
+    /**
+     * Shows the image of f in view, scaled to the display, through the
+     * {@link BitmapCache}.
+     *
+     * @param listener may be null
+     */
+    public void load(ImageView view, File f, int screenHeight, int screenWidth,
+            ImageLoadListener listener) {
+        load(view, f, screenHeight, screenWidth, true, listener);
+    }
+
+    /**
+     * Shows the image of f in view, scaled to the display, without caching
+     * it (e.g., because it is the answer to a question, and only shown once).
+     *
+     * @param listener may be null
+     */
+    public void loadUncached(ImageView view, File f, int screenHeight, int screenWidth,
+            ImageLoadListener listener) {
+        load(view, f, screenHeight, screenWidth, false, listener);
+    }
+
+    private void load(ImageView view, File f, int screenHeight, int screenWidth, boolean cached,
+            ImageLoadListener listener) {
+        cancel(view);
+
+        Bitmap b = cached ? BitmapCache.getInstance().getMemoryCached(f, screenHeight, screenWidth, -1)
+                : null;
+        if (b != null) {
+            view.setImageBitmap(b);
+            if (listener != null) {
+                listener.onImageLoaded(view, b);
+            }
+            return;
+        }
+
+        view.setImageDrawable(new ColorDrawable(PLACEHOLDER_COLOR));
+        Load load = new Load(view, f, screenHeight, screenWidth, cached, listener);
+        mPending.put(view, load);
+        load.mFuture = mPool.submit(load);
+    }
+
+    /**
+     * Drops the pending load of view, if any; its bitmap is never set.
+     */
+    public void cancel(ImageView view) {
+        Load load = mPending.remove(view);
+        if (load != null) {
+            load.cancel();
+        }
+    }
+
+    private void deliver(Load load, Bitmap b) {
+        ImageView view = load.mView.get();
+        if (load.mCancelled || view == null || mPending.get(view) != load) {
+            // superseded or cancelled; a shared bitmap stays in the cache
+            if (b != null && !load.mCached) {
+                b.recycle();
+            }
+            return;
+        }
+        mPending.remove(view);
+        if (b != null) {
+            view.setImageBitmap(b);
+        } else {
+            view.setImageDrawable(null);
+        }
+        if (load.mListener != null) {
+            load.mListener.onImageLoaded(view, b);
+        }
+    }
+
+    /**
+     * @return a listener that replaces the image view by a TextView holding
+     *         errorMsg if the image cannot be decoded
+     */
+    public static ImageLoadListener replaceWithErrorOnFailure(final String errorMsg,
+            final int padding) {
+        return new ImageLoadListener() {
+            @Override
+            public void onImageLoaded(ImageView view, Bitmap b) {
+                if (b != null) {
+                    return;
+                }
+                Log.e(t, errorMsg);
+                ViewGroup parent = (ViewGroup) view.getParent();
+                if (parent == null) {
+                    return;
+                }
+                TextView missingImage = new TextView(view.getContext());
+                missingImage.setText(errorMsg);
+                missingImage.setPadding(padding, padding, padding, padding);
+                missingImage.setId(view.getId());
+                missingImage.setVisibility(view.getVisibility() == View.GONE ? View.GONE
+                        : View.VISIBLE);
+                int index = parent.indexOfChild(view);
+                ViewGroup.LayoutParams params = view.getLayoutParams();
+                parent.removeViewAt(index);
+                parent.addView(missingImage, index, params);
+            }
+        };
+    }
+}
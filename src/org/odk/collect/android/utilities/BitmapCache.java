@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.odk.collect.android.application.Collect;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Cache of the scaled bitmaps of the images shown with questions and
+ * choices, shared by all the widgets. Bitmaps are kept in memory up to
+ * {@link #getMemoryLimitBytes()}, least recently used first out, and
+ * downscaled bitmaps are also written as thumbnails to
+ * {@link #THUMBNAIL_PATH}, up to {@link #DISK_LIMIT_BYTES}, so that they need
+ * not be decoded from the full-size image again. Entries are keyed by the
+ * path, modification time and size of the image and by the target size, so
+ * a changed image is never served stale.
+ * <p/>
+ * The bitmaps returned are shared, and must not be modified or recycled;
+ * see {@link #isShared(Bitmap)}.
+ */
+public class BitmapCache {
+    private final static String t = "BitmapCache";
+
+    public static final String THUMBNAIL_PATH = Collect.CACHE_PATH + File.separator + "thumbnails";
+
+    /**
+     * Total size of the thumbnails kept on disk.
+     */
+    public static final long DISK_LIMIT_BYTES = 20L * 1024L * 1024L;
+
+    private static final String THUMBNAIL_EXTENSION = ".thumb";
+
+    // thumbnails written between checks of the total size on disk
+    private static final int TRIM_INTERVAL = 16;
+
+    private static BitmapCache singleton = null;
+
+    public static synchronized BitmapCache getInstance() {
+        if (singleton == null) {
+            singleton = new BitmapCache();
+        }
+        return singleton;
+    }
+
+    private final int mMemoryLimitBytes;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    // every bitmap handed out, so that views do not recycle them; guarded by itself
+    private final WeakHashMap<Bitmap, Boolean> mShared = new WeakHashMap<Bitmap, Boolean>();
+
+    private final ExecutorService mDiskWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, t);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    // touched only by mDiskWriter
+    private int mWritesSinceTrim = TRIM_INTERVAL;
+
+    // metrics; guarded by this
+    private int mMemoryHits = 0;
+    private int mDiskHits = 0;
+    private int mMisses = 0;
+
+    private BitmapCache() {
+        // an eighth of the heap, as the activity needs the rest
+        mMemoryLimitBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        mMemoryCache = new LruCache<String, Bitmap>(mMemoryLimitBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+    }
+
+    public int getMemoryLimitBytes() {
+        return mMemoryLimitBytes;
+    }
+
+    /**
+     * As {@link FileUtils#getBitmapScaledToDisplay(File, int, int)}, but cached.
+     */
+    public Bitmap getBitmapScaledToDisplay(File f, int screenHeight, int screenWidth) {
+        return getBitmap(f, screenHeight, screenWidth, -1);
+    }
+
+    /**
+     * As {@link FileUtils#getBitmapScaledToDisplay(File, int, int)}, resized
+     * to width (keeping its aspect ratio), but cached.
+     */
+    public Bitmap getBitmapScaledToWidth(File f, int screenHeight, int screenWidth, int width) {
+        return getBitmap(f, screenHeight, screenWidth, width);
+    }
+
+    /**
+     * @return true if b came from the cache (and must not be recycled)
+     */
+    public boolean isShared(Bitmap b) {
+        synchronized (mShared) {
+            return mShared.containsKey(b);
+        }
+    }
+
+    /**
+     * Drops the bitmaps held in memory (e.g., when memory runs low).
+     */
+    public void evictAll() {
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * @param width the width it was resized to, or -1 if it was not
+     * @return the bitmap of f held in memory, or null if it must be loaded
+     *         (which should not be done on the UI thread)
+     */
+    public Bitmap getMemoryCached(File f, int screenHeight, int screenWidth, int width) {
+        Bitmap b = mMemoryCache.get(getKey(f, screenHeight, screenWidth, width));
+        if (b != null && !b.isRecycled()) {
+            synchronized (this) {
+                ++mMemoryHits;
+            }
+            return b;
+        }
+        return null;
+    }
+
+    private static String getKey(File f, int screenHeight, int screenWidth, int width) {
+        return f.getAbsolutePath() + "|" + f.lastModified() + "|" + f.length() + "|"
+                + screenHeight + "x" + screenWidth + "|" + width;
+    }
+
+    private Bitmap getBitmap(File f, int screenHeight, int screenWidth, int width) {
+        Bitmap b = getMemoryCached(f, screenHeight, screenWidth, width);
+        if (b != null) {
+            return b;
+        }
+        String key = getKey(f, screenHeight, screenWidth, width);
+
+        final File thumbnail = getThumbnailFile(key);
+        if (thumbnail.exists()) {
+            b = BitmapFactory.decodeFile(thumbnail.getAbsolutePath());
+            if (b != null) {
+                synchronized (this) {
+                    ++mDiskHits;
+                }
+                // keep it from being trimmed as one of the oldest
+                thumbnail.setLastModified(System.currentTimeMillis());
+                return share(key, b);
+            }
+            thumbnail.delete();
+        }
+
+        synchronized (this) {
+            ++mMisses;
+        }
+        b = FileUtils.getBitmapScaledToDisplay(f, screenHeight, screenWidth);
+        if (b == null) {
+            return null;
+        }
+        if (width > 0 && b.getWidth() > 0 && b.getWidth() != width) {
+            int height = (b.getHeight() * width) / b.getWidth();
+            b = Bitmap.createScaledBitmap(b, width, height, false);
+        }
+
+        // only worth writing if it is quicker to decode than the image itself
+        if (b.getWidth() * b.getHeight() < imagePixels(f)) {
+            final Bitmap toWrite = b;
+            mDiskWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeThumbnail(toWrite, thumbnail);
+                }
+            });
+        }
+        return share(key, b);
+    }
+
+    private Bitmap share(String key, Bitmap b) {
+        synchronized (mShared) {
+            mShared.put(b, Boolean.TRUE);
+        }
+        mMemoryCache.put(key, b);
+        return b;
+    }
+
+    private static int imagePixels(File f) {
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(f.getAbsolutePath(), o);
+        return o.outWidth * o.outHeight;
+    }
+
+    private static File getThumbnailFile(String key) {
+        String name;
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            name = FileUtils.toHexMd5(md.digest(key.getBytes("UTF-8")));
+        } catch (Exception e) {
+            name = Integer.toHexString(key.hashCode());
+        }
+        return new File(THUMBNAIL_PATH, name + THUMBNAIL_EXTENSION);
+    }
+
+    private void writeThumbnail(Bitmap b, File thumbnail) {
+        if (b.isRecycled()) {
+            return;
+        }
+        File dir = thumbnail.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(t, "Unable to create " + dir.getAbsolutePath());
+            return;
+        }
+        File temp = new File(dir, "." + thumbnail.getName());
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            // keep the transparency of choice images
+            boolean written = b.hasAlpha() ? b.compress(Bitmap.CompressFormat.PNG, 100, out)
+                    : b.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            out.close();
+            out = null;
+            if (!written || !temp.renameTo(thumbnail)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(t, "Unable to write " + thumbnail.getName() + ": " + e.toString());
+            temp.delete();
+            return;
+        } catch (IllegalStateException e) {
+            // recycled by the UI thread while compressing
+            temp.delete();
+            return;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+
+        if (++mWritesSinceTrim >= TRIM_INTERVAL) {
+            mWritesSinceTrim = 0;
+            trimDisk(dir);
+        }
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until they fit in
+     * {@link #DISK_LIMIT_BYTES}.
+     */
+    private static void trimDisk(File dir) {
+        File[] thumbnails = dir.listFiles();
+        if (thumbnails == null) {
+            return;
+        }
+        long total = 0L;
+        for (File f : thumbnails) {
+            total += f.length();
+        }
+        if (total <= DISK_LIMIT_BYTES) {
+            return;
+        }
+        Arrays.sort(thumbnails, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return (l < r) ? -1 : ((l == r) ? 0 : 1);
+            }
+        });
+        for (File f : thumbnails) {
+            if (total <= DISK_LIMIT_BYTES) {
+                break;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapCache{memoryHits=" + mMemoryHits + ", diskHits=" + mDiskHits + ", misses="
+                + mMisses + ", memoryBytes=" + mMemoryCache.size() + "/" + mMemoryLimitBytes + "}";
+    }
+}
@@ -21,6 +21,10 @@ public class DocumentFetchResult {
         public final int responseCode;
         public final Document doc;
         public final boolean isOpenRosaResponse;
+        // the document has not changed since the conditional request's eTag or lastModified
+        public final boolean notModified;
+        public final String eTag;
+        public final String lastModified;
 
 
         public DocumentFetchResult(String msg, int response) {
@@ -28,6 +32,9 @@ public class DocumentFetchResult {
             errorMessage = msg;
             doc = null;
             isOpenRosaResponse = false;
+            notModified = false;
+            eTag = null;
+            lastModified = null;
         }
 
 
@@ -36,5 +43,20 @@ public class DocumentFetchResult {
             errorMessage = null;
             this.doc = doc;
             this.isOpenRosaResponse = isOpenRosaResponse;
+            notModified = false;
+            eTag = null;
+            lastModified = null;
+        }
+
+
+        public DocumentFetchResult(boolean isOpenRosaResponse, boolean notModified, String eTag,
+                String lastModified) {
+            responseCode = 0;
+            errorMessage = null;
+            doc = null;
+            this.isOpenRosaResponse = isOpenRosaResponse;
+            this.notModified = notModified;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
         }
     }
\ No newline at end of file
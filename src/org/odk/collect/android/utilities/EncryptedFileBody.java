@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+
+import org.odk.collect.android.utilities.EncryptionUtils.DeferredEncryption;
+import org.opendatakit.httpclientandroidlib.entity.mime.content.FileBody;
+
+/**
+ * Multipart body of a plaintext attachment whose encryption was deferred
+ * until it is sent. The attachment is encrypted as it is written to the
+ * request, and is sent with the name, content type and bytes its .enc file
+ * would have had.
+ */
+public class EncryptedFileBody extends FileBody {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DeferredEncryption mEncryption;
+
+    public EncryptedFileBody(File file, String mimeType, DeferredEncryption encryption) {
+        super(file, file.getName() + ".enc", mimeType, null);
+        mEncryption = encryption;
+    }
+
+    private Cipher newCipher() throws IOException {
+        try {
+            // a cipher cannot be reused, and the request may be retried
+            return mEncryption.getCipher(getFile());
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt " + getFile().getName() + ": " + e.toString());
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new CipherInputStream(new FileInputStream(getFile()), newCipher());
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        Cipher cipher = newCipher();
+        InputStream in = new FileInputStream(getFile());
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                byte[] encrypted = cipher.update(buffer, 0, len);
+                if (encrypted != null) {
+                    out.write(encrypted);
+                }
+            }
+            out.write(cipher.doFinal());
+            out.flush();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Unable to encrypt " + getFile().getName() + ": " + e.toString());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public long getContentLength() {
+        try {
+            // the padded length of the whole file, as nothing has been encrypted yet
+            return newCipher().getOutputSize((int) getFile().length());
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
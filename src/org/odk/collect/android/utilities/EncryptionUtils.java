@@ -15,6 +15,7 @@
 package org.odk.collect.android.utilities;
 
 import java.io.*;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -26,11 +27,20 @@ import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
@@ -41,13 +51,16 @@ import org.kxml2.io.KXmlSerializer;
 import org.kxml2.kdom.Document;
 import org.kxml2.kdom.Element;
 import org.kxml2.kdom.Node;
+import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.exception.EncryptionException;
 import org.odk.collect.android.logic.FormController.InstanceMetadata;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.tasks.ProgressNotifier;
 
 import android.content.ContentResolver;
+import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.util.Log;
@@ -84,8 +97,15 @@ public class EncryptionUtils {
 	private static final String FILE = "file";
 	private static final String BASE64_ENCRYPTED_ELEMENT_SIGNATURE = "base64EncryptedElementSignature";
 	private static final String NEW_LINE = "\n";
+
+	private static final int ENCRYPTION_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_ENCRYPTION_THREADS = 4;
     private static final String ENCRYPTION_PROVIDER = "BC";
 
+	// the key the symmetric keys of deferred submissions are stored under
+	private static final String DEVICE_KEY_FILE = "deferred_encryption.key";
+	private static final String DEVICE_KEY_ALGORITHM = "AES/CBC/PKCS5Padding";
+
     private EncryptionUtils() {
 	}
 
@@ -255,11 +275,20 @@ public class EncryptionUtils {
 			}
 		}
 
-		public Cipher getCipher() throws InvalidKeyException,
-				InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
+		/**
+		 * Advances the IV to that of the next file encrypted.
+		 *
+		 * @return a copy of the IV
+		 */
+		byte[] nextIv() {
 			++ivSeedArray[ivCounter % ivSeedArray.length];
 			++ivCounter;
-			IvParameterSpec baseIv = new IvParameterSpec(ivSeedArray);
+			return ivSeedArray.clone();
+		}
+
+		public Cipher getCipher() throws InvalidKeyException,
+				InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
+			IvParameterSpec baseIv = new IvParameterSpec(nextIv());
 			Cipher c = null;
 			try {
 				c = Cipher.getInstance(EncryptionUtils.SYMMETRIC_ALGORITHM, "BC");
@@ -427,56 +456,139 @@ public class EncryptionUtils {
 				pk, wrapper);
 	}
 
-	private static void encryptFile(File file, EncryptedFormInformation formInfo)
-            throws IOException, EncryptionException {
-		File encryptedFile = new File(file.getParentFile(), file.getName()
-				+ ".enc");
+	private static final class EncryptionJob {
+		final File file;
+		final File encryptedFile;
+		final Cipher cipher;
+		// md5 hash of the plaintext, computed while encrypting
+		String md5Hash = null;
+
+		EncryptionJob(File file, File encryptedFile, Cipher cipher) {
+			this.file = file;
+			this.encryptedFile = encryptedFile;
+			this.cipher = cipher;
+		}
+	}
 
-        if (encryptedFile.exists() && !encryptedFile.delete()) {
-            throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath() + ". Perhaps the file is locked?");
-        }
+	/**
+	 * Encrypts the files, in parallel when there are several, and appends
+	 * their signatures to the formInfo in the order of the list.
+	 *
+	 * Each file is encrypted with the next IV of the formInfo, in the order
+	 * of the list, so the ciphers are all created here before any file is
+	 * encrypted; the .enc files are the same as if they had been encrypted
+	 * one after the other.
+	 */
+	private static void encryptFiles(List<File> files, EncryptedFormInformation formInfo,
+			final ProgressNotifier notifier) throws IOException, EncryptionException {
+		List<EncryptionJob> jobs = new ArrayList<EncryptionJob>();
+		for (File file : files) {
+			File encryptedFile = new File(file.getParentFile(), file.getName()
+					+ ".enc");
+
+			if (encryptedFile.exists() && !encryptedFile.delete()) {
+				throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath() + ". Perhaps the file is locked?");
+			}
 
-		// add elementSignatureSource for this file...
-		formInfo.appendFileSignatureSource(file);
+			try {
+				jobs.add(new EncryptionJob(file, encryptedFile, formInfo.getCipher()));
+			} catch (Exception e) {
+				String msg = "Error encrypting: " + file.getName() + " -> "
+						+ encryptedFile.getName();
+				Log.e(t, msg, e);
+				throw new EncryptionException(msg, e);
+			}
+		}
 
-        RandomAccessFile randomAccessFile = null;
-        CipherOutputStream cipherOutputStream = null;
-        try {
-            Cipher c = formInfo.getCipher();
-
-            randomAccessFile = new RandomAccessFile(encryptedFile, "rws");
-            ByteArrayOutputStream encryptedData = new ByteArrayOutputStream();
-            cipherOutputStream = new CipherOutputStream(encryptedData, c);
-			InputStream fin = new FileInputStream(file);
-			byte[] buffer = new byte[2048];
-			int len = fin.read(buffer);
-			while (len != -1) {
-				cipherOutputStream.write(buffer, 0, len);
-				len = fin.read(buffer);
+		final int total = jobs.size();
+		final AtomicInteger completed = new AtomicInteger(0);
+		int threads = Math.min(total,
+				Math.min(MAX_ENCRYPTION_THREADS, Runtime.getRuntime().availableProcessors()));
+		if (threads <= 1) {
+			for (EncryptionJob job : jobs) {
+				encryptFile(job);
+				reportProgress(notifier, completed.incrementAndGet(), total);
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+				for (final EncryptionJob job : jobs) {
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() throws EncryptionException {
+							encryptFile(job);
+							reportProgress(notifier, completed.incrementAndGet(), total);
+							return null;
+						}
+					});
+				}
+				for (Future<Void> future : executor.invokeAll(tasks)) {
+					try {
+						future.get();
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof EncryptionException) {
+							throw (EncryptionException) e.getCause();
+						}
+						throw new EncryptionException("Error encrypting submission files", e.getCause());
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new EncryptionException("Interrupted while encrypting submission files", e);
+			} finally {
+				executor.shutdownNow();
 			}
-			fin.close();
-			cipherOutputStream.flush();
-			cipherOutputStream.close();
+		}
+
+		// add elementSignatureSource for the files, in order...
+		for (EncryptionJob job : jobs) {
+			formInfo.appendElementSignatureSource(job.file.getName() + "::" + job.md5Hash);
+		}
+	}
+
+	private static void reportProgress(ProgressNotifier notifier, int completed, int total) {
+		if (notifier != null) {
+			notifier.onProgressStep(Collect.getInstance().getString(
+					R.string.survey_saving_encrypting_file_message, completed, total));
+		}
+	}
 
-            randomAccessFile.write(encryptedData.toByteArray());
+	private static void encryptFile(EncryptionJob job) throws EncryptionException {
+		InputStream fin = null;
+		FileOutputStream fout = null;
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			fin = new FileInputStream(job.file);
+			fout = new FileOutputStream(job.encryptedFile);
+			OutputStream out = new BufferedOutputStream(fout, ENCRYPTION_BUFFER_SIZE);
+			byte[] buffer = new byte[ENCRYPTION_BUFFER_SIZE];
+			int len;
+			while ((len = fin.read(buffer)) != -1) {
+				md.update(buffer, 0, len);
+				byte[] encrypted = job.cipher.update(buffer, 0, len);
+				if (encrypted != null) {
+					out.write(encrypted);
+				}
+			}
+			out.write(job.cipher.doFinal());
+			out.flush();
+			fout.getChannel().force(true);
+			job.md5Hash = FileUtils.toHexMd5(md.digest());
 
 			Log.i(t,
-					"Encrpyted:" + file.getName() + " -> "
-							+ encryptedFile.getName());
+					"Encrpyted:" + job.file.getName() + " -> "
+							+ job.encryptedFile.getName());
 		} catch (Exception e) {
-            String msg = "Error encrypting: " + file.getName() + " -> "
-                    + encryptedFile.getName();
-            Log.e(t, msg, e);
-			e.printStackTrace();
+			String msg = "Error encrypting: " + job.file.getName() + " -> "
+					+ job.encryptedFile.getName();
+			Log.e(t, msg, e);
 			throw new EncryptionException(msg, e);
 		} finally {
-            IOUtils.closeQuietly(cipherOutputStream);
-
-            if (randomAccessFile != null) {
-                randomAccessFile.close();
-            }
-        }
-    }
+			IOUtils.closeQuietly(fin);
+			IOUtils.closeQuietly(fout);
+		}
+	}
 
 	public static boolean deletePlaintextFiles(File instanceXml) {
 		// NOTE: assume the directory containing the instanceXml contains ONLY
@@ -502,7 +614,20 @@ public class EncryptionUtils {
 	}
 
 	private static List<File> encryptSubmissionFiles(File instanceXml,
-			File submissionXml, EncryptedFormInformation formInfo) throws IOException, EncryptionException {
+			File submissionXml, EncryptedFormInformation formInfo, ProgressNotifier notifier)
+			throws IOException, EncryptionException {
+		List<File> filesToProcess = listAttachments(instanceXml, submissionXml);
+
+		// encrypt here...
+		// the submission.xml is the last file...
+		List<File> filesToEncrypt = new ArrayList<File>(filesToProcess);
+		filesToEncrypt.add(submissionXml);
+		encryptFiles(filesToEncrypt, formInfo, notifier);
+
+        return filesToProcess;
+	}
+
+	private static List<File> listAttachments(File instanceXml, File submissionXml) {
 		// NOTE: assume the directory containing the instanceXml contains ONLY
 		// files related to this one instance.
 		File instanceDir = instanceXml.getParentFile();
@@ -526,15 +651,7 @@ public class EncryptionUtils {
 				filesToProcess.add(f);
 			}
 		}
-		// encrypt here...
-		for (File f : filesToProcess) {
-		    encryptFile(f, formInfo);
-        }
-
-		// encrypt the submission.xml as the last file...
-	    encryptFile(submissionXml, formInfo);
-
-        return filesToProcess;
+		return filesToProcess;
 	}
 
 	/**
@@ -550,6 +667,16 @@ public class EncryptionUtils {
 	 */
 	public static void generateEncryptedSubmission(File instanceXml,
 			File submissionXml, EncryptedFormInformation formInfo) throws IOException, EncryptionException {
+		generateEncryptedSubmission(instanceXml, submissionXml, formInfo, null);
+	}
+
+	/**
+	 * As {@link #generateEncryptedSubmission(File, File, EncryptedFormInformation)},
+	 * reporting each file encrypted to the notifier (from a background thread).
+	 */
+	public static void generateEncryptedSubmission(File instanceXml,
+			File submissionXml, EncryptedFormInformation formInfo, ProgressNotifier notifier)
+			throws IOException, EncryptionException {
 		// submissionXml is the submission data to be published to Aggregate
 		if (!submissionXml.exists() || !submissionXml.isFile()) {
 			throw new IOException("No submission.xml found");
@@ -559,11 +686,197 @@ public class EncryptionUtils {
 
 		// Step 1: encrypt the submission and all the media files...
 		List<File> mediaFiles = encryptSubmissionFiles(instanceXml,
-				submissionXml, formInfo);
+				submissionXml, formInfo, notifier);
+
+		// Step 2: build the encrypted-submission manifest (overwrites
+		// submission.xml)...
+		writeSubmissionManifest(formInfo, submissionXml, mediaFiles);
+	}
+
+	/**
+	 * Constructs the encrypted form xml and the plaintext submission manifest
+	 * (with signature), as {@link #generateEncryptedSubmission}, but does not
+	 * encrypt the attachments: each is assigned the IV it would have been
+	 * encrypted with, and is encrypted with it as it is sent (see
+	 * {@link EncryptedFileBody}), so no .enc copy of it is ever written.
+	 *
+	 * The plaintext attachments must be kept until the submission is sent.
+	 *
+	 * @param instanceXml
+	 * @param submissionXml
+	 * @param formInfo
+	 * @param notifier
+	 * @return the {@link DeferredEncryption} of the attachments, serialized
+	 */
+	public static String generateDeferredEncryptedSubmission(File instanceXml,
+			File submissionXml, EncryptedFormInformation formInfo, ProgressNotifier notifier)
+			throws IOException, EncryptionException {
+		// submissionXml is the submission data to be published to Aggregate
+		if (!submissionXml.exists() || !submissionXml.isFile()) {
+			throw new IOException("No submission.xml found");
+		}
+
+		// Step 1: sign the media files, in the order they would have been encrypted...
+		List<File> mediaFiles = listAttachments(instanceXml, submissionXml);
+		Map<String, byte[]> ivs = new LinkedHashMap<String, byte[]>();
+		for (File f : mediaFiles) {
+			ivs.put(f.getName(), formInfo.nextIv());
+			formInfo.appendFileSignatureSource(f);
+		}
+
+		// ...and encrypt the submission as the last file
+		encryptFiles(Collections.singletonList(submissionXml), formInfo, notifier);
 
 		// Step 2: build the encrypted-submission manifest (overwrites
 		// submission.xml)...
 		writeSubmissionManifest(formInfo, submissionXml, mediaFiles);
+
+		return new DeferredEncryption(formInfo.symmetricKey, ivs).serialize(formInfo.wrapper);
+	}
+
+	/**
+	 * @param create whether to generate the device key if there is none
+	 * @return the key the symmetric keys of deferred submissions are stored
+	 *         under, or null if there is none and create is false
+	 */
+	private static synchronized SecretKeySpec getDeviceKey(boolean create) throws IOException {
+		Collect app = Collect.getInstance();
+		byte[] key = new byte[SYMMETRIC_KEY_LENGTH/8];
+		InputStream in = null;
+		try {
+			in = app.openFileInput(DEVICE_KEY_FILE);
+			if (IOUtils.read(in, key) == key.length) {
+				return new SecretKeySpec(key, "AES");
+			}
+			Log.w(t, "Replacing a truncated device key");
+		} catch (FileNotFoundException e) {
+			// not created yet
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+		if (!create) {
+			return null;
+		}
+
+		new SecureRandom().nextBytes(key);
+		OutputStream out = null;
+		try {
+			out = app.openFileOutput(DEVICE_KEY_FILE, Context.MODE_PRIVATE);
+			out.write(key);
+		} finally {
+			IOUtils.closeQuietly(out);
+		}
+		return new SecretKeySpec(key, "AES");
+	}
+
+	/**
+	 * The symmetric key and IVs of the attachments of a submission whose
+	 * encryption was deferred until it is sent. The RSA-encrypted symmetric
+	 * key is in the submission manifest, but it cannot be decrypted on the
+	 * device, so the symmetric key is kept with the instance until the
+	 * submission has been sent. As it also decrypts the submission itself,
+	 * it is only stored encrypted under a device key, which is kept in the
+	 * application's private storage rather than beside the instances
+	 * database on the SD card.
+	 *
+	 * Serialized as the base64 IV and encrypted symmetric key followed by
+	 * one "filename\tbase64 IV" line per attachment.
+	 */
+	public static final class DeferredEncryption {
+		private final SecretKeySpec mKey;
+		private final Map<String, byte[]> mIvs;
+
+		private DeferredEncryption(SecretKeySpec key, Map<String, byte[]> ivs) {
+			mKey = key;
+			mIvs = ivs;
+		}
+
+		/**
+		 * @return null if serialized is null
+		 * @throws EncryptionException if it cannot be read (e.g., because
+		 *             the device key was lost with the application's data)
+		 */
+		public static DeferredEncryption parse(String serialized) throws EncryptionException {
+			if (serialized == null) {
+				return null;
+			}
+			try {
+				Base64Wrapper wrapper = new Base64Wrapper();
+				String[] lines = serialized.split(NEW_LINE);
+				SecretKeySpec deviceKey = getDeviceKey(false);
+				if (deviceKey == null) {
+					throw new IOException("No device key");
+				}
+				byte[] wrapped = wrapper.decode(lines[0]);
+				Cipher c = Cipher.getInstance(DEVICE_KEY_ALGORITHM);
+				c.init(Cipher.DECRYPT_MODE, deviceKey,
+						new IvParameterSpec(wrapped, 0, IV_BYTE_LENGTH));
+				SecretKeySpec key = new SecretKeySpec(
+						c.doFinal(wrapped, IV_BYTE_LENGTH, wrapped.length - IV_BYTE_LENGTH),
+						SYMMETRIC_ALGORITHM);
+				Map<String, byte[]> ivs = new HashMap<String, byte[]>();
+				for (int i = 1; i < lines.length; ++i) {
+					int tab = lines[i].lastIndexOf('\t');
+					ivs.put(lines[i].substring(0, tab), wrapper.decode(lines[i].substring(tab + 1)));
+				}
+				return new DeferredEncryption(key, ivs);
+			} catch (Exception e) {
+				String msg = "Unable to read the deferred encryption of a submission";
+				Log.e(t, msg, e);
+				throw new EncryptionException(msg, e);
+			}
+		}
+
+		private String serialize(Base64Wrapper wrapper) throws EncryptionException {
+			byte[] wrapped;
+			try {
+				byte[] iv = new byte[IV_BYTE_LENGTH];
+				new SecureRandom().nextBytes(iv);
+				Cipher c = Cipher.getInstance(DEVICE_KEY_ALGORITHM);
+				c.init(Cipher.ENCRYPT_MODE, getDeviceKey(true), new IvParameterSpec(iv));
+				byte[] encrypted = c.doFinal(mKey.getEncoded());
+				wrapped = new byte[IV_BYTE_LENGTH + encrypted.length];
+				System.arraycopy(iv, 0, wrapped, 0, IV_BYTE_LENGTH);
+				System.arraycopy(encrypted, 0, wrapped, IV_BYTE_LENGTH, encrypted.length);
+			} catch (Exception e) {
+				String msg = "Unable to store the key of a deferred submission";
+				Log.e(t, msg, e);
+				throw new EncryptionException(msg, e);
+			}
+			StringBuilder b = new StringBuilder(wrapper.encodeToString(wrapped));
+			for (Map.Entry<String, byte[]> iv : mIvs.entrySet()) {
+				b.append(NEW_LINE).append(iv.getKey()).append('\t')
+						.append(wrapper.encodeToString(iv.getValue()));
+			}
+			return b.toString();
+		}
+
+		/**
+		 * @return true if file is an attachment to encrypt as it is sent
+		 */
+		public boolean isDeferred(File file) {
+			return mIvs.containsKey(file.getName());
+		}
+
+		/**
+		 * @return a new cipher that encrypts the attachment into the same
+		 *         bytes as its .enc file would have held
+		 */
+		public Cipher getCipher(File file) throws GeneralSecurityException {
+			byte[] iv = mIvs.get(file.getName());
+			if (iv == null) {
+				throw new IllegalArgumentException("Not a deferred attachment: " + file.getName());
+			}
+			Cipher c;
+			try {
+				c = Cipher.getInstance(SYMMETRIC_ALGORITHM, ENCRYPTION_PROVIDER);
+			} catch (NoSuchProviderException e) {
+				Log.w(t, "Unable to obtain BouncyCastle provider! Decryption may fail!");
+				c = Cipher.getInstance(SYMMETRIC_ALGORITHM);
+			}
+			c.init(Cipher.ENCRYPT_MODE, mKey, new IvParameterSpec(iv));
+			return c;
+		}
 	}
 	
 	private static void writeSubmissionManifest(
@@ -35,6 +35,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -128,46 +129,34 @@ public class FileUtils {
     }
 
 
+    /**
+     * Size of the direct buffer used to stream files through the digest.
+     */
+    private static final int MD5_BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> md5Buffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(MD5_BUFFER_SIZE);
+        }
+    };
+
     public static String getMd5Hash(File file) {
+        FileInputStream is = null;
         try {
             // CTS (6/15/2010) : stream file through digest instead of handing it the byte[]
             MessageDigest md = MessageDigest.getInstance("MD5");
-            int chunkSize = 256;
 
-            byte[] chunk = new byte[chunkSize];
-
-            // Get the size of the file
-            long lLength = file.length();
-
-            if (lLength > Integer.MAX_VALUE) {
-                Log.e(t, "File " + file.getName() + "is too large");
-                return null;
-            }
-
-            int length = (int) lLength;
-
-            InputStream is = null;
             is = new FileInputStream(file);
-
-            int l = 0;
-            for (l = 0; l + chunkSize < length; l += chunkSize) {
-                is.read(chunk, 0, chunkSize);
-                md.update(chunk, 0, chunkSize);
+            FileChannel channel = is.getChannel();
+            ByteBuffer buffer = md5Buffer.get();
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
             }
-
-            int remaining = length - l;
-            if (remaining > 0) {
-                is.read(chunk, 0, remaining);
-                md.update(chunk, 0, remaining);
-            }
-            byte[] messageDigest = md.digest();
-
-            BigInteger number = new BigInteger(1, messageDigest);
-            String md5 = number.toString(16);
-            while (md5.length() < 32)
-                md5 = "0" + md5;
-            is.close();
-            return md5;
+            return toHexMd5(md.digest());
 
         } catch (NoSuchAlgorithmException e) {
             Log.e("MD5", e.getMessage());
@@ -179,10 +168,23 @@ public class FileUtils {
         } catch (IOException e) {
             Log.e("Problem reading from file", e.getMessage());
             return null;
+        } finally {
+            IOUtils.closeQuietly(is);
         }
 
     }
 
+    /**
+     * @return the 32 character, zero-padded, lower-case hex form of an md5 digest
+     */
+    public static String toHexMd5(byte[] messageDigest) {
+        BigInteger number = new BigInteger(1, messageDigest);
+        String md5 = number.toString(16);
+        while (md5.length() < 32)
+            md5 = "0" + md5;
+        return md5;
+    }
+
 
     public static Bitmap getBitmapScaledToDisplay(File f, int screenHeight, int screenWidth) {
         // Determine image size of f
@@ -212,6 +214,56 @@ public class FileUtils {
     }
 
 
+    /**
+     * Size of the buffer used to stream data into files.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Streams the data into a hidden temporary file next to destFile, syncs
+     * it to the device once, and renames it over destFile. A crash at any
+     * point leaves either the old or the new content of destFile, never a
+     * partial file or none at all.
+     *
+     * @param data stream of the content to write (not closed)
+     * @param destFile
+     * @throws IOException if the content could not be written or moved into place
+     */
+    public static void writeAtomically(InputStream data, File destFile) throws IOException {
+        // hidden, so the uploader and the encryption ignore it
+        File tempFile = new File(destFile.getParentFile(), "." + destFile.getName() + ".tmp");
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tempFile);
+            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+            int len;
+            while ((len = data.read(buffer)) != -1) {
+                fos.write(buffer, 0, len);
+            }
+            fos.getChannel().force(true);
+            fos.close();
+            fos = null;
+
+            if (!tempFile.renameTo(destFile)) {
+                // some file systems do not replace an existing file on rename
+                if (destFile.exists() && !destFile.delete()) {
+                    throw new IOException("Cannot overwrite " + destFile.getAbsolutePath()
+                            + ". Perhaps the file is locked?");
+                }
+                if (!tempFile.renameTo(destFile)) {
+                    throw new IOException("Error renaming " + tempFile.getAbsolutePath() + " to "
+                            + destFile.getAbsolutePath());
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(fos);
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+
     public static String copyFile(File sourceFile, File destFile) {
         if (sourceFile.exists()) {
             String errorMessage = actualCopy(sourceFile, destFile);
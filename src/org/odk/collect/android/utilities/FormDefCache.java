@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileHashDbAdapter;
+import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Content-addressed cache of serialized FormDefs, stored as [md5].formdef in
+ * {@link Collect#CACHE_PATH}.
+ *
+ * Forms registered by DiskSyncTask or DownloadFormsTask are parsed and
+ * serialized ahead of time on a single low-priority thread, so that the first
+ * open of a form is a cache hit. The md5 of a form is taken from the forms
+ * content provider whenever the form file still has the length and
+ * modification time recorded there with it.
+ */
+public class FormDefCache {
+    private final static String t = "FormDefCache";
+
+    public static final String FORMDEF_EXTENSION = ".formdef";
+
+    /**
+     * Held while a form is parsed or its FormDef serialized. The JavaRosa
+     * parser and the prototype registries used by serialization are static
+     * and not thread-safe, so the prewarm thread and FormLoaderTask take
+     * turns.
+     */
+    public static final Object PARSE_LOCK = new Object();
+
+    private static final ExecutorService sPrewarmExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, t);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private FormDefCache() {
+    }
+
+    public static File getCacheFile(String md5) {
+        return new File(Collect.CACHE_PATH + File.separator + md5 + FORMDEF_EXTENSION);
+    }
+
+    /**
+     * Returns the md5 of the form file, as recorded in the forms content
+     * provider if the file still has the length and modification time
+     * recorded with it, otherwise as computed from the file.
+     *
+     * @param formXml
+     * @return md5 hash of the form file
+     */
+    public static String getMd5Hash(File formXml) {
+        String[] projection = {
+                FormsColumns.MD5_HASH, FormsColumns.FORM_FILE_LENGTH,
+                FormsColumns.FORM_FILE_LAST_MODIFIED
+        };
+        String selection = FormsColumns.FORM_FILE_PATH + "=?";
+        String[] selectionArgs = {
+                formXml.getAbsolutePath()
+        };
+        Cursor c = null;
+        try {
+            c = Collect.getInstance().getContentResolver()
+                    .query(FormsColumns.CONTENT_URI, projection, selection, selectionArgs, null);
+            if (c != null && c.moveToFirst()) {
+                String md5 = c.getString(c.getColumnIndex(FormsColumns.MD5_HASH));
+                int lengthIndex = c.getColumnIndex(FormsColumns.FORM_FILE_LENGTH);
+                int lastModifiedIndex = c.getColumnIndex(FormsColumns.FORM_FILE_LAST_MODIFIED);
+                if (md5 != null && !c.isNull(lengthIndex) && !c.isNull(lastModifiedIndex)
+                        && formXml.length() == c.getLong(lengthIndex)
+                        && formXml.lastModified() == c.getLong(lastModifiedIndex)) {
+                    return md5;
+                }
+            }
+        } catch (Exception e) {
+            Log.w(t, "Unable to read the md5 of " + formXml.getName() + " from the forms provider: "
+                    + e.toString());
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return FileHashDbAdapter.getMd5Hash(formXml);
+    }
+
+    /**
+     * Read serialized {@link FormDef} from file and recreate as object.
+     *
+     * @param formDef serialized FormDef file
+     * @return {@link FormDef} object, or null if it could not be read
+     */
+    public static FormDef read(File formDef) {
+        FileInputStream fis = null;
+        FormDef fd = null;
+        try {
+            // create new form def
+            fd = new FormDef();
+            fis = new FileInputStream(formDef);
+            DataInputStream dis = new DataInputStream(fis);
+
+            // read serialized formdef into new formdef
+            fd.readExternal(dis, ExtUtil.defaultPrototypes());
+            dis.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            fd = null;
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+        return fd;
+    }
+
+    /**
+     * Write the FormDef to the cache. The FormDef is written to a temporary
+     * file first and renamed, so that a concurrent reader never sees a
+     * partially written cache file.
+     *
+     * @param fd
+     * @param md5 md5 hash of the form file
+     */
+    public static void write(FormDef fd, String md5) {
+        synchronized (PARSE_LOCK) {
+            writeLocked(fd, md5);
+        }
+    }
+
+    private static void writeLocked(FormDef fd, String md5) {
+        File formDef = getCacheFile(md5);
+        if (formDef.exists()) {
+            return;
+        }
+
+        File tempFile = new File(formDef.getParentFile(), formDef.getName() + "."
+                + Thread.currentThread().getId() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new FileOutputStream(tempFile));
+            fd.writeExternal(dos);
+            dos.flush();
+            dos.close();
+            dos = null;
+            if (!tempFile.renameTo(formDef)) {
+                Log.w(t, "Unable to move " + tempFile.getName() + " to " + formDef.getName());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            IOUtils.closeQuietly(dos);
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Queue the form registered under formUri to be parsed and serialized in
+     * the background, unless its cache file already exists.
+     *
+     * @param formUri uri of the form in the forms content provider
+     */
+    public static void prewarm(Uri formUri) {
+        if (formUri == null) {
+            return;
+        }
+        String[] projection = {
+                FormsColumns.FORM_FILE_PATH, FormsColumns.MD5_HASH
+        };
+        Cursor c = null;
+        try {
+            c = Collect.getInstance().getContentResolver()
+                    .query(formUri, projection, null, null, null);
+            if (c != null && c.moveToFirst()) {
+                prewarm(new File(c.getString(c.getColumnIndex(FormsColumns.FORM_FILE_PATH))),
+                        c.getString(c.getColumnIndex(FormsColumns.MD5_HASH)));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Queue the form file to be parsed and serialized in the background,
+     * unless its cache file already exists.
+     *
+     * @param formXml
+     * @param md5 md5 hash of the form file
+     */
+    public static void prewarm(final File formXml, final String md5) {
+        if (md5 == null || getCacheFile(md5).exists()) {
+            return;
+        }
+        sPrewarmExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PARSE_LOCK) {
+                    // FormLoaderTask may have built it while this waited
+                    if (getCacheFile(md5).exists() || !formXml.exists()) {
+                        return;
+                    }
+                    long start = System.currentTimeMillis();
+                    FileInputStream fis = null;
+                    try {
+                        fis = new FileInputStream(formXml);
+                        FormDef fd = XFormUtils.getFormFromInputStream(fis);
+                        if (fd != null) {
+                            writeLocked(fd, md5);
+                            Log.i(t, "Pre-built " + md5 + FORMDEF_EXTENSION + " for " + formXml.getName()
+                                    + " in " + (System.currentTimeMillis() - start) + "ms");
+                        }
+                    } catch (Exception e) {
+                        // the form will be parsed (and the error reported) when it is opened
+                        Log.w(t, "Unable to pre-build the cache of " + formXml.getName() + ": " + e.toString());
+                    } finally {
+                        IOUtils.closeQuietly(fis);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete the cache files of forms that are no longer in the forms content
+     * provider.
+     */
+    public static void evictOrphans() {
+        Set<String> knownHashes = new HashSet<String>();
+        String[] projection = {
+                FormsColumns.MD5_HASH
+        };
+        Cursor c = null;
+        try {
+            c = Collect.getInstance().getContentResolver()
+                    .query(FormsColumns.CONTENT_URI, projection, null, null, null);
+            if (c == null) {
+                return;
+            }
+            while (c.moveToNext()) {
+                knownHashes.add(c.getString(0));
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        File[] cacheFiles = new File(Collect.CACHE_PATH).listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(FORMDEF_EXTENSION);
+            }
+        });
+        if (cacheFiles == null) {
+            return;
+        }
+        for (File cacheFile : cacheFiles) {
+            String name = cacheFile.getName();
+            String md5 = name.substring(0, name.length() - FORMDEF_EXTENSION.length());
+            if (!knownHashes.contains(md5)) {
+                Log.i(t, "Evicting " + name + ", its form no longer exists");
+                cacheFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.FormDetails;
+
+import android.util.Log;
+
+/**
+ * Cache of the last form list downloaded from each form list url, stored in
+ * {@link Collect#CACHE_PATH} with the ETag and Last-Modified values the server
+ * sent with it, so that a refresh can be a conditional request.
+ */
+public class FormListCache {
+    private final static String t = "FormListCache";
+
+    private static final String FORMLIST_EXTENSION = ".formlist";
+
+    public static class Entry {
+        public final String mETag;
+        public final String mLastModified;
+        public final HashMap<String, FormDetails> mFormList;
+
+        Entry(String eTag, String lastModified, HashMap<String, FormDetails> formList) {
+            mETag = eTag;
+            mLastModified = lastModified;
+            mFormList = formList;
+        }
+    }
+
+    private FormListCache() {
+    }
+
+    private static File getCacheFile(String formListUrl) {
+        String name;
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            name = FileUtils.toHexMd5(md.digest(formListUrl.getBytes("UTF-8")));
+        } catch (Exception e) {
+            name = Integer.toHexString(formListUrl.hashCode());
+        }
+        return new File(Collect.CACHE_PATH, name + FORMLIST_EXTENSION);
+    }
+
+    /**
+     * @param formListUrl
+     * @return the cached form list of formListUrl, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized Entry read(String formListUrl) {
+        File cacheFile = getCacheFile(formListUrl);
+        if (!cacheFile.exists()) {
+            return null;
+        }
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new FileInputStream(cacheFile));
+            if (!formListUrl.equals(ois.readUTF())) {
+                return null;
+            }
+            String eTag = (String) ois.readObject();
+            String lastModified = (String) ois.readObject();
+            HashMap<String, FormDetails> formList = (HashMap<String, FormDetails>) ois.readObject();
+            return new Entry(eTag, lastModified, formList);
+        } catch (Exception e) {
+            Log.w(t, "Unable to read the cached form list of " + formListUrl + ": " + e.toString());
+            cacheFile.delete();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(ois);
+        }
+    }
+
+    /**
+     * Caches the form list of formListUrl, if the server sent an ETag or a
+     * Last-Modified date to validate it with.
+     */
+    public static synchronized void write(String formListUrl, String eTag, String lastModified,
+            HashMap<String, FormDetails> formList) {
+        File cacheFile = getCacheFile(formListUrl);
+        if (eTag == null && lastModified == null) {
+            cacheFile.delete();
+            return;
+        }
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeUTF(formListUrl);
+            oos.writeObject(eTag);
+            oos.writeObject(lastModified);
+            oos.writeObject(formList);
+            oos.close();
+            FileUtils.writeAtomically(new ByteArrayInputStream(bos.toByteArray()), cacheFile);
+        } catch (IOException e) {
+            Log.w(t, "Unable to cache the form list of " + formListUrl + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Forget the form list of formListUrl (e.g., because it could not be parsed).
+     */
+    public static synchronized void invalidate(String formListUrl) {
+        getCacheFile(formListUrl).delete();
+    }
+}
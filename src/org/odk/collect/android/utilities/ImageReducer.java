@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.preferences.PreferencesActivity;
+
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Downscales and recompresses captured images on a background thread, so
+ * that they are not stored and sent at the full resolution of the camera.
+ * An image is only rewritten if its longest side exceeds the maximum
+ * dimension set in the preferences, or in the max-pixels bind attribute of
+ * its question (which also accepts a jpeg-quality attribute). The EXIF tags
+ * of the original, including its orientation, are copied to the reduced
+ * image.
+ */
+public class ImageReducer {
+    private final static String t = "ImageReducer";
+
+    /**
+     * Bind attribute overriding the maximum dimension (0 keeps the original).
+     */
+    public static final String MAX_PIXELS_ATTRIBUTE = "max-pixels";
+    /**
+     * Bind attribute overriding the JPEG quality.
+     */
+    public static final String JPEG_QUALITY_ATTRIBUTE = "jpeg-quality";
+
+    public static final int DEFAULT_MAX_DIMENSION = 0;
+    public static final int DEFAULT_JPEG_QUALITY = 85;
+
+    private static final String REDUCED_EXTENSION = ".reduced";
+
+    // tags copied from the original; the dimensions are those of the reduced image
+    private static final String[] EXIF_TAGS = {
+            ExifInterface.TAG_ORIENTATION, ExifInterface.TAG_DATETIME, ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL, ExifInterface.TAG_FLASH, ExifInterface.TAG_WHITE_BALANCE,
+            ExifInterface.TAG_FOCAL_LENGTH, ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF, ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF, ExifInterface.TAG_GPS_ALTITUDE,
+            ExifInterface.TAG_GPS_ALTITUDE_REF, ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_DATESTAMP, ExifInterface.TAG_GPS_PROCESSING_METHOD
+    };
+
+    private static ImageReducer singleton = null;
+
+    public static synchronized ImageReducer getInstance() {
+        if (singleton == null) {
+            singleton = new ImageReducer();
+        }
+        return singleton;
+    }
+
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, t);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    });
+
+    // images whose answer was deleted or replaced while they were queued;
+    // the lock under which a reduced image replaces its original
+    private static final Set<String> sCancelled = new HashSet<String>();
+
+    // metrics; guarded by this
+    private int mReducedCount = 0;
+    private long mBytesBefore = 0L;
+    private long mBytesAfter = 0L;
+
+    private ImageReducer() {
+    }
+
+    /**
+     * Reduces image in the background, with the settings of the question it
+     * answers. Must be called on the UI thread, before the image is shown.
+     */
+    public void reduce(final File image, FormEntryPrompt prompt) {
+        SharedPreferences settings =
+                PreferenceManager.getDefaultSharedPreferences(Collect.getInstance());
+        int maxDimension = parseInt(settings.getString(PreferencesActivity.KEY_IMAGE_MAX_DIMENSION,
+                null), DEFAULT_MAX_DIMENSION);
+        int quality = parseInt(settings.getString(PreferencesActivity.KEY_IMAGE_JPEG_QUALITY, null),
+                DEFAULT_JPEG_QUALITY);
+
+        if (prompt != null) {
+            List<TreeElement> attrs = prompt.getBindAttributes();
+            for (int i = 0; i < attrs.size(); i++) {
+                TreeElement attr = attrs.get(i);
+                if (MAX_PIXELS_ATTRIBUTE.equals(attr.getName())) {
+                    maxDimension = parseInt(attr.getAttributeValue(), maxDimension);
+                } else if (JPEG_QUALITY_ATTRIBUTE.equals(attr.getName())) {
+                    quality = parseInt(attr.getAttributeValue(), quality);
+                }
+            }
+        }
+
+        if (maxDimension <= 0) {
+            return;
+        }
+        final int finalMaxDimension = maxDimension;
+        final int finalQuality = Math.max(1, Math.min(100, quality));
+        synchronized (sCancelled) {
+            sCancelled.remove(image.getAbsolutePath());
+        }
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (isCancelled(image)) {
+                    return;
+                }
+                long before = image.length();
+                if (reduceImage(image, finalMaxDimension, finalQuality)) {
+                    recordReduction(image, before, image.length());
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the pending reduction of image, if any, so that it is not
+     * written back once the answer is deleted. Must be called before the
+     * image is deleted.
+     */
+    public void cancel(File image) {
+        synchronized (sCancelled) {
+            sCancelled.add(image.getAbsolutePath());
+        }
+    }
+
+    private static boolean isCancelled(File image) {
+        synchronized (sCancelled) {
+            return sCancelled.contains(image.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Waits for the images queued so far to be reduced (e.g., before they
+     * are encrypted or sent).
+     *
+     * @return false if they were not all reduced within timeoutMillis
+     */
+    public boolean awaitPending(long timeoutMillis) {
+        try {
+            mWorker.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            Log.w(t, "Images are still being reduced: " + e.toString());
+            return false;
+        }
+    }
+
+    private synchronized void recordReduction(File image, long before, long after) {
+        ++mReducedCount;
+        mBytesBefore += before;
+        mBytesAfter += after;
+        Log.i(t, "Reduced " + image.getName() + " from " + before + " to " + after + " bytes "
+                + toString());
+    }
+
+    /**
+     * Downscales image so that its longest side is at most maxDimension, and
+     * recompresses it as a JPEG of the given quality, unless that would not
+     * make it smaller. The image is replaced only once the reduced image is
+     * completely written.
+     *
+     * @return true if image was replaced
+     */
+    public static boolean reduceImage(File image, int maxDimension, int quality) {
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.getAbsolutePath(), o);
+        int longest = Math.max(o.outWidth, o.outHeight);
+        if (longest <= 0 || longest <= maxDimension) {
+            return false;
+        }
+
+        // subsample as far as possible while decoding, then scale exactly
+        int sampleSize = 1;
+        while (longest / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+        File reduced = new File(image.getParentFile(), "." + image.getName() + REDUCED_EXTENSION);
+        Bitmap b = null;
+        FileOutputStream out = null;
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            b = BitmapFactory.decodeFile(image.getAbsolutePath(), options);
+            if (b == null) {
+                Log.w(t, "Unable to decode " + image.getAbsolutePath());
+                return false;
+            }
+            int sampledLongest = Math.max(b.getWidth(), b.getHeight());
+            if (sampledLongest > maxDimension) {
+                float scale = (float) maxDimension / sampledLongest;
+                Bitmap scaled = Bitmap.createScaledBitmap(b, Math.round(b.getWidth() * scale),
+                        Math.round(b.getHeight() * scale), true);
+                if (scaled != b) {
+                    b.recycle();
+                    b = scaled;
+                }
+            }
+
+            out = new FileOutputStream(reduced);
+            if (!b.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                Log.w(t, "Unable to compress " + image.getAbsolutePath());
+                return false;
+            }
+            out.getChannel().force(true);
+            out.close();
+            out = null;
+
+            if (reduced.length() >= image.length()) {
+                Log.i(t, image.getName() + " is not made smaller by reducing it");
+                return false;
+            }
+            copyExif(image, reduced, b.getWidth(), b.getHeight());
+
+            synchronized (sCancelled) {
+                // the answer may have been deleted while it was being reduced
+                if (sCancelled.contains(image.getAbsolutePath()) || !image.exists()) {
+                    Log.i(t, image.getName() + " was deleted while it was being reduced");
+                    return false;
+                }
+                if (!reduced.renameTo(image)) {
+                    // some file systems do not replace an existing file on rename
+                    if (!image.delete() || !reduced.renameTo(image)) {
+                        Log.e(t, "Error renaming " + reduced.getAbsolutePath() + " to "
+                                + image.getAbsolutePath());
+                        return false;
+                    }
+                }
+            }
+            return true;
+        } catch (OutOfMemoryError e) {
+            Log.e(t, "Out of memory reducing " + image.getAbsolutePath());
+            return false;
+        } catch (IOException e) {
+            Log.e(t, "Error reducing " + image.getAbsolutePath() + ": " + e.toString());
+            return false;
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (b != null) {
+                b.recycle();
+            }
+            if (reduced.exists()) {
+                reduced.delete();
+            }
+        }
+    }
+
+    private static void copyExif(File source, File destination, int width, int height) {
+        try {
+            ExifInterface from = new ExifInterface(source.getAbsolutePath());
+            ExifInterface to = new ExifInterface(destination.getAbsolutePath());
+            boolean copied = false;
+            for (String tag : EXIF_TAGS) {
+                String value = from.getAttribute(tag);
+                if (value != null) {
+                    to.setAttribute(tag, value);
+                    copied = true;
+                }
+            }
+            if (copied) {
+                to.setAttribute(ExifInterface.TAG_IMAGE_WIDTH, Integer.toString(width));
+                to.setAttribute(ExifInterface.TAG_IMAGE_LENGTH, Integer.toString(height));
+                to.saveAttributes();
+            }
+        } catch (IOException e) {
+            // the pixels are not rotated, so the orientation may now be wrong
+            Log.w(t, "Unable to copy the EXIF tags of " + source.getName() + ": " + e.toString());
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            Log.w(t, "Ignoring invalid value " + value);
+            return defaultValue;
+        }
+    }
+
+    public synchronized int getReducedCount() {
+        return mReducedCount;
+    }
+
+    /**
+     * @return the number of bytes the reduced images are smaller by
+     */
+    public synchronized long getBytesSaved() {
+        return mBytesBefore - mBytesAfter;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageReducer{reduced=" + mReducedCount + ", bytesBefore=" + mBytesBefore
+                + ", bytesAfter=" + mBytesAfter + ", bytesSaved=" + getBytesSaved() + "}";
+    }
+}
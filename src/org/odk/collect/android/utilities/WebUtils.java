@@ -57,6 +57,8 @@ import org.opendatakit.httpclientandroidlib.conn.ClientConnectionManager;
 import org.opendatakit.httpclientandroidlib.impl.auth.BasicScheme;
 import org.opendatakit.httpclientandroidlib.impl.client.BasicAuthCache;
 import org.opendatakit.httpclientandroidlib.impl.client.DefaultHttpClient;
+import org.opendatakit.httpclientandroidlib.impl.conn.PoolingClientConnectionManager;
+import org.opendatakit.httpclientandroidlib.impl.conn.SchemeRegistryFactory;
 import org.opendatakit.httpclientandroidlib.params.BasicHttpParams;
 import org.opendatakit.httpclientandroidlib.params.HttpConnectionParams;
 import org.opendatakit.httpclientandroidlib.params.HttpParams;
@@ -89,7 +91,23 @@ public final class WebUtils {
 	public static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
 	public static final String GZIP_CONTENT_ENCODING = "gzip";
 
-	private static ClientConnectionManager httpConnectionManager = null;
+	public static final String ETAG_HEADER = "ETag";
+	public static final String LAST_MODIFIED_HEADER = "Last-Modified";
+	public static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+	public static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+
+	/**
+	 * Upper bound on the connections open at once (e.g., by concurrent
+	 * submission uploads), overall and to any one server.
+	 */
+	public static final int MAX_CONNECTIONS = 8;
+	public static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+	// created on first use; replaced after clearHttpConnectionManager
+	private static volatile ClientConnectionManager httpConnectionManager = null;
+
+	// tasks making requests from several threads at once
+	private static int concurrentUsers = 0;
 
 	public static final List<AuthScope> buildAuthScopes(String host) {
 		List<AuthScope> asList = new ArrayList<AuthScope>();
@@ -238,13 +256,12 @@ public final class WebUtils {
 
 	/**
 	 * Create an httpClient with connection timeouts and other parameters set.
-	 * Save and reuse the connection manager across invocations (this is what
-	 * requires synchronized access).
+	 * Save and reuse the connection manager across invocations.
 	 *
 	 * @param timeout
 	 * @return HttpClient properly configured.
 	 */
-	public static final synchronized HttpClient createHttpClient(int timeout) {
+	public static final HttpClient createHttpClient(int timeout) {
 		// configure connection
 		HttpParams params = new BasicHttpParams();
 		HttpConnectionParams.setConnectionTimeout(params, timeout);
@@ -267,20 +284,35 @@ public final class WebUtils {
 		// setup client
 		DefaultHttpClient httpclient;
 
-		// reuse the connection manager across all clients this ODK Collect
-		// creates.
-		if (httpConnectionManager == null) {
-			// let Apache stack create a connection manager.
-			httpclient = new DefaultHttpClient(params);
-			httpConnectionManager = httpclient.getConnectionManager();
-		} else {
-			// reuse the connection manager we already got.
-			httpclient = new DefaultHttpClient(httpConnectionManager, params);
-		}
+		// reuse the connection manager across clients.
+		httpclient = new DefaultHttpClient(getHttpConnectionManager(), params);
 
 		return httpclient;
 	}
 
+	/**
+	 * @return the connection manager shared by all the clients this ODK
+	 *         Collect creates, creating it if it was cleared.
+	 */
+	private static ClientConnectionManager getHttpConnectionManager() {
+		ClientConnectionManager pool = httpConnectionManager;
+		if (pool == null) {
+			synchronized (WebUtils.class) {
+				pool = httpConnectionManager;
+				if (pool == null) {
+					// use a pooling connection manager so that the clients can
+					// be used concurrently (e.g., by parallel uploads).
+					PoolingClientConnectionManager pooling = new PoolingClientConnectionManager(
+							SchemeRegistryFactory.createDefault());
+					pooling.setMaxTotal(MAX_CONNECTIONS);
+					pooling.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+					httpConnectionManager = pool = pooling;
+				}
+			}
+		}
+		return pool;
+	}
+
 	/**
 	 * Utility to ensure that the entity stream of a response is drained of
 	 * bytes.
@@ -318,6 +350,50 @@ public final class WebUtils {
 	 */
 	public static DocumentFetchResult getXmlDocument(String urlString,
 			HttpContext localContext, HttpClient httpclient) {
+		final Document doc = new Document();
+		DocumentFetchResult result = getXmlStream(urlString, localContext,
+				httpclient, null, null, new XmlPullHandler() {
+					@Override
+					public void parse(XmlPullParser parser,
+							boolean isOpenRosaResponse) throws Exception {
+						doc.parse(parser);
+					}
+				});
+		if (result.errorMessage != null) {
+			return result;
+		}
+		return new DocumentFetchResult(doc, result.isOpenRosaResponse);
+	}
+
+	/**
+	 * Pulls an xml document from the response, so that callers that only
+	 * extract a few values never build the whole document in memory.
+	 */
+	public interface XmlPullHandler {
+		void parse(XmlPullParser parser, boolean isOpenRosaResponse)
+				throws Exception;
+	}
+
+	/**
+	 * Common method for streaming an xml document given a url and the http
+	 * context and client objects involved in the web connection. The handler
+	 * parses the document as it is read from the connection.
+	 *
+	 * If eTag or lastModified (from an earlier result) is given, the request
+	 * is conditional; if the document has not changed, the handler is not
+	 * called and the result is {@link DocumentFetchResult#notModified}.
+	 *
+	 * @param urlString
+	 * @param localContext
+	 * @param httpclient
+	 * @param eTag the ETag of the cached document, or null
+	 * @param lastModified the Last-Modified date of the cached document, or null
+	 * @param handler
+	 * @return the result, without a document
+	 */
+	public static DocumentFetchResult getXmlStream(String urlString,
+			HttpContext localContext, HttpClient httpclient, String eTag,
+			String lastModified, XmlPullHandler handler) {
 		URI u = null;
 		try {
 			URL url = new URL(urlString);
@@ -341,6 +417,12 @@ public final class WebUtils {
 		// set up request...
 		HttpGet req = WebUtils.createOpenRosaHttpGet(u);
 		req.addHeader(WebUtils.ACCEPT_ENCODING_HEADER, WebUtils.GZIP_CONTENT_ENCODING);
+		if (eTag != null) {
+			req.addHeader(IF_NONE_MATCH_HEADER, eTag);
+		}
+		if (lastModified != null) {
+			req.addHeader(IF_MODIFIED_SINCE_HEADER, lastModified);
+		}
 
 		HttpResponse response = null;
 		try {
@@ -349,6 +431,13 @@ public final class WebUtils {
 
 			HttpEntity entity = response.getEntity();
 
+			if (statusCode == HttpStatus.SC_NOT_MODIFIED
+					&& (eTag != null || lastModified != null)) {
+				WebUtils.discardEntityBytes(response);
+				return new DocumentFetchResult(isOpenRosaResponse(response),
+						true, eTag, lastModified);
+			}
+
 			if (statusCode != HttpStatus.SC_OK) {
 				WebUtils.discardEntityBytes(response);
             	if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
@@ -379,8 +468,10 @@ public final class WebUtils {
 				Log.e(t, error);
 				return new DocumentFetchResult(error, 0);
 			}
+
+			boolean isOR = isOpenRosaResponse(response);
+
 			// parse response
-			Document doc = null;
 			try {
 				InputStream is = null;
 				InputStreamReader isr = null;
@@ -391,12 +482,11 @@ public final class WebUtils {
 	                	is = new GZIPInputStream(is);
 	                }
 					isr = new InputStreamReader(is, "UTF-8");
-					doc = new Document();
 					KXmlParser parser = new KXmlParser();
 					parser.setInput(isr);
 					parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES,
 							true);
-					doc.parse(parser);
+					handler.parse(parser, isOR);
 					isr.close();
 					isr = null;
 				} finally {
@@ -431,33 +521,13 @@ public final class WebUtils {
 				return new DocumentFetchResult(error, 0);
 			}
 
-			boolean isOR = false;
-			Header[] fields = response
-					.getHeaders(WebUtils.OPEN_ROSA_VERSION_HEADER);
-			if (fields != null && fields.length >= 1) {
-				isOR = true;
-				boolean versionMatch = false;
-				boolean first = true;
-				StringBuilder b = new StringBuilder();
-				for (Header h : fields) {
-					if (WebUtils.OPEN_ROSA_VERSION.equals(h.getValue())) {
-						versionMatch = true;
-						break;
-					}
-					if (!first) {
-						b.append("; ");
-					}
-					first = false;
-					b.append(h.getValue());
-				}
-				if (!versionMatch) {
-					Log.w(t, WebUtils.OPEN_ROSA_VERSION_HEADER
-							+ " unrecognized version(s): " + b.toString());
-				}
-			}
-			return new DocumentFetchResult(doc, isOR);
+			Header eTagHeader = response.getFirstHeader(ETAG_HEADER);
+			Header lastModifiedHeader = response.getFirstHeader(LAST_MODIFIED_HEADER);
+			return new DocumentFetchResult(isOR, false,
+					(eTagHeader == null) ? null : eTagHeader.getValue(),
+					(lastModifiedHeader == null) ? null : lastModifiedHeader.getValue());
 		} catch (Exception e) {
-			clearHttpConnectionManager();
+			clearHttpConnectionManagerUnlessShared();
 			e.printStackTrace();
 			String cause;
 			Throwable c = e;
@@ -473,15 +543,65 @@ public final class WebUtils {
 		}
 	}
 
-	public static void clearHttpConnectionManager() {
+	private static boolean isOpenRosaResponse(HttpResponse response) {
+		boolean isOR = false;
+		Header[] fields = response
+				.getHeaders(WebUtils.OPEN_ROSA_VERSION_HEADER);
+		if (fields != null && fields.length >= 1) {
+			isOR = true;
+			boolean versionMatch = false;
+			boolean first = true;
+			StringBuilder b = new StringBuilder();
+			for (Header h : fields) {
+				if (WebUtils.OPEN_ROSA_VERSION.equals(h.getValue())) {
+					versionMatch = true;
+					break;
+				}
+				if (!first) {
+					b.append("; ");
+				}
+				first = false;
+				b.append(h.getValue());
+			}
+			if (!versionMatch) {
+				Log.w(t, WebUtils.OPEN_ROSA_VERSION_HEADER
+						+ " unrecognized version(s): " + b.toString());
+			}
+		}
+		return isOR;
+	}
+
+	/**
+	 * Marks the start of requests made from several threads at once, until
+	 * the matching {@link #endConcurrentUse()}. Meanwhile, an error on one
+	 * of them does not drop the connections the others are using; the
+	 * pooled connection manager discards the failed connection instead.
+	 */
+	public static synchronized void beginConcurrentUse() {
+		++concurrentUsers;
+	}
+
+	public static synchronized void endConcurrentUse() {
+		--concurrentUsers;
+	}
+
+	private static synchronized void clearHttpConnectionManagerUnlessShared() {
+		if (concurrentUsers == 0) {
+			clearHttpConnectionManager();
+		}
+	}
+
+	public static synchronized void clearHttpConnectionManager() {
 		// If we get an unexpected exception, the safest thing is to close
 		// all connections
 		// so that if there is garbage on the connection we ensure it is
 		// removed. This
 		// is especially important if the connection times out.
-		if ( httpConnectionManager != null ) {
-			httpConnectionManager.shutdown();
+		ClientConnectionManager pool = httpConnectionManager;
+		if ( pool != null ) {
+			// no new client is given the pool once it is shutting down
 			httpConnectionManager = null;
+			pool.shutdown();
 		}
 	}
 }
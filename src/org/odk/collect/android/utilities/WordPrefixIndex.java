@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Index of a list of labels, ignoring case, that finds the labels starting
+ * with a prefix, or having a word starting with it, by binary search rather
+ * than by scanning them all. The start of each word of each label, and the
+ * start of the label itself even if it is not a word (e.g., "(none)"), is
+ * kept sorted by the text from there on, so the words starting with a prefix
+ * are next to each other.
+ * <p/>
+ * Immutable once built, so it can be queried from any thread.
+ */
+public class WordPrefixIndex {
+
+    private final String[] mLowerLabels;
+
+    // the label and offset of each word start, sorted by the text from there on
+    private final int[] mWordLabels;
+    private final int[] mWordOffsets;
+
+    // the labels, sorted by their text
+    private final int[] mLabels;
+
+    public WordPrefixIndex(List<String> labels, Locale locale) {
+        mLowerLabels = new String[labels.size()];
+        int words = 0;
+        for (int i = 0; i < mLowerLabels.length; i++) {
+            String label = labels.get(i);
+            mLowerLabels[i] = (label == null) ? "" : label.toLowerCase(locale);
+            words += countIndexed(mLowerLabels[i]);
+        }
+
+        Integer[] order = new Integer[words];
+        final int[] wordLabels = new int[words];
+        final int[] wordOffsets = new int[words];
+        int w = 0;
+        for (int i = 0; i < mLowerLabels.length; i++) {
+            String lower = mLowerLabels[i];
+            for (int j = 0; j < lower.length(); j++) {
+                if (isIndexed(lower, j)) {
+                    wordLabels[w] = i;
+                    wordOffsets[w] = j;
+                    order[w] = Integer.valueOf(w);
+                    ++w;
+                }
+            }
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return compareSuffixes(mLowerLabels[wordLabels[lhs]], wordOffsets[lhs],
+                        mLowerLabels[wordLabels[rhs]], wordOffsets[rhs]);
+            }
+        });
+
+        mWordLabels = new int[words];
+        mWordOffsets = new int[words];
+        int starts = 0;
+        for (int k = 0; k < words; k++) {
+            mWordLabels[k] = wordLabels[order[k]];
+            mWordOffsets[k] = wordOffsets[order[k]];
+            if (mWordOffsets[k] == 0) {
+                ++starts;
+            }
+        }
+        // a subsequence of the words, so also sorted
+        mLabels = new int[starts];
+        int s = 0;
+        for (int k = 0; k < words; k++) {
+            if (mWordOffsets[k] == 0) {
+                mLabels[s++] = mWordLabels[k];
+            }
+        }
+    }
+
+    public int size() {
+        return mLowerLabels.length;
+    }
+
+    /**
+     * @return the label at index, in lower case
+     */
+    public String getLowerLabel(int index) {
+        return mLowerLabels[index];
+    }
+
+    /**
+     * Adds the labels starting with lowerPrefix to results, in the order of
+     * their text, until results holds max labels.
+     */
+    public void findLabels(String lowerPrefix, Collection<Integer> results, int max) {
+        int k = lowerBound(lowerPrefix, true);
+        for (; k < mLabels.length && results.size() < max; k++) {
+            if (compareToPrefix(mLowerLabels[mLabels[k]], 0, lowerPrefix) != 0) {
+                break;
+            }
+            results.add(mLabels[k]);
+        }
+    }
+
+    /**
+     * Adds the labels with a word starting with lowerPrefix to results, in
+     * the order of the text from that word on, until results holds max
+     * labels. Labels already in results are not added again if it is a set.
+     */
+    public void findWords(String lowerPrefix, Collection<Integer> results, int max) {
+        int k = lowerBound(lowerPrefix, false);
+        for (; k < mWordLabels.length && results.size() < max; k++) {
+            if (compareToPrefix(mLowerLabels[mWordLabels[k]], mWordOffsets[k], lowerPrefix) != 0) {
+                break;
+            }
+            results.add(mWordLabels[k]);
+        }
+    }
+
+    /**
+     * @return the first entry whose text is not before lowerPrefix
+     */
+    private int lowerBound(String lowerPrefix, boolean labels) {
+        int low = 0;
+        int high = labels ? mLabels.length : mWordLabels.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int cmp = labels ? compareToPrefix(mLowerLabels[mLabels[mid]], 0, lowerPrefix)
+                    : compareToPrefix(mLowerLabels[mWordLabels[mid]], mWordOffsets[mid], lowerPrefix);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static boolean isWordStart(String s, int i) {
+        return Character.isLetterOrDigit(s.charAt(i))
+                && (i == 0 || !Character.isLetterOrDigit(s.charAt(i - 1)));
+    }
+
+    /**
+     * @return true if the text from i on is indexed: the start of each word,
+     *         and the start of the label whatever its first character
+     */
+    private static boolean isIndexed(String s, int i) {
+        return i == 0 || isWordStart(s, i);
+    }
+
+    private static int countIndexed(String s) {
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (isIndexed(s, i)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static int compareSuffixes(String a, int aOffset, String b, int bOffset) {
+        int aLength = a.length() - aOffset;
+        int bLength = b.length() - bOffset;
+        int n = Math.min(aLength, bLength);
+        for (int i = 0; i < n; i++) {
+            char ca = a.charAt(aOffset + i);
+            char cb = b.charAt(bOffset + i);
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return aLength - bLength;
+    }
+
+    /**
+     * @return 0 if the text of s from offset on starts with prefix, or the
+     *         order of that text relative to prefix otherwise
+     */
+    private static int compareToPrefix(String s, int offset, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (offset + i >= s.length()) {
+                return -1;
+            }
+            char c = s.charAt(offset + i);
+            char p = prefix.charAt(i);
+            if (c != p) {
+                return c - p;
+            }
+        }
+        return 0;
+    }
+}
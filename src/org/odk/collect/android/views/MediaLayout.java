@@ -22,7 +22,7 @@ import org.javarosa.core.reference.InvalidReferenceException;
 import org.javarosa.core.reference.ReferenceManager;
 import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.application.Collect;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.AsyncImageLoader;
 import org.odk.collect.android.widgets.QuestionWidget;
 
 import android.app.Activity;
@@ -171,41 +171,39 @@ public class MediaLayout extends RelativeLayout {
                                 .getDefaultDisplay();
                     int screenWidth = display.getWidth();
                     int screenHeight = display.getHeight();
-                    Bitmap b = FileUtils.getBitmapScaledToDisplay(imageFile, screenHeight, screenWidth);
-                    if (b != null) {
-                        mImageView = new ImageView(getContext());
-                        mImageView.setPadding(2, 2, 2, 2);
-                        mImageView.setBackgroundColor(Color.WHITE);
-                        mImageView.setImageBitmap(b);
-                        mImageView.setId(imageId);
-
-                        if (bigImageURI != null) {
-                            mImageView.setOnClickListener(new OnClickListener() {
-                            	String bigImageFilename = ReferenceManager._()
-                                        .DeriveReference(bigImageURI).getLocalURI();
-                                File bigImage = new File(bigImageFilename);
-
-
-                                @Override
-                                public void onClick(View v) {
-                                	Collect.getInstance().getActivityLogger().logInstanceAction(this, "onClick", "showImagePromptBigImage"+mSelectionDesignator, mIndex);
-
-                                    Intent i = new Intent("android.intent.action.VIEW");
-                                    i.setDataAndType(Uri.fromFile(bigImage), "image/*");
-                                    try {
-                                        getContext().startActivity(i);
-                                    } catch (ActivityNotFoundException e) {
-                                        Toast.makeText(
-                                            getContext(),
-                                            getContext().getString(R.string.activity_not_found,
-                                                "view image"), Toast.LENGTH_SHORT).show();
-                                    }
+                    mImageView = new ImageView(getContext());
+                    mImageView.setPadding(2, 2, 2, 2);
+                    mImageView.setBackgroundColor(Color.WHITE);
+                    mImageView.setId(imageId);
+                    // decoded in the background; if it is a bad file, the
+                    // image is replaced by the error
+                    AsyncImageLoader.getInstance().load(mImageView, imageFile, screenHeight,
+                            screenWidth, AsyncImageLoader.replaceWithErrorOnFailure(
+                                    getContext().getString(R.string.file_invalid, imageFile), 10));
+
+                    if (bigImageURI != null) {
+                        mImageView.setOnClickListener(new OnClickListener() {
+                        	String bigImageFilename = ReferenceManager._()
+                                    .DeriveReference(bigImageURI).getLocalURI();
+                            File bigImage = new File(bigImageFilename);
+
+
+                            @Override
+                            public void onClick(View v) {
+                            	Collect.getInstance().getActivityLogger().logInstanceAction(this, "onClick", "showImagePromptBigImage"+mSelectionDesignator, mIndex);
+
+                                Intent i = new Intent("android.intent.action.VIEW");
+                                i.setDataAndType(Uri.fromFile(bigImage), "image/*");
+                                try {
+                                    getContext().startActivity(i);
+                                } catch (ActivityNotFoundException e) {
+                                    Toast.makeText(
+                                        getContext(),
+                                        getContext().getString(R.string.activity_not_found,
+                                            "view image"), Toast.LENGTH_SHORT).show();
                                 }
-                            });
-                        }
-                    } else {
-                        // Loading the image failed, so it's likely a bad file.
-                        errorMsg = getContext().getString(R.string.file_invalid, imageFile);
+                            }
+                        });
                     }
                 } else {
                     // We should have an image, but the file doesn't exist.
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.views;
+
+import java.util.List;
+
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.form.api.FormEntryCaption;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.external.ExternalDataUtil;
+import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.FormController.ScreenLookAhead;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+
+/**
+ * Builds the view of the next screen while the user is on the current one,
+ * so that swiping forward does not wait for its widgets to be created. The
+ * next screen is read by looking ahead in the form, and its view is built
+ * when the UI thread is next idle (views can only be created on the UI
+ * thread, and the form is not thread safe).
+ * <p/>
+ * As the answers on the current screen are only saved when swiping, they
+ * may change which questions the next screen shows, or what they show. The
+ * view is therefore only used if the screen the form actually steps to still
+ * has the same signature (the questions, their text, answers and choices) as
+ * the one it was built for; otherwise it is discarded and built again.
+ */
+public class NextViewBuilder {
+    private final static String t = "NextViewBuilder";
+
+    private final Context mContext;
+
+    private boolean mScheduled = false;
+
+    // the screen the view was built from, the screen it is for, and the view
+    private FormIndex mFromIndex = null;
+    private FormIndex mNextIndex = null;
+    private String mSignature = null;
+    private ODKView mView = null;
+
+    // metrics
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mNotReady = 0;
+    private int mSkipped = 0;
+
+    private final MessageQueue.IdleHandler mBuildWhenIdle = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            mScheduled = false;
+            build();
+            // only once
+            return false;
+        }
+    };
+
+    public NextViewBuilder(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Builds the view of the screen after the current one once the UI thread
+     * is idle, replacing any view built before. Must be called on the UI
+     * thread.
+     */
+    public void schedule() {
+        discard();
+        if (!mScheduled) {
+            mScheduled = true;
+            Looper.myQueue().addIdleHandler(mBuildWhenIdle);
+        }
+    }
+
+    /**
+     * Drops the view built ahead, and any pending build.
+     */
+    public void discard() {
+        if (mScheduled) {
+            mScheduled = false;
+            Looper.myQueue().removeIdleHandler(mBuildWhenIdle);
+        }
+        if (mView != null) {
+            mView.recycleDrawables();
+        }
+        mFromIndex = null;
+        mNextIndex = null;
+        mSignature = null;
+        mView = null;
+    }
+
+    private void build() {
+        FormController formController = Collect.getInstance().getFormController();
+        if (formController == null) {
+            return;
+        }
+        FormIndex fromIndex = formController.getFormIndex();
+        ScreenLookAhead next = formController.lookAheadToNextScreen();
+        if (next == null) {
+            // the end of the form, a repeat prompt, or not safe to look ahead
+            ++mSkipped;
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        String signature;
+        try {
+            signature = getSignature(next.prompts, next.groups);
+            if (signature == null) {
+                ++mSkipped;
+                return;
+            }
+            mView = new ODKView(mContext, next.prompts, next.groups, false);
+        } catch (RuntimeException e) {
+            // shown to the user when the screen is built for real
+            Log.w(t, "Unable to build the next view: " + e.getMessage());
+            ++mSkipped;
+            return;
+        }
+        mFromIndex = fromIndex;
+        mNextIndex = next.index;
+        mSignature = signature;
+        Log.i(t, "Built the next view in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Returns the view built for the current screen of the form, which has
+     * just been stepped to from fromIndex, or null if there is none or it is
+     * out of date (e.g., because the answers saved on leaving fromIndex
+     * changed the relevance of its questions). Either way, the view is no
+     * longer held.
+     */
+    public ODKView take(FormIndex fromIndex) {
+        ODKView view = mView;
+        boolean valid = false;
+        if (view != null) {
+            FormController formController = Collect.getInstance().getFormController();
+            try {
+                valid = fromIndex.equals(mFromIndex)
+                        && formController.getFormIndex().equals(mNextIndex)
+                        && mSignature.equals(getSignature(formController.getQuestionPrompts(),
+                                formController.getGroupsForCurrentIndex()));
+            } catch (RuntimeException e) {
+                Log.w(t, "Unable to check the next view: " + e.getMessage());
+            }
+        }
+
+        if (view == null) {
+            ++mNotReady;
+        } else if (valid) {
+            ++mHits;
+            // not recycled by discard
+            mView = null;
+        } else {
+            ++mMisses;
+        }
+        discard();
+        Log.i(t, toString());
+        return valid ? view : null;
+    }
+
+    /**
+     * @return what the view of a screen shows, or null if it shows choices
+     *         that are not computed from the prompts alone
+     */
+    private static String getSignature(FormEntryPrompt[] prompts, FormEntryCaption[] groups) {
+        StringBuilder b = new StringBuilder();
+        for (FormEntryCaption g : groups) {
+            b.append(g.getLongText()).append('\u0000').append(g.getMultiplicity()).append('\u0000');
+        }
+        for (FormEntryPrompt p : prompts) {
+            // itemsets and search() are queried when their widget is built
+            if (p.getQuestion().getAdditionalAttribute(null, "query") != null) {
+                return null;
+            }
+            String appearance = p.getAppearanceHint();
+            if (appearance != null
+                    && ExternalDataUtil.getSearchXPathExpression(appearance) != null) {
+                return null;
+            }
+
+            IAnswerData answer = p.getAnswerValue();
+            b.append(p.getIndex()).append('\u0000')
+                    .append(p.getLongText()).append('\u0000')
+                    .append(p.getHelpText()).append('\u0000')
+                    .append(answer == null ? null : answer.getDisplayText()).append('\u0000')
+                    .append(p.isReadOnly()).append(p.isRequired()).append('\u0000');
+
+            if (p.getControlType() == Constants.CONTROL_SELECT_ONE
+                    || p.getControlType() == Constants.CONTROL_SELECT_MULTI) {
+                List<SelectChoice> choices = p.getSelectChoices();
+                if (choices != null) {
+                    for (SelectChoice choice : choices) {
+                        b.append(choice.getValue()).append('\u0000')
+                                .append(p.getSelectChoiceText(choice)).append('\u0000');
+                    }
+                }
+            }
+        }
+        return b.toString();
+    }
+
+    public int getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return the number of views discarded as out of date
+     */
+    public int getMisses() {
+        return mMisses;
+    }
+
+    @Override
+    public String toString() {
+        int total = mHits + mMisses + mNotReady;
+        return "NextViewBuilder{hits=" + mHits + ", misses=" + mMisses + ", notReady=" + mNotReady
+                + ", skipped=" + mSkipped + ", hitRate="
+                + (total == 0 ? 0 : (100 * mHits) / total) + "%}";
+    }
+}
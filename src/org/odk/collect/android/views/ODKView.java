@@ -197,9 +197,18 @@ public class ODKView extends ScrollView implements OnLongClickListener {
 
         addView(mView);
 
-        // see if there is an autoplay option. 
-        // Only execute it during forward swipes through the form 
-        if ( advancingPage && widgets.size() == 1 ) {
+        // Only autoplay during forward swipes through the form
+        if ( advancingPage ) {
+            autoplay();
+        }
+    }
+
+    /**
+     * Plays the audio or video of the question, if it has an autoplay option.
+     * Called when a view built ahead of time is shown.
+     */
+    public void autoplay() {
+        if ( widgets.size() == 1 ) {
 	        final String playOption = widgets.get(0).getPrompt().getFormElement().getAdditionalAttribute(null, "autoplay");
 	        if ( playOption != null ) {
 	        	h = new Handler();
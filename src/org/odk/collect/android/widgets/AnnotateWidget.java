@@ -23,7 +23,8 @@ import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.activities.DrawActivity;
 import org.odk.collect.android.activities.FormEntryActivity;
 import org.odk.collect.android.application.Collect;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.AsyncImageLoader;
+import org.odk.collect.android.utilities.ImageReducer;
 import org.odk.collect.android.utilities.MediaUtils;
 
 import android.app.Activity;
@@ -226,12 +227,16 @@ public class AnnotateWidget extends QuestionWidget implements IBinaryWidget {
 			File f = new File(mInstanceFolder + File.separator + mBinaryName);
 
 			if (f.exists()) {
-				Bitmap bmp = FileUtils.getBitmapScaledToDisplay(f,
-						screenHeight, screenWidth);
-				if (bmp == null) {
-					mErrorTextView.setVisibility(View.VISIBLE);
-				}
-				mImageView.setImageBitmap(bmp);
+				// decoded in the background; shows the error if it cannot be
+				AsyncImageLoader.getInstance().loadUncached(mImageView, f, screenHeight, screenWidth,
+						new AsyncImageLoader.ImageLoadListener() {
+							@Override
+							public void onImageLoaded(ImageView view, Bitmap b) {
+								if (b == null) {
+									mErrorTextView.setVisibility(View.VISIBLE);
+								}
+							}
+						});
 			} else {
 				mImageView.setImageBitmap(null);
 			}
@@ -285,6 +290,8 @@ public class AnnotateWidget extends QuestionWidget implements IBinaryWidget {
 		String name = mBinaryName;
 		// clean up variables
 		mBinaryName = null;
+		// so that a pending reduction does not write it back
+		ImageReducer.getInstance().cancel(new File(mInstanceFolder + File.separator + name));
 		// delete from media provider
 		int del = MediaUtils.deleteImageFileFromMediaProvider(mInstanceFolder
 				+ File.separator + name);
@@ -295,6 +302,7 @@ public class AnnotateWidget extends QuestionWidget implements IBinaryWidget {
 	public void clearAnswer() {
 		// remove the file
 		deleteMedia();
+		AsyncImageLoader.getInstance().cancel(mImageView);
 		mImageView.setImageBitmap(null);
 		mErrorTextView.setVisibility(View.GONE);
 		if (!mPrompt.isReadOnly()) {
@@ -338,6 +346,8 @@ public class AnnotateWidget extends QuestionWidget implements IBinaryWidget {
 			Log.i(t, "Inserting image returned uri = " + imageURI.toString());
 
 			mBinaryName = newImage.getName();
+			// downscaled in the background, if the settings ask for it
+			ImageReducer.getInstance().reduce(newImage, mPrompt);
 			Log.i(t, "Setting current answer to " + newImage.getName());
 		} else {
 			Log.e(t, "NO IMAGE EXISTS at: " + newImage.getAbsolutePath());
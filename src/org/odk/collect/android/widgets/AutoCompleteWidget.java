@@ -15,6 +15,7 @@
 package org.odk.collect.android.widgets;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 
@@ -25,9 +26,11 @@ import org.javarosa.core.model.data.helper.Selection;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.external.ExternalDataUtil;
+import org.odk.collect.android.utilities.WordPrefixIndex;
 
 import android.content.Context;
 import android.graphics.Color;
+import android.util.Log;
 import android.view.Gravity;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.ArrayAdapter;
@@ -46,6 +49,13 @@ import android.widget.Toast;
  * @author Jeff Beorse (jeff@beorse.net)
  */
 public class AutoCompleteWidget extends QuestionWidget {
+    private final static String t = "AutoCompleteWidget";
+
+    // The most suggestions shown in the drop down
+    private static final int MAX_RESULTS = 50;
+
+    // Choices scanned between checks for a newer filter pass
+    private static final int STALE_CHECK_INTERVAL = 256;
 
     AutoCompleteAdapter choices;
     AutoCompleteTextView autocomplete;
@@ -60,6 +70,9 @@ public class AutoCompleteWidget extends QuestionWidget {
     String match_prefix = "prefix";
     String match_chars = "chars";
 
+    // The text most recently sent to the filter
+    private volatile String mLatestConstraint = null;
+
 
     public AutoCompleteWidget(Context context, FormEntryPrompt prompt, String filterType) {
         super(context, prompt);
@@ -75,7 +88,14 @@ public class AutoCompleteWidget extends QuestionWidget {
         mPrompt = prompt;
 
         choices = new AutoCompleteAdapter(getContext(), android.R.layout.simple_list_item_1);
-        autocomplete = new AutoCompleteTextView(getContext());
+        autocomplete = new AutoCompleteTextView(getContext()) {
+            @Override
+            protected void performFiltering(CharSequence text, int keyCode) {
+                // Before the filter pass is queued, so that older passes see they are stale
+                mLatestConstraint = (text == null) ? "" : text.toString();
+                super.performFiltering(text, keyCode);
+            }
+        };
 
         // Default to matching substring
         if (filterType != null) {
@@ -152,19 +172,23 @@ public class AutoCompleteWidget extends QuestionWidget {
     private class AutoCompleteAdapter extends ArrayAdapter<String> implements Filterable {
 
         private ItemsFilter mFilter;
-        public ArrayList<String> mItems;
+
+        // every choice, and those matching the text typed
+        private final ArrayList<String> mAllItems;
+        public List<String> mItems;
 
 
         public AutoCompleteAdapter(Context context, int textViewResourceId) {
             super(context, textViewResourceId);
-            mItems = new ArrayList<String>();
+            mAllItems = new ArrayList<String>();
+            mItems = mAllItems;
         }
 
 
         @Override
         public void add(String toAdd) {
             super.add(toAdd);
-            mItems.add(toAdd);
+            mAllItems.add(toAdd);
         }
 
 
@@ -188,7 +212,7 @@ public class AutoCompleteWidget extends QuestionWidget {
 
         public Filter getFilter() {
             if (mFilter == null) {
-                mFilter = new ItemsFilter(mItems);
+                mFilter = new ItemsFilter();
             }
             return mFilter;
         }
@@ -199,17 +223,13 @@ public class AutoCompleteWidget extends QuestionWidget {
             return position;
         }
 
+        /**
+         * Filters on the filter thread, through an index of the choices built
+         * there by the first pass, so that typing does not scan every choice.
+         */
         private class ItemsFilter extends Filter {
-            final ArrayList<String> mItemsArray;
-
-
-            public ItemsFilter(ArrayList<String> list) {
-                if (list == null) {
-                    mItemsArray = new ArrayList<String>();
-                } else {
-                    mItemsArray = new ArrayList<String>(list);
-                }
-            }
+            // built on the filter thread
+            private WordPrefixIndex mIndex;
 
 
             @Override
@@ -217,70 +237,57 @@ public class AutoCompleteWidget extends QuestionWidget {
                 // Initiate our results object
                 FilterResults results = new FilterResults();
 
-                // If the adapter array is empty, check the actual items array and use it
-                if (mItems == null) {
-                    mItems = new ArrayList<String>(mItemsArray);
+                if (mIndex == null) {
+                    long start = System.currentTimeMillis();
+                    mIndex = new WordPrefixIndex(mAllItems, Locale.getDefault());
+                    Log.i(t, "Indexed " + mIndex.size() + " choices in "
+                            + (System.currentTimeMillis() - start) + " ms");
                 }
 
-                // No prefix is sent to filter by so we're going to send back the original array
+                // Matches in the order they are found, each once
+                LinkedHashSet<Integer> found = new LinkedHashSet<Integer>();
                 if (prefix == null || prefix.length() == 0) {
-                    results.values = mItemsArray;
-                    results.count = mItemsArray.size();
+                    for (int i = 0; i < mIndex.size() && found.size() < MAX_RESULTS; i++) {
+                        found.add(i);
+                    }
                 } else {
                     // Compare lower case strings
                     String prefixString = prefix.toString().toLowerCase(Locale.getDefault());
 
-                    // Local to here so we're not changing actual array
-                    final ArrayList<String> items = mItems;
-                    final int count = items.size();
-                    final ArrayList<String> newItems = new ArrayList<String>(count);
-
-                    for (int i = 0; i < count; i++) {
-                        final String item = items.get(i);
-                        String item_compare = item.toLowerCase(Locale.getDefault());
-
-                        // Match the strings using the filter specified
-                        if (filterType.equals(match_substring)
-                                && (item_compare.startsWith(prefixString) || item_compare
-                                        .contains(prefixString))) {
-                            newItems.add(item);
-                        } else if (filterType.equals(match_prefix)
-                                && item_compare.startsWith(prefixString)) {
-                            newItems.add(item);
-                        } else if (filterType.equals(match_chars)) {
-                            char[] toMatch = prefixString.toCharArray();
-
-                            boolean matches = true;
-                            for (int j = 0; j < toMatch.length; j++) {
-                                int index = item_compare.indexOf(toMatch[j]);
-                                if (index > -1) {
-                                    item_compare =
-                                        item_compare.substring(0, index)
-                                                + item_compare.substring(index + 1);
-                                } else {
-                                    matches = false;
-                                    break;
-                                }
+                    if (filterType.equals(match_prefix)) {
+                        mIndex.findLabels(prefixString, found, MAX_RESULTS);
+                    } else if (filterType.equals(match_chars)) {
+                        for (int i = 0; i < mIndex.size() && found.size() < MAX_RESULTS; i++) {
+                            if (i % STALE_CHECK_INTERVAL == 0 && isStale(prefix)) {
+                                return results;
                             }
-
-                            if (matches) {
-                                newItems.add(item);
+                            if (containsChars(mIndex.getLowerLabel(i), prefixString)) {
+                                found.add(i);
                             }
-
-                        } else {
-                            // Default to substring
-                            if (item_compare.startsWith(prefixString)
-                                    || item_compare.contains(prefixString)) {
-                                newItems.add(item);
+                        }
+                    } else {
+                        // Default to substring: the choices starting with it, then those
+                        // with a word starting with it, and only then any others
+                        mIndex.findLabels(prefixString, found, MAX_RESULTS);
+                        mIndex.findWords(prefixString, found, MAX_RESULTS);
+                        for (int i = 0; i < mIndex.size() && found.size() < MAX_RESULTS; i++) {
+                            if (i % STALE_CHECK_INTERVAL == 0 && isStale(prefix)) {
+                                return results;
+                            }
+                            if (mIndex.getLowerLabel(i).contains(prefixString)) {
+                                found.add(i);
                             }
                         }
                     }
-
-                    // Set and return
-                    results.values = newItems;
-                    results.count = newItems.size();
                 }
 
+                // Set and return
+                ArrayList<String> newItems = new ArrayList<String>(found.size());
+                for (Integer i : found) {
+                    newItems.add(mAllItems.get(i));
+                }
+                results.values = newItems;
+                results.count = newItems.size();
                 return results;
             }
 
@@ -288,7 +295,11 @@ public class AutoCompleteWidget extends QuestionWidget {
             @SuppressWarnings("unchecked")
             @Override
             protected void publishResults(CharSequence constraint, FilterResults results) {
-                mItems = (ArrayList<String>) results.values;
+                if (results.values == null || isStale(constraint)) {
+                    // Superseded by a pass for what has been typed since
+                    return;
+                }
+                mItems = (List<String>) results.values;
                 // Let the adapter know about the updated list
                 if (results.count > 0) {
                     notifyDataSetChanged();
@@ -303,6 +314,39 @@ public class AutoCompleteWidget extends QuestionWidget {
     }
 
 
+    /**
+     * @return true if the text has been changed since constraint was typed
+     */
+    private boolean isStale(CharSequence constraint) {
+        String latest = mLatestConstraint;
+        return latest != null && !latest.equals(constraint == null ? "" : constraint.toString());
+    }
+
+
+    /**
+     * @return true if each of chars is in s, as many times as in chars
+     */
+    private static boolean containsChars(String s, String chars) {
+        char[] remaining = s.toCharArray();
+        for (int j = 0; j < chars.length(); j++) {
+            char c = chars.charAt(j);
+            boolean matched = false;
+            for (int k = 0; k < remaining.length; k++) {
+                if (remaining[k] == c) {
+                    // Each character of s only matches once
+                    remaining[k] = Character.MAX_VALUE;
+                    matched = true;
+                    break;
+                }
+            }
+            if (!matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     @Override
     public void setOnLongClickListener(OnLongClickListener l) {
         autocomplete.setOnLongClickListener(l);
@@ -31,7 +31,7 @@ import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSelectChoice;
 import org.odk.collect.android.listeners.AdvanceToNextListener;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.BitmapCache;
 import org.odk.collect.android.views.AudioButton.AudioHandler;
 import org.odk.collect.android.views.ExpandedHeightGridView;
 
@@ -180,9 +180,11 @@ public class GridWidget extends QuestionWidget {
                 	imageFilename = ReferenceManager._().DeriveReference(imageURI).getLocalURI();
                     final File imageFile = new File(imageFilename);
                     if (imageFile.exists()) {
-                        Bitmap b =
-                            FileUtils
-                                    .getBitmapScaledToDisplay(imageFile, screenHeight, screenWidth);
+                        Bitmap b = (numColumns > 0)
+                                ? BitmapCache.getInstance().getBitmapScaledToWidth(imageFile,
+                                        screenHeight, screenWidth, resizeWidth)
+                                : BitmapCache.getInstance().getBitmapScaledToDisplay(imageFile,
+                                        screenHeight, screenWidth);
                         if (b != null) {
 
                             if (b.getWidth() > maxColumnWidth) {
@@ -193,11 +195,6 @@ public class GridWidget extends QuestionWidget {
 
                             imageView.setBackgroundColor(Color.WHITE);
 
-	                        if ( numColumns > 0 ) {
-	                        	int resizeHeight = (b.getHeight() * resizeWidth) / b.getWidth();
-	                        	b = Bitmap.createScaledBitmap(b, resizeWidth, resizeHeight, false);
-	                        }
-
 	                        imageView.setPadding(IMAGE_PADDING, IMAGE_PADDING, IMAGE_PADDING, IMAGE_PADDING);
 	                        imageView.setImageBitmap(b);
 	                        imageView.setLayoutParams(new ListView.LayoutParams(ListView.LayoutParams.WRAP_CONTENT, ListView.LayoutParams.WRAP_CONTENT));
@@ -27,10 +27,9 @@ import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSelectChoice;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.AsyncImageLoader;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Typeface;
 import android.util.Log;
 import android.util.TypedValue;
@@ -103,33 +102,20 @@ public class LabelWidget extends QuestionWidget {
                             ReferenceManager._().DeriveReference(imageURI).getLocalURI();
                         final File imageFile = new File(imageFilename);
                         if (imageFile.exists()) {
-                            Bitmap b = null;
-                            try {
-                                Display display =
-                                    ((WindowManager) getContext().getSystemService(
-                                        Context.WINDOW_SERVICE)).getDefaultDisplay();
-                                int screenWidth = display.getWidth();
-                                int screenHeight = display.getHeight();
-                                b =
-                                    FileUtils.getBitmapScaledToDisplay(imageFile, screenHeight,
-                                        screenWidth);
-                            } catch (OutOfMemoryError e) {
-                                errorMsg = "ERROR: " + e.getMessage();
-                            }
-
-                            if (b != null) {
-                                mImageView = new ImageView(getContext());
-                                mImageView.setPadding(2, 2, 2, 2);
-                                mImageView.setAdjustViewBounds(true);
-                                mImageView.setImageBitmap(b);
-                                mImageView.setId(labelId);
-                            } else if (errorMsg == null) {
-                                // An error hasn't been logged and loading the image failed, so it's
-                                // likely
-                                // a bad file.
-                                errorMsg = getContext().getString(R.string.file_invalid, imageFile);
-
-                            }
+                            Display display =
+                                ((WindowManager) getContext().getSystemService(
+                                    Context.WINDOW_SERVICE)).getDefaultDisplay();
+                            int screenWidth = display.getWidth();
+                            int screenHeight = display.getHeight();
+                            mImageView = new ImageView(getContext());
+                            mImageView.setPadding(2, 2, 2, 2);
+                            mImageView.setAdjustViewBounds(true);
+                            mImageView.setId(labelId);
+                            // decoded in the background; if it is a bad file, the
+                            // image is replaced by the error
+                            AsyncImageLoader.getInstance().load(mImageView, imageFile, screenHeight,
+                                    screenWidth, AsyncImageLoader.replaceWithErrorOnFailure(
+                                            getContext().getString(R.string.file_invalid, imageFile), 2));
                         } else if (errorMsg == null) {
                             // An error hasn't been logged. We should have an image, but the file
                             // doesn't
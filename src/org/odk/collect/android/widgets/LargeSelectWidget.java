@@ -0,0 +1,550 @@
+/*
+ * Copyright (C) 2009 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.widgets;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.SelectMultiData;
+import org.javarosa.core.model.data.SelectOneData;
+import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.core.reference.InvalidReferenceException;
+import org.javarosa.core.reference.ReferenceManager;
+import org.javarosa.form.api.FormEntryCaption;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.digitalcampus.odk.collect.R;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.external.ExternalDataUtil;
+import org.odk.collect.android.external.ExternalSelectChoice;
+import org.odk.collect.android.utilities.AsyncImageLoader;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.util.TypedValue;
+import android.view.Display;
+import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+import android.view.inputmethod.InputMethodManager;
+import android.widget.AdapterView;
+import android.widget.BaseAdapter;
+import android.widget.CheckedTextView;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * LargeSelectWidget handles select-one and select-multiple fields with too many choices to create
+ * a button for each (see {@link #THRESHOLD}). The choices are shown in a list that only creates the
+ * rows on screen, and reuses them as it scrolls, under a box that filters them by their text. Static
+ * choices and the dynamic choices of search() are shown the same way. The image of a choice is
+ * shown as a thumbnail; its audio and video are not offered.
+ * <p/>
+ * The dynamic choices of search() can be shown from the first page on (see {@link #PAGE_SIZE}); the
+ * later pages are then loaded while the UI thread is idle, as the form can only be evaluated there.
+ */
+public class LargeSelectWidget extends QuestionWidget {
+    private final static String t = "LargeSelectWidget";
+
+    /**
+     * Select questions with more choices than this are shown with this widget.
+     */
+    public static final int THRESHOLD = 100;
+
+    /**
+     * The number of rows of external data read at a time for the choices of search().
+     */
+    public static final int PAGE_SIZE = 200;
+
+    // size of the choice thumbnails
+    private static final int IMAGE_SIZE_DIP = 48;
+
+    private final boolean mMultiple;
+    private final List<SelectChoice> mItems;
+    private final ArrayList<String> mLabels;
+    private final ArrayList<String> mFilterLabels;
+    // resolved as the rows are shown; empty if the choice has no image
+    private final ArrayList<String> mImageFilenames;
+    private final BitSet mSelected;
+
+    // the indexes of the choices matching the filter
+    private int[] mVisible;
+    private int mVisibleCount;
+    private String mFilterText = "";
+
+    // the answers whose choices are not loaded yet, by value
+    private final HashMap<String, Selection> mPendingAnswers;
+
+    // the search() whose later pages are still to be loaded, or null
+    private XPathFuncExpr mSearchExpression;
+    private Set<String> mReturnedValues;
+    private int mNextOffset;
+    private boolean mLoading = false;
+
+    private final int mImageSize;
+    private final TextView mSelectionText;
+    private final EditText mFilter;
+    private final ListView mListView;
+    private final ChoiceAdapter mAdapter;
+
+
+    public LargeSelectWidget(Context context, FormEntryPrompt prompt, List<SelectChoice> items,
+            boolean multiple) {
+        this(context, prompt, items, multiple, null, null);
+    }
+
+
+    /**
+     * @param items            the choices of the first page of the search() if searchExpression is
+     *                         set, or all of them otherwise
+     * @param searchExpression the search() whose later pages are to be loaded, or null if all the
+     *                         choices are in items
+     * @param returnedValues   the values of the dynamic choices of the first page, as passed to
+     *                         {@link ExternalDataUtil#populateExternalChoicePage}
+     */
+    @SuppressWarnings("unchecked")
+    public LargeSelectWidget(Context context, FormEntryPrompt prompt, List<SelectChoice> items,
+            boolean multiple, XPathFuncExpr searchExpression, Set<String> returnedValues) {
+        super(context, prompt);
+        mMultiple = multiple;
+        mItems = new ArrayList<SelectChoice>(items.size());
+        mLabels = new ArrayList<String>(items.size());
+        mFilterLabels = new ArrayList<String>(items.size());
+        mImageFilenames = new ArrayList<String>(items.size());
+        mSelected = new BitSet(items.size());
+        mVisible = new int[items.size()];
+
+        mPendingAnswers = new HashMap<String, Selection>();
+        if (prompt.getAnswerValue() != null) {
+            // match based on value, not key
+            List<Selection> answers;
+            if (mMultiple) {
+                answers = (List<Selection>) prompt.getAnswerValue().getValue();
+            } else {
+                answers = new ArrayList<Selection>();
+                answers.add((Selection) prompt.getAnswerValue().getValue());
+            }
+            for (Selection answer : answers) {
+                mPendingAnswers.put(answer.getValue(), answer);
+            }
+        }
+        addChoices(items);
+
+        if (searchExpression != null) {
+            mSearchExpression = searchExpression;
+            mReturnedValues = returnedValues;
+            mNextOffset = PAGE_SIZE;
+        }
+
+        mImageSize = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, IMAGE_SIZE_DIP,
+                getResources().getDisplayMetrics());
+        Display display =
+            ((WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE))
+                    .getDefaultDisplay();
+
+        mSelectionText = new TextView(getContext());
+        mSelectionText.setTextSize(TypedValue.COMPLEX_UNIT_DIP, mAnswerFontsize);
+        mSelectionText.setPadding(0, 5, 0, 5);
+        updateSelectionText();
+        addView(mSelectionText);
+
+        mFilter = new EditText(getContext());
+        mFilter.setTextSize(TypedValue.COMPLEX_UNIT_DIP, mAnswerFontsize);
+        updateFilterHint();
+        mFilter.setSingleLine(true);
+        mFilter.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                applyFilter(s.toString());
+            }
+        });
+        addView(mFilter);
+
+        mAdapter = new ChoiceAdapter();
+        mListView = new ListView(getContext());
+        mListView.setAdapter(mAdapter);
+        mListView.setFastScrollEnabled(true);
+        mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                onChoiceClicked(mVisible[position]);
+            }
+        });
+        mListView.setOnTouchListener(new OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                // scroll the list, not the screen it is on
+                v.getParent().requestDisallowInterceptTouchEvent(true);
+                return false;
+            }
+        });
+        // the screen scrolls, so the list needs a height of its own
+        addView(mListView, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.FILL_PARENT,
+                display.getHeight() / 2));
+
+        TextView empty = new TextView(getContext());
+        empty.setText(R.string.no_matching_choices);
+        empty.setTextSize(TypedValue.COMPLEX_UNIT_DIP, mAnswerFontsize);
+        empty.setVisibility(View.GONE);
+        addView(empty);
+        mListView.setEmptyView(empty);
+    }
+
+
+    /**
+     * Appends choices, selecting those of the answers not matched yet.
+     */
+    private void addChoices(List<SelectChoice> choices) {
+        Locale locale = Locale.getDefault();
+        for (SelectChoice choice : choices) {
+            int index = mItems.size();
+            String label = mPrompt.getSelectChoiceText(choice);
+            mItems.add(choice);
+            mLabels.add((label == null) ? "" : label);
+            mFilterLabels.add(mLabels.get(index).toLowerCase(locale));
+            mImageFilenames.add(null);
+            if (mPendingAnswers.remove(choice.getValue()) != null) {
+                mSelected.set(index);
+            }
+        }
+        if (mVisible.length < mItems.size()) {
+            int[] visible = new int[mItems.size()];
+            System.arraycopy(mVisible, 0, visible, 0, mVisibleCount);
+            mVisible = visible;
+        }
+        filterChoices();
+    }
+
+
+    /**
+     * Loads the next page of the search() choices, keeping the filter and the scroll position.
+     *
+     * @return true if there may be more pages
+     */
+    private boolean loadNextPage() {
+        long start = System.currentTimeMillis();
+        ExternalDataUtil.ChoicePage page;
+        try {
+            page = ExternalDataUtil.populateExternalChoicePage(mPrompt, mSearchExpression,
+                    mNextOffset, PAGE_SIZE, mReturnedValues);
+        } catch (RuntimeException e) {
+            Log.e(t, "Failed to load the choices from " + mNextOffset, e);
+            return false;
+        }
+        mNextOffset += PAGE_SIZE;
+        addChoices(page.choices);
+        mAdapter.notifyDataSetChanged();
+        updateFilterHint();
+        updateSelectionText();
+        Log.i(t, "Loaded " + page.choices.size() + " choices in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return page.hasMore;
+    }
+
+
+    // one page per idle pass, so that the screen stays responsive
+    private final MessageQueue.IdleHandler mLoadWhenIdle = new MessageQueue.IdleHandler() {
+        @Override
+        public boolean queueIdle() {
+            if (mSearchExpression != null && loadNextPage()) {
+                return true;
+            }
+            mSearchExpression = null;
+            mReturnedValues = null;
+            mLoading = false;
+            return false;
+        }
+    };
+
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (mSearchExpression != null && !mLoading) {
+            mLoading = true;
+            Looper.myQueue().addIdleHandler(mLoadWhenIdle);
+        }
+    }
+
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (mLoading) {
+            mLoading = false;
+            Looper.myQueue().removeIdleHandler(mLoadWhenIdle);
+        }
+        super.onDetachedFromWindow();
+    }
+
+
+    private void applyFilter(String filter) {
+        mFilterText = filter.trim().toLowerCase(Locale.getDefault());
+        filterChoices();
+        mAdapter.notifyDataSetChanged();
+        mListView.setSelection(0);
+    }
+
+
+    private void filterChoices() {
+        int count = 0;
+        for (int i = 0; i < mFilterLabels.size(); i++) {
+            if (mFilterText.length() == 0 || mFilterLabels.get(i).contains(mFilterText)) {
+                mVisible[count++] = i;
+            }
+        }
+        mVisibleCount = count;
+    }
+
+
+    private void updateFilterHint() {
+        mFilter.setHint(getContext().getString(R.string.filter_choices, mItems.size()));
+    }
+
+
+    private void onChoiceClicked(int index) {
+        if (mPrompt.isReadOnly()) {
+            return;
+        }
+        if (mMultiple) {
+            mSelected.flip(index);
+            Collect.getInstance().getActivityLogger().logInstanceAction(this,
+                    mSelected.get(index) ? "onItemClick.select" : "onItemClick.deselect",
+                    mItems.get(index).getValue(), mPrompt.getIndex());
+        } else {
+            mSelected.clear();
+            mPendingAnswers.clear();
+            mSelected.set(index);
+            Collect.getInstance().getActivityLogger().logInstanceAction(this, "onItemClick",
+                    mItems.get(index).getValue(), mPrompt.getIndex());
+        }
+        mAdapter.notifyDataSetChanged();
+        updateSelectionText();
+    }
+
+
+    /**
+     * Shows the selected choices, as they may be scrolled or filtered out of the list.
+     */
+    private void updateSelectionText() {
+        StringBuilder b = new StringBuilder();
+        for (int i = mSelected.nextSetBit(0); i >= 0; i = mSelected.nextSetBit(i + 1)) {
+            if (b.length() > 0) {
+                b.append(", ");
+            }
+            b.append(mLabels.get(i));
+        }
+        // by value until their choices are loaded
+        for (String value : mPendingAnswers.keySet()) {
+            if (b.length() > 0) {
+                b.append(", ");
+            }
+            b.append(value);
+        }
+        if (b.length() == 0) {
+            mSelectionText.setVisibility(View.GONE);
+        } else {
+            mSelectionText.setText(getContext().getString(R.string.selected_choices, b.toString()));
+            mSelectionText.setVisibility(View.VISIBLE);
+        }
+    }
+
+
+    /**
+     * @return the image file of a choice, or null if it has none
+     */
+    private File getImageFile(int index) {
+        if (mImageFilenames.get(index) == null) {
+            SelectChoice choice = mItems.get(index);
+            String imageURI;
+            if (choice instanceof ExternalSelectChoice) {
+                imageURI = ((ExternalSelectChoice) choice).getImage();
+            } else {
+                imageURI = mPrompt.getSpecialFormSelectChoiceText(choice,
+                        FormEntryCaption.TEXT_FORM_IMAGE);
+            }
+            mImageFilenames.set(index, "");
+            if (imageURI != null) {
+                try {
+                    mImageFilenames.set(index,
+                        ReferenceManager._().DeriveReference(imageURI).getLocalURI());
+                } catch (InvalidReferenceException e) {
+                    Log.e(t, "Invalid image reference " + imageURI);
+                }
+            }
+        }
+        if (mImageFilenames.get(index).length() == 0) {
+            return null;
+        }
+        File f = new File(mImageFilenames.get(index));
+        return f.exists() ? f : null;
+    }
+
+
+    @Override
+    public IAnswerData getAnswer() {
+        List<Selection> vc = new ArrayList<Selection>();
+        for (int i = mSelected.nextSetBit(0); i >= 0; i = mSelected.nextSetBit(i + 1)) {
+            vc.add(new Selection(mItems.get(i)));
+        }
+        // kept as they were until their choices are loaded
+        vc.addAll(mPendingAnswers.values());
+
+        if (vc.size() == 0) {
+            return null;
+        } else if (mMultiple) {
+            return new SelectMultiData(vc);
+        } else {
+            return new SelectOneData(vc.get(0));
+        }
+    }
+
+
+    @Override
+    public void clearAnswer() {
+        mSelected.clear();
+        mPendingAnswers.clear();
+        mAdapter.notifyDataSetChanged();
+        updateSelectionText();
+    }
+
+
+    @Override
+    public void setFocus(Context context) {
+        // Hide the soft keyboard if it's showing.
+        InputMethodManager inputManager =
+            (InputMethodManager) context.getSystemService(Context.INPUT_METHOD_SERVICE);
+        inputManager.hideSoftInputFromWindow(this.getWindowToken(), 0);
+    }
+
+
+    @Override
+    public void setOnLongClickListener(OnLongClickListener l) {
+        mListView.setOnLongClickListener(l);
+    }
+
+
+    @Override
+    public void cancelLongPress() {
+        super.cancelLongPress();
+        mListView.cancelLongPress();
+    }
+
+
+    private static class RowViews {
+        final ImageView mImage;
+        final CheckedTextView mText;
+
+        RowViews(ImageView image, CheckedTextView text) {
+            mImage = image;
+            mText = text;
+        }
+    }
+
+
+    /**
+     * The choices matching the filter. Rows are reused as the list scrolls.
+     */
+    private class ChoiceAdapter extends BaseAdapter {
+
+        @Override
+        public int getCount() {
+            return mVisibleCount;
+        }
+
+
+        @Override
+        public Object getItem(int position) {
+            return mItems.get(mVisible[position]);
+        }
+
+
+        @Override
+        public long getItemId(int position) {
+            return mVisible[position];
+        }
+
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            RowViews row;
+            if (convertView == null) {
+                LinearLayout layout = new LinearLayout(getContext());
+                layout.setOrientation(LinearLayout.HORIZONTAL);
+                layout.setGravity(Gravity.CENTER_VERTICAL);
+
+                ImageView image = new ImageView(getContext());
+                image.setScaleType(ImageView.ScaleType.CENTER_INSIDE);
+                layout.addView(image, new LinearLayout.LayoutParams(mImageSize, mImageSize));
+
+                CheckedTextView text = (CheckedTextView) LayoutInflater.from(getContext()).inflate(
+                        mMultiple ? android.R.layout.simple_list_item_multiple_choice
+                                : android.R.layout.simple_list_item_single_choice, layout, false);
+                text.setTextSize(TypedValue.COMPLEX_UNIT_DIP, mAnswerFontsize);
+                layout.addView(text, new LinearLayout.LayoutParams(0,
+                        LinearLayout.LayoutParams.WRAP_CONTENT, 1));
+
+                row = new RowViews(image, text);
+                layout.setTag(row);
+                convertView = layout;
+            } else {
+                row = (RowViews) convertView.getTag();
+            }
+
+            int index = mVisible[position];
+            row.mText.setText(mLabels.get(index));
+            row.mText.setChecked(mSelected.get(index));
+            row.mText.setEnabled(!mPrompt.isReadOnly());
+
+            File image = getImageFile(index);
+            if (image == null) {
+                AsyncImageLoader.getInstance().cancel(row.mImage);
+                row.mImage.setImageDrawable(null);
+                row.mImage.setVisibility(View.GONE);
+            } else {
+                row.mImage.setVisibility(View.VISIBLE);
+                // scaled to the thumbnail rather than to the display
+                AsyncImageLoader.getInstance().load(row.mImage, image, mImageSize, mImageSize,
+                        null);
+            }
+            return convertView;
+        }
+    }
+
+}
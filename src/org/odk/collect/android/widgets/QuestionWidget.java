@@ -20,6 +20,8 @@ import java.util.List;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.form.api.FormEntryPrompt;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.AsyncImageLoader;
+import org.odk.collect.android.utilities.BitmapCache;
 import org.odk.collect.android.views.MediaLayout;
 
 import android.content.Context;
@@ -119,13 +121,16 @@ public abstract class QuestionWidget extends LinearLayout {
     	// collect all the image views
     	recycleDrawablesRecursive(this, images);
     	for ( ImageView imageView : images ) {
+    		// the view is going away, so its image need not be loaded
+    		AsyncImageLoader.getInstance().cancel(imageView);
     		imageView.destroyDrawingCache();
     		Drawable d = imageView.getDrawable();
     		if ( d != null && d instanceof BitmapDrawable) {
     			imageView.setImageDrawable(null);
     			BitmapDrawable bd = (BitmapDrawable) d;
     			Bitmap bmp = bd.getBitmap();
-    			if ( bmp != null ) {
+    			// shared bitmaps may still be shown by another view
+    			if ( bmp != null && !BitmapCache.getInstance().isShared(bmp) ) {
     				bmp.recycle();
     			}
     		}
@@ -23,7 +23,6 @@ import org.javarosa.core.model.data.SelectMultiData;
 import org.javarosa.core.model.data.helper.Selection;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryPrompt;
-import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSelectChoice;
@@ -50,19 +49,21 @@ public class SelectMultiWidget extends QuestionWidget {
     private ArrayList<CheckBox> mCheckboxes;
 
 
-    @SuppressWarnings("unchecked")
     public SelectMultiWidget(Context context, FormEntryPrompt prompt) {
+        // SurveyCTO-added support for dynamic select content (from .csv files)
+        this(context, prompt, ExternalDataUtil.getSelectChoices(prompt));
+    }
+
+
+    /**
+     * @param items the choices of prompt, if they were already computed
+     */
+    @SuppressWarnings("unchecked")
+    public SelectMultiWidget(Context context, FormEntryPrompt prompt, List<SelectChoice> items) {
         super(context, prompt);
         mPrompt = prompt;
         mCheckboxes = new ArrayList<CheckBox>();
-
-        // SurveyCTO-added support for dynamic select content (from .csv files)
-        XPathFuncExpr xPathFuncExpr = ExternalDataUtil.getSearchXPathExpression(prompt.getAppearanceHint());
-        if (xPathFuncExpr != null) {
-            mItems = ExternalDataUtil.populateExternalChoices(prompt, xPathFuncExpr);
-        } else {
-            mItems = prompt.getSelectChoices();
-        }
+        mItems = items;
 
         setOrientation(LinearLayout.VERTICAL);
 
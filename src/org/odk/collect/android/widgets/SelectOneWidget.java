@@ -23,7 +23,6 @@ import org.javarosa.core.model.data.SelectOneData;
 import org.javarosa.core.model.data.helper.Selection;
 import org.javarosa.form.api.FormEntryCaption;
 import org.javarosa.form.api.FormEntryPrompt;
-import org.javarosa.xpath.expr.XPathFuncExpr;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSelectChoice;
@@ -51,15 +50,17 @@ public class SelectOneWidget extends QuestionWidget implements
 	ArrayList<RadioButton> buttons;
 
 	public SelectOneWidget(Context context, FormEntryPrompt prompt) {
+		// SurveyCTO-added support for dynamic select content (from .csv files)
+		this(context, prompt, ExternalDataUtil.getSelectChoices(prompt));
+	}
+
+	/**
+	 * @param items the choices of prompt, if they were already computed
+	 */
+	public SelectOneWidget(Context context, FormEntryPrompt prompt, List<SelectChoice> items) {
 		super(context, prompt);
 
-        // SurveyCTO-added support for dynamic select content (from .csv files)
-        XPathFuncExpr xPathFuncExpr = ExternalDataUtil.getSearchXPathExpression(prompt.getAppearanceHint());
-        if (xPathFuncExpr != null) {
-            mItems = ExternalDataUtil.populateExternalChoices(prompt, xPathFuncExpr);
-        } else {
-            mItems = prompt.getSelectChoices();
-        }
+		mItems = items;
 		buttons = new ArrayList<RadioButton>();
 
 		// Layout holds the vertical list of buttons
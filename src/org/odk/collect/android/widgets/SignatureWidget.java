@@ -23,7 +23,7 @@ import org.digitalcampus.odk.collect.R;
 import org.odk.collect.android.activities.DrawActivity;
 import org.odk.collect.android.activities.FormEntryActivity;
 import org.odk.collect.android.application.Collect;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.AsyncImageLoader;
 import org.odk.collect.android.utilities.MediaUtils;
 
 import android.app.Activity;
@@ -124,11 +124,16 @@ public class SignatureWidget extends QuestionWidget implements IBinaryWidget {
             File f = new File(mInstanceFolder + File.separator + mBinaryName);
 
             if (f.exists()) {
-                Bitmap bmp = FileUtils.getBitmapScaledToDisplay(f, screenHeight, screenWidth);
-                if (bmp == null) {
-                    mErrorTextView.setVisibility(View.VISIBLE);
-                }
-                mImageView.setImageBitmap(bmp);
+                // decoded in the background; shows the error if it cannot be
+                AsyncImageLoader.getInstance().loadUncached(mImageView, f, screenHeight, screenWidth,
+                        new AsyncImageLoader.ImageLoadListener() {
+                            @Override
+                            public void onImageLoaded(ImageView view, Bitmap b) {
+                                if (b == null) {
+                                    mErrorTextView.setVisibility(View.VISIBLE);
+                                }
+                            }
+                        });
             } else {
                 mImageView.setImageBitmap(null);
             }
@@ -188,6 +193,7 @@ public class SignatureWidget extends QuestionWidget implements IBinaryWidget {
 	public void clearAnswer() {
         // remove the file
         deleteMedia();
+        AsyncImageLoader.getInstance().cancel(mImageView);
         mImageView.setImageBitmap(null);
         mErrorTextView.setVisibility(View.GONE);
 
@@ -14,10 +14,16 @@
 
 package org.odk.collect.android.widgets;
 
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.SelectChoice;
 import org.javarosa.form.api.FormEntryPrompt;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.odk.collect.android.external.ExternalDataUtil;
 
 import android.content.Context;
 import android.util.Log;
@@ -179,7 +185,7 @@ public class WidgetFactory {
                 } else if (appearance.equals("label")) {
                     questionWidget = new LabelWidget(context, fep);
                 } else {
-                    questionWidget = new SelectOneWidget(context, fep);
+                    questionWidget = createSelectWidget(context, fep, false);
                 }
                 break;
             case Constants.CONTROL_SELECT_MULTI:
@@ -209,7 +215,7 @@ public class WidgetFactory {
                 } else if (appearance.startsWith("label")) {
                     questionWidget = new LabelWidget(context, fep);
                 } else {
-                    questionWidget = new SelectMultiWidget(context, fep);
+                    questionWidget = createSelectWidget(context, fep, true);
                 }
                 break;
             case Constants.CONTROL_TRIGGER:
@@ -222,4 +228,34 @@ public class WidgetFactory {
         return questionWidget;
     }
 
+    /**
+     * Returns the default widget of a select question: a button for each choice, or a filterable
+     * list if there are too many choices to create a button for each.
+     */
+    private static QuestionWidget createSelectWidget(Context context, FormEntryPrompt fep,
+            boolean multiple) {
+        List<SelectChoice> items;
+        XPathFuncExpr xPathFuncExpr = ExternalDataUtil.getSearchXPathExpression(fep.getAppearanceHint());
+        if (xPathFuncExpr != null) {
+            // only the first page, the widget loads the rest if there are more
+            Set<String> returnedValues = new HashSet<String>();
+            ExternalDataUtil.ChoicePage page = ExternalDataUtil.populateExternalChoicePage(fep,
+                    xPathFuncExpr, 0, LargeSelectWidget.PAGE_SIZE, returnedValues);
+            if (page.hasMore || page.choices.size() > LargeSelectWidget.THRESHOLD) {
+                return new LargeSelectWidget(context, fep, page.choices, multiple,
+                        page.hasMore ? xPathFuncExpr : null, returnedValues);
+            }
+            items = page.choices;
+        } else {
+            items = fep.getSelectChoices();
+        }
+        if (items != null && items.size() > LargeSelectWidget.THRESHOLD) {
+            return new LargeSelectWidget(context, fep, items, multiple);
+        } else if (multiple) {
+            return new SelectMultiWidget(context, fep, items);
+        } else {
+            return new SelectOneWidget(context, fep, items);
+        }
+    }
+
 }